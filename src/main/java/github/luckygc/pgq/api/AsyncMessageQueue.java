@@ -0,0 +1,15 @@
+package github.luckygc.pgq.api;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 异步发送,多个线程的消息合并为一条insert语句提交,返回的future在消息提交后完成
+ * <p>
+ * 不参与调用方的事务
+ */
+public interface AsyncMessageQueue {
+
+    CompletableFuture<Void> send(String topic, String message);
+
+    CompletableFuture<Void> send(String topic, String message, int priority);
+}
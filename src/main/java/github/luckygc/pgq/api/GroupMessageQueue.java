@@ -0,0 +1,15 @@
+package github.luckygc.pgq.api;
+
+import java.util.List;
+
+/**
+ * 分组消息队列,同一topic下相同groupKey的消息按发送顺序逐条处理,不同分组之间并行处理
+ * <p>
+ * 同组消息在前一条被删除或移入死信队列前不会被拉取,重试的消息仍排在组内最前
+ */
+public interface GroupMessageQueue extends MessagePoller {
+
+    void send(String topic, String groupKey, String message);
+
+    void send(String topic, String groupKey, List<String> messages);
+}
@@ -1,6 +1,9 @@
 package github.luckygc.pgq.api;
 
 import github.luckygc.pgq.model.Message;
+import github.luckygc.pgq.model.SettleResult;
+import java.time.Duration;
+import java.util.Collection;
 import java.util.List;
 import org.jspecify.annotations.Nullable;
 
@@ -16,4 +19,43 @@ public interface MessagePoller {
      * 非阻塞
      */
     List<Message> poll(String topic, int pollMax);
+
+    /**
+     * 阻塞,有消息时立即返回;没有消息时等待本地发送或NOTIFY通知唤醒,最长等待maxWait
+     * <p>
+     * 等待期间不占用数据库连接,超时或线程被中断时返回空列表
+     */
+    List<Message> poll(String topic, int pollMax, Duration maxWait);
+
+    /**
+     * 非阻塞,一条语句为多个topic拉取消息,每个topic最多maxPerTopic条,合计最多maxTotal条
+     * <p>
+     * 合计数量不足时按topics的迭代顺序填充,适合消息量较少的topic合并拉取
+     */
+    List<Message> poll(Collection<String> topics, int maxPerTopic, int maxTotal);
+
+    /**
+     * 批量删除处理中的消息,单条语句完成
+     */
+    SettleResult ack(List<Message> messages);
+
+    /**
+     * 批量将处理中的消息移回待处理队列,单条语句完成
+     */
+    SettleResult retry(List<Message> messages);
+
+    /**
+     * 批量将处理中的消息延时重试,单条语句完成
+     */
+    SettleResult retry(List<Message> messages, Duration processDelay);
+
+    /**
+     * 批量将处理中的消息移入死信队列,单条语句完成
+     */
+    SettleResult dead(List<Message> messages);
+
+    /**
+     * 批量延长处理中消息的处理超时时间,从当前时刻起重新计算,单条语句完成
+     */
+    SettleResult extendLease(List<Message> messages, Duration processTimeout);
 }
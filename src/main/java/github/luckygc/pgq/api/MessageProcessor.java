@@ -1,14 +1,30 @@
 package github.luckygc.pgq.api;
 
+import github.luckygc.pgq.api.handler.BatchMessageHandler;
 import github.luckygc.pgq.api.handler.MessageHandler;
 import github.luckygc.pgq.model.Message;
+import github.luckygc.pgq.model.SettleResult;
+import github.luckygc.pgq.tool.FairTopicExecutor;
+import github.luckygc.pgq.tool.LeaseKeeper;
 import github.luckygc.pgq.tool.PgmqHandlerThreadFactory;
+import github.luckygc.pgq.tool.SettlementBuffer;
+import github.luckygc.pgq.tool.SharedTopicPoller;
+import github.luckygc.pgq.tool.VirtualThreads;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,9 +37,36 @@ public class MessageProcessor {
     private final String topic;
     private final int maxPoll;
     private final Semaphore semaphore;
-    private final ThreadPoolExecutor threadPool;
+    private final ExecutorService threadPool;
+    private final @Nullable SettlementBuffer settlementBuffer;
+    // 为已拉取未处理完的消息续期
+    private final LeaseKeeper leaseKeeper;
+    private final @Nullable BatchMessageHandler batchHandler;
+    // 使用共享执行器时每处理完一批即让出线程重新排队,保证topic之间公平
+    private final boolean yieldAfterBatch;
+    private final @Nullable SharedTopicPoller sharedPoller;
+    private final SharedTopicPoller.@Nullable Member sharedMember;
+    private final Duration batchWindow;
+
+    // 流水线模式,单个拉取线程预取消息交给处理线程
+    private final boolean pipeline;
+    private final @Nullable Semaphore prefetchPermits;
+    private final @Nullable ThreadPoolExecutor pollerPool;
+    private final AtomicBoolean pollerRunning = new AtomicBoolean(false);
+    private final AtomicBoolean wakeRequested = new AtomicBoolean(false);
+    // 累计拉取到的消息数量,兜底轮询据此判断调度后是否真正领取到了消息
+    private final AtomicLong claimedCount = new AtomicLong();
 
     public MessageProcessor(MessagePoller messagePoller, MessageHandler messageHandler) {
+        this(messagePoller, messageHandler, null, null);
+    }
+
+    /**
+     * @param sharedExecutor 不为空时默认模式的处理任务提交到共享执行器,流水线和虚拟线程模式仍使用独立线程
+     * @param sharedPoller 处理器开启sharedPoll时使用的共享拉取线程,为空时忽略sharedPoll
+     */
+    public MessageProcessor(MessagePoller messagePoller, MessageHandler messageHandler,
+            @Nullable FairTopicExecutor sharedExecutor, @Nullable SharedTopicPoller sharedPoller) {
         this.messagePoller = Objects.requireNonNull(messagePoller);
         this.messageHandler = Objects.requireNonNull(messageHandler);
         this.topic = Objects.requireNonNull(messageHandler.topic());
@@ -33,31 +76,143 @@ public class MessageProcessor {
             throw new IllegalArgumentException("maxPoll必须在1-5000之间");
         }
 
+        this.leaseKeeper = new LeaseKeeper(messagePoller, topic,
+                Objects.requireNonNull(messageHandler.processTimeout()));
+
+        if (messageHandler instanceof BatchMessageHandler handler) {
+            if (handler.pipeline() || handler.virtualThreads()) {
+                throw new IllegalArgumentException("批量消息处理器不支持流水线和虚拟线程模式");
+            }
+
+            this.batchHandler = handler;
+            this.batchWindow = Objects.requireNonNull(handler.batchWindow());
+            if (batchWindow.isNegative()) {
+                throw new IllegalArgumentException("batchWindow不能为负数");
+            }
+        } else {
+            this.batchHandler = null;
+            this.batchWindow = Duration.ZERO;
+        }
+
+        boolean virtualThreads = messageHandler.virtualThreads();
         int threadCount = messageHandler.threadCount();
-        if (threadCount < 1 || threadCount > 200) {
+        if (virtualThreads) {
+            if (threadCount < 1 || threadCount > 10000) {
+                throw new IllegalArgumentException("虚拟线程模式threadCount必须在1-10000之间");
+            }
+        } else if (threadCount < 1 || threadCount > 200) {
             throw new IllegalArgumentException("threadCount必须在1-200之间");
         }
 
         this.semaphore = new Semaphore(threadCount);
-        this.threadPool = new ThreadPoolExecutor(0, threadCount, 60L, TimeUnit.SECONDS,
-                new ArrayBlockingQueue<>(threadCount), new PgmqHandlerThreadFactory(topic),
-                new ThreadPoolExecutor.AbortPolicy());
+        // 虚拟线程模式每条消息一个虚拟线程,由拉取线程按许可数量控制并发
+        this.pipeline = messageHandler.pipeline() || virtualThreads;
+        if (virtualThreads) {
+            this.prefetchPermits = new Semaphore(threadCount);
+            this.threadPool = VirtualThreads.newThreadPerTaskExecutor("pgmq-handler-%s-".formatted(topic));
+            this.pollerPool = newPollerPool(topic);
+        } else if (pipeline) {
+            int prefetchSize = messageHandler.prefetchSize();
+            if (prefetchSize < 1 || prefetchSize > 5000) {
+                throw new IllegalArgumentException("prefetchSize必须在1-5000之间");
+            }
+
+            // 预取许可同时限制已拉取未处理完的消息数量,处理线程队列因此不会无限增长
+            this.prefetchPermits = new Semaphore(prefetchSize);
+            this.threadPool = newHandlerPool(topic, threadCount, threadCount, new LinkedBlockingQueue<>());
+            this.pollerPool = newPollerPool(topic);
+        } else {
+            this.prefetchPermits = null;
+            this.pollerPool = null;
+            this.threadPool = sharedExecutor != null
+                    ? sharedExecutor.lane(topic, threadCount, messageHandler.weight())
+                    : newHandlerPool(topic, 0, threadCount, new ArrayBlockingQueue<>(threadCount));
+        }
+        this.yieldAfterBatch = sharedExecutor != null && !pipeline;
+
+        if (sharedPoller != null && messageHandler.sharedPoll()) {
+            if (pipeline) {
+                throw new IllegalArgumentException("共享拉取不支持流水线和虚拟线程模式");
+            }
+            this.sharedPoller = sharedPoller;
+            this.sharedMember = new SharedMember();
+            sharedPoller.register(sharedMember);
+        } else {
+            this.sharedPoller = null;
+            this.sharedMember = null;
+        }
+
+        this.settlementBuffer = messageHandler.deferredAck()
+                ? new SettlementBuffer(messagePoller, topic, messageHandler.deferredAckBatchSize(),
+                messageHandler.deferredAckMaxDelay())
+                : null;
+    }
+
+    private static ThreadPoolExecutor newHandlerPool(String topic, int corePoolSize, int threadCount,
+            BlockingQueue<Runnable> workQueue) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(corePoolSize, threadCount, 60L, TimeUnit.SECONDS,
+                workQueue, new PgmqHandlerThreadFactory(topic), new ThreadPoolExecutor.AbortPolicy());
 
         // 允许核心线程超时回收
-        threadPool.allowCoreThreadTimeOut(true);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static ThreadPoolExecutor newPollerPool(String topic) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "pgmq-poller-%s".formatted(topic));
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
     }
 
     public String topic() {
         return topic;
     }
 
+    public int maxPoll() {
+        return maxPoll;
+    }
+
+    public Duration processTimeout() {
+        return leaseKeeper.processTimeout();
+    }
+
+    /**
+     * 累计拉取到的消息数量
+     */
+    public long claimedCount() {
+        return claimedCount.get();
+    }
+
+    /**
+     * 处理线程或预取名额已用完,正在运行的拉取循环会继续拉取,再调度也不会多拉取
+     */
+    public boolean isSaturated() {
+        Semaphore permits = pipeline ? Objects.requireNonNull(prefetchPermits) : semaphore;
+        return permits.availablePermits() == 0;
+    }
+
     public void asyncProcess() {
+        if (sharedPoller != null) {
+            sharedPoller.wake(topic);
+            return;
+        }
+
+        if (pipeline) {
+            asyncPrefetch();
+            return;
+        }
+
         if (!semaphore.tryAcquire()) {
             return;
         }
 
         try {
-            threadPool.execute(this::loopPollAndHandle);
+            threadPool.execute(batchHandler == null ? this::loopPollAndHandle : this::loopPollAndHandleBatch);
         } catch (Throwable t) {
             semaphore.release();
             log.error("提交消息处理任务失败", t);
@@ -65,28 +220,328 @@ public class MessageProcessor {
     }
 
     private void loopPollAndHandle() {
+        boolean yielded = false;
         try {
             List<Message> messages;
             while (!(messages = messagePoller.poll(topic, maxPoll)).isEmpty()) {
-                for (Message message : messages) {
-                    try {
-                        if (Thread.currentThread().isInterrupted()) {
-                            return;
-                        }
-                        messageHandler.handle(message);
-                    } catch (Throwable t) {
-                        log.error("处理消息失败", t);
-                    }
+                track(messages);
+                if (!handleAll(messages)) {
+                    return;
+                }
+
+                if (yieldAfterBatch) {
+                    yielded = yieldThread(this::loopPollAndHandle);
+                    return;
                 }
             }
         } catch (Throwable t) {
             log.error("拉取消息失败", t);
         } finally {
-            semaphore.release();
+            if (!yielded) {
+                semaphore.release();
+            }
+        }
+    }
+
+    private void loopPollAndHandleBatch() {
+        BatchMessageHandler handler = Objects.requireNonNull(batchHandler);
+        boolean yielded = false;
+        try {
+            List<Message> messages;
+            while (!(messages = pollBatch()).isEmpty()) {
+                if (isCancelled()) {
+                    abandon(messages);
+                    return;
+                }
+                handleBatch(handler, messages);
+
+                if (yieldAfterBatch) {
+                    yielded = yieldThread(this::loopPollAndHandleBatch);
+                    return;
+                }
+            }
+        } catch (Throwable t) {
+            log.error("拉取消息失败", t);
+        } finally {
+            if (!yielded) {
+                semaphore.release();
+            }
+        }
+    }
+
+    /**
+     * 带着并发许可重新提交任务,提交失败时由调用方释放许可
+     */
+    private boolean yieldThread(Runnable task) {
+        try {
+            threadPool.execute(task);
+            return true;
+        } catch (Throwable t) {
+            log.error("提交消息处理任务失败", t);
+            return false;
+        }
+    }
+
+    /**
+     * 不足maxPoll条时在batchWindow内继续攒批,有新消息到达会被立即唤醒
+     */
+    private List<Message> pollBatch() {
+        List<Message> messages = messagePoller.poll(topic, maxPoll);
+        track(messages);
+        if (messages.isEmpty() || messages.size() >= maxPoll || batchWindow.isZero()) {
+            return messages;
+        }
+
+        List<Message> batch = new ArrayList<>(messages);
+        long deadline = System.nanoTime() + batchWindow.toNanos();
+        long remaining;
+        while (batch.size() < maxPoll && (remaining = deadline - System.nanoTime()) > 0) {
+            List<Message> polled = messagePoller.poll(topic, maxPoll - batch.size(), Duration.ofNanos(remaining));
+            track(polled);
+            batch.addAll(polled);
+        }
+
+        return batch;
+    }
+
+    private void handleBatch(BatchMessageHandler handler, List<Message> messages) {
+        List<Message> batch = messages;
+        if (settlementBuffer != null) {
+            batch = new ArrayList<>(messages.size());
+            for (Message message : messages) {
+                batch.add(settlementBuffer.wrap(message));
+            }
+        }
+
+        try {
+            handler.handle(batch);
+        } catch (Throwable t) {
+            log.error("批量处理消息失败", t);
+            settleUnsettled(batch, messagePoller::retry, "重试");
+            return;
+        } finally {
+            leaseKeeper.untrack(messages);
+        }
+
+        settleUnsettled(batch, messagePoller::ack, "删除");
+    }
+
+    private void settleUnsettled(List<Message> batch, Function<List<Message>, SettleResult> action,
+            String operation) {
+        List<Message> unsettled = new ArrayList<>(batch.size());
+        for (Message message : batch) {
+            if (!message.isSettled()) {
+                unsettled.add(message);
+            }
+        }
+
+        if (unsettled.isEmpty()) {
+            return;
+        }
+
+        try {
+            SettleResult result = action.apply(unsettled);
+            if (!result.isAllSucceeded()) {
+                log.warn("批量{}消息部分失败，消息可能已被处理,ids:{}", operation, result.getFailedIds());
+            }
+        } catch (Throwable t) {
+            log.error("批量{}消息失败,消息将在处理超时后重新投递", operation, t);
+        }
+    }
+
+    /**
+     * 通知拉取线程有新消息,拉取线程运行中时只记录标记,多次通知合并为最多一轮额外拉取
+     */
+    private void asyncPrefetch() {
+        wakeRequested.set(true);
+        if (!pollerRunning.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            Objects.requireNonNull(pollerPool).execute(this::loopPrefetch);
+        } catch (Throwable t) {
+            pollerRunning.set(false);
+            log.error("提交消息拉取任务失败", t);
+        }
+    }
+
+    private void loopPrefetch() {
+        try {
+            do {
+                wakeRequested.set(false);
+                prefetchUntilEmpty();
+                pollerRunning.set(false);
+                // 拉取期间收到的通知再补一轮
+            } while (wakeRequested.get() && pollerRunning.compareAndSet(false, true));
+        } catch (InterruptedException e) {
+            pollerRunning.set(false);
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            pollerRunning.set(false);
+            log.error("拉取消息失败", t);
+        }
+    }
+
+    private void prefetchUntilEmpty() throws InterruptedException {
+        Semaphore permits = Objects.requireNonNull(prefetchPermits);
+        while (true) {
+            // 至少等到一个空位,再尽量多拉,处理线程仍在处理上一批时即可开始下一次拉取
+            permits.acquire();
+            int acquired = 1 + permits.drainPermits();
+            int requested = Math.min(maxPoll, acquired);
+            permits.release(acquired - requested);
+
+            List<Message> messages;
+            try {
+                messages = messagePoller.poll(topic, requested);
+            } catch (Throwable t) {
+                permits.release(requested);
+                throw t;
+            }
+
+            permits.release(requested - messages.size());
+            if (messages.isEmpty()) {
+                return;
+            }
+
+            track(messages);
+            for (Message message : messages) {
+                try {
+                    threadPool.execute(() -> {
+                        try {
+                            handle(message);
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                } catch (Throwable t) {
+                    permits.release();
+                    leaseKeeper.untrack(message);
+                    log.error("提交消息处理任务失败", t);
+                }
+            }
+        }
+    }
+
+    private void track(List<Message> messages) {
+        leaseKeeper.track(messages);
+        claimedCount.addAndGet(messages.size());
+    }
+
+    /**
+     * 逐条处理,被中断或取消时放弃剩余的消息
+     *
+     * @return 是否全部处理完
+     */
+    private boolean handleAll(List<Message> messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            if (isCancelled()) {
+                abandon(messages.subList(i, messages.size()));
+                return false;
+            }
+            handle(messages.get(i));
+        }
+        return true;
+    }
+
+    /**
+     * 独立线程池关闭时中断处理线程;共享执行器不中断共享的工作线程,只标记任务取消
+     */
+    private static boolean isCancelled() {
+        return Thread.currentThread().isInterrupted() || FairTopicExecutor.isCurrentTaskCancelled();
+    }
+
+    /**
+     * 放弃已拉取未处理的消息:停止续期并立即移回待处理队列,不必等待处理超时
+     */
+    private void abandon(List<Message> messages) {
+        leaseKeeper.untrack(messages);
+        try {
+            messagePoller.retry(messages);
+        } catch (Throwable t) {
+            log.warn("退回未处理的消息失败,消息将在处理超时后重新投递", t);
+        }
+    }
+
+    private void handle(Message message) {
+        try {
+            messageHandler.handle(settlementBuffer == null ? message : settlementBuffer.wrap(message));
+        } catch (Throwable t) {
+            log.error("处理消息失败", t);
+        } finally {
+            leaseKeeper.untrack(message);
         }
     }
 
     public void shutdown() {
+        if (sharedPoller != null) {
+            sharedPoller.unregister(Objects.requireNonNull(sharedMember));
+        }
+        if (pollerPool != null) {
+            pollerPool.shutdownNow();
+        }
         threadPool.shutdownNow();
+        leaseKeeper.shutdown();
+
+        if (settlementBuffer != null) {
+            settlementBuffer.shutdown();
+        }
+    }
+
+    /**
+     * 共享拉取时占用和释放本处理器的线程名额,拉取到的消息提交到本处理器的线程池
+     */
+    private class SharedMember implements SharedTopicPoller.Member {
+
+        @Override
+        public String topic() {
+            return topic;
+        }
+
+        @Override
+        public int maxPoll() {
+            return maxPoll;
+        }
+
+        @Override
+        public boolean tryReserve() {
+            return semaphore.tryAcquire();
+        }
+
+        @Override
+        public void releaseReservation() {
+            semaphore.release();
+        }
+
+        @Override
+        public void handlePolled(List<Message> messages, boolean mayHaveMore) {
+            SharedTopicPoller poller = Objects.requireNonNull(sharedPoller);
+            track(messages);
+            try {
+                threadPool.execute(() -> {
+                    try {
+                        if (isCancelled()) {
+                            abandon(messages);
+                        } else if (batchHandler != null) {
+                            handleBatch(batchHandler, messages);
+                        } else {
+                            handleAll(messages);
+                        }
+                    } finally {
+                        semaphore.release();
+                        if (mayHaveMore) {
+                            poller.wake(topic);
+                        } else {
+                            poller.kick();
+                        }
+                    }
+                });
+            } catch (Throwable t) {
+                semaphore.release();
+                leaseKeeper.untrack(messages);
+                log.error("提交消息处理任务失败", t);
+            }
+        }
     }
 }
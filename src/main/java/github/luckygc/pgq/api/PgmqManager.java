@@ -1,6 +1,8 @@
 package github.luckygc.pgq.api;
 
 import github.luckygc.pgq.api.handler.MessageHandler;
+import github.luckygc.pgq.model.TopicExecutorMetrics;
+import java.util.List;
 
 public interface PgmqManager {
 
@@ -10,9 +12,18 @@ public interface PgmqManager {
 
     PriorityMessageQueue priorityQueue();
 
+    GroupMessageQueue groupQueue();
+
+    AsyncMessageQueue asyncQueue();
+
     void registerHandler(MessageHandler messageHandler);
 
     void unregisterHandler(MessageHandler messageHandler);
 
+    /**
+     * 共享执行器中各topic的排队和执行统计,未开启共享执行器时为空
+     */
+    List<TopicExecutorMetrics> executorMetrics();
+
     void shutdown();
 }
@@ -0,0 +1,28 @@
+package github.luckygc.pgq.api.handler;
+
+import github.luckygc.pgq.model.Message;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * 批量消息处理器,每次处理一批消息,单批最多maxPoll条
+ * <p>
+ * 处理完成后未单独确认的消息统一批量删除,抛出异常时未单独确认的消息统一批量重试;
+ * 也可在处理过程中对单条消息调用delete/dead/retry
+ */
+public interface BatchMessageHandler extends MessageHandler {
+
+    /**
+     * 攒批等待时间,拉取不足maxPoll条时最多等待该时长继续攒批,默认不等待
+     */
+    default Duration batchWindow() {
+        return Duration.ZERO;
+    }
+
+    void handle(List<Message> messages);
+
+    @Override
+    default void handle(Message message) {
+        handle(List.of(message));
+    }
+}
@@ -2,6 +2,7 @@ package github.luckygc.pgq.api.handler;
 
 import github.luckygc.pgq.model.Message;
 import github.luckygc.pgq.model.PgmqConstants;
+import java.time.Duration;
 
 public interface MessageHandler {
 
@@ -13,12 +14,79 @@ public interface MessageHandler {
     }
 
     /**
-     * 范围[1,200]
+     * 范围[1,200],虚拟线程模式下范围[1,10000]
      */
     default int threadCount() {
         return PgmqConstants.MESSAGE_HANDLER_THREAD_COUNT;
     }
 
+    /**
+     * 是否与其他低流量topic合并拉取,开启后由共享拉取线程用一条语句为多个topic拉取消息,单个topic每次最多拉取50条
+     */
+    default boolean sharedPoll() {
+        return false;
+    }
+
+    /**
+     * 使用共享执行器时的调度权重,每轮最多连续执行weight个处理任务,范围[1,100]
+     */
+    default int weight() {
+        return 1;
+    }
+
+    /**
+     * 是否使用虚拟线程处理消息,需要JDK21及以上
+     * <p>
+     * 开启后每条消息在独立的虚拟线程中处理,threadCount表示最大并发数,范围[1,10000],并按流水线模式拉取
+     */
+    default boolean virtualThreads() {
+        return false;
+    }
+
+    /**
+     * 是否开启流水线模式,开启后由单个拉取线程持续预取消息交给处理线程,处理与拉取并行
+     */
+    default boolean pipeline() {
+        return false;
+    }
+
+    /**
+     * 流水线模式下已拉取但未处理完的最大消息数量,范围[1,5000]
+     */
+    default int prefetchSize() {
+        return PgmqConstants.PREFETCH_SIZE;
+    }
+
+    /**
+     * 是否延迟确认,开启后handle内对消息的delete/dead/retry先进入缓冲,由后台按批量统一提交
+     * <p>
+     * 提交前进程崩溃的消息会在处理超时后重新投递
+     */
+    default boolean deferredAck() {
+        return false;
+    }
+
+    /**
+     * 延迟确认缓冲达到该数量时立即提交,范围[1,5000]
+     */
+    default int deferredAckBatchSize() {
+        return PgmqConstants.DEFERRED_ACK_BATCH_SIZE;
+    }
+
+    /**
+     * 延迟确认缓冲最长未提交时间,必须为正数
+     */
+    default Duration deferredAckMaxDelay() {
+        return PgmqConstants.DEFERRED_ACK_MAX_DELAY;
+    }
+
+    /**
+     * 处理超时时间,不能小于1秒;处理中的消息每隔该时间的1/3自动续期,节点宕机后消息在该时间后即可重新投递
+     */
+    default Duration processTimeout() {
+        return PgmqConstants.PROCESS_TIMEOUT;
+    }
+
     String topic();
 
     void handle(Message message);
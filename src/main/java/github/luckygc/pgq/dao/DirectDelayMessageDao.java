@@ -0,0 +1,31 @@
+package github.luckygc.pgq.dao;
+
+import java.time.LocalDateTime;
+import java.util.function.Consumer;
+import org.jspecify.annotations.Nullable;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * 拉取时把待处理队列和不可见队列中已到期的消息合并领取,到期的延时、重试消息不需要先搬运到待处理队列
+ */
+public class DirectDelayMessageDao extends MessageDao {
+
+    public DirectDelayMessageDao(JdbcTemplate jdbcTemplate) {
+        super(jdbcTemplate);
+    }
+
+    public DirectDelayMessageDao(JdbcTemplate jdbcTemplate, @Nullable String nodeId,
+            @Nullable Consumer<LocalDateTime> delayListener) {
+        super(jdbcTemplate, nodeId, delayListener);
+    }
+
+    public DirectDelayMessageDao(JdbcTemplate jdbcTemplate, @Nullable String nodeId,
+            @Nullable Consumer<LocalDateTime> delayListener, boolean reclaimExpired) {
+        super(jdbcTemplate, nodeId, delayListener, reclaimExpired);
+    }
+
+    @Override
+    protected boolean claimDueInvisible() {
+        return true;
+    }
+}
@@ -0,0 +1,371 @@
+package github.luckygc.pgq.dao;
+
+import github.luckygc.pgq.model.Message;
+import github.luckygc.pgq.model.MessageDO;
+import github.luckygc.pgq.tool.Checker;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import org.jspecify.annotations.Nullable;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * 单表租约存储,消息始终位于pgmq_message表,状态流转只原地更新state/visible_time/attempt/node_id列
+ * <p>
+ * 这些列不在任何索引中,配合表的fillfactor可走HOT更新;处理中消息的visible_time即处理超时时间,
+ * 到期后可被直接重新拉取,不需要定时任务搬运
+ */
+public class LeaseMessageDao extends MessageDao {
+
+    /**
+     * 分组消息只有在同组没有更早的消息且没有处理中消息时才能被领取,保证同组消息逐条顺序处理
+     */
+    private static final String GROUP_HEAD_CONDITION = """
+            (m.group_key is null or not exists (select 1 from pgmq_message e
+                where e.topic = m.topic and e.group_key = m.group_key and e.id <> m.id
+                    and (e.id < m.id or e.state = 1)))""";
+
+    private static final String INSERT_INTO_PENDING = """
+            insert into pgmq_message(create_time, topic, priority, payload, attempt, group_key)
+                values(?, ?, ?, ?, ?, ?)
+            """;
+    private static final String INSERT_INTO_INVISIBLE = """
+            insert into pgmq_message(create_time, topic, priority, payload, attempt, group_key, visible_time)
+                values(?, ?, ?, ?, ?, ?, ?)
+            """;
+    private static final String MULTI_INSERT_INTO_PENDING = """
+            insert into pgmq_message(create_time, topic, priority, payload, attempt, group_key)
+            select * from unnest(?::timestamp[], ?::varchar[], ?::int[], ?::varchar[], ?::int[], ?::varchar[])
+            """;
+    private static final String COPY_INTO_PENDING = """
+            copy pgmq_message(create_time, topic, priority, payload, attempt, group_key) from stdin
+            """;
+    private static final String COPY_INTO_INVISIBLE = """
+            copy pgmq_message(create_time, topic, priority, payload, attempt, group_key, visible_time) from stdin
+            """;
+
+    public LeaseMessageDao(JdbcTemplate jdbcTemplate) {
+        super(jdbcTemplate);
+    }
+
+    public LeaseMessageDao(JdbcTemplate jdbcTemplate, @Nullable String nodeId) {
+        super(jdbcTemplate, nodeId);
+    }
+
+    public LeaseMessageDao(JdbcTemplate jdbcTemplate, @Nullable String nodeId,
+            @Nullable Consumer<LocalDateTime> delayListener) {
+        super(jdbcTemplate, nodeId, delayListener);
+    }
+
+    @Override
+    public void insertIntoPending(MessageDO messageDO) {
+        Objects.requireNonNull(messageDO);
+        jdbcTemplate.update(INSERT_INTO_PENDING, mapToArgArray(messageDO));
+    }
+
+    @Override
+    public void insertIntoPending(List<MessageDO> messageDOS) {
+        Checker.checkMessagesNotEmpty(messageDOS);
+
+        List<Object[]> rows = new ArrayList<>(messageDOS.size());
+        for (MessageDO messageDO : messageDOS) {
+            rows.add(mapToArgArray(messageDO));
+        }
+
+        jdbcTemplate.batchUpdate(INSERT_INTO_PENDING, rows);
+    }
+
+    @Override
+    public int multiInsertIntoPending(List<MessageDO> messageDOS) {
+        Checker.checkMessagesNotEmpty(messageDOS);
+
+        return jdbcTemplate.update(MULTI_INSERT_INTO_PENDING, toColumnArrays(messageDOS));
+    }
+
+    @Override
+    public void insertIntoInvisible(MessageDO messageDO, LocalDateTime visibleTime) {
+        Objects.requireNonNull(messageDO);
+        Objects.requireNonNull(visibleTime);
+
+        jdbcTemplate.update(INSERT_INTO_INVISIBLE, mapToArgArray(messageDO, visibleTime));
+        onDelayed(visibleTime);
+    }
+
+    @Override
+    public void insertIntoInvisible(List<MessageDO> messageDOS, LocalDateTime visibleTime) {
+        Checker.checkMessagesNotEmpty(messageDOS);
+        Objects.requireNonNull(visibleTime);
+
+        List<Object[]> rows = new ArrayList<>(messageDOS.size());
+        for (MessageDO messageDO : messageDOS) {
+            rows.add(mapToArgArray(messageDO, visibleTime));
+        }
+
+        jdbcTemplate.batchUpdate(INSERT_INTO_INVISIBLE, rows);
+        onDelayed(visibleTime);
+    }
+
+    @Override
+    public long copyIntoPending(List<MessageDO> messageDOS) {
+        Checker.checkMessagesNotEmpty(messageDOS);
+
+        return copyIn(COPY_INTO_PENDING, messageDOS, null);
+    }
+
+    @Override
+    public long copyIntoInvisible(List<MessageDO> messageDOS, LocalDateTime visibleTime) {
+        Checker.checkMessagesNotEmpty(messageDOS);
+        Objects.requireNonNull(visibleTime);
+
+        long rows = copyIn(COPY_INTO_INVISIBLE, messageDOS, visibleTime);
+        onDelayed(visibleTime);
+        return rows;
+    }
+
+    @Override
+    public List<Message> getPendingMessagesAndMoveToProcessing(String topic, int maxPoll,
+            LocalDateTime processTimeoutTime) {
+        Objects.requireNonNull(topic);
+        Checker.checkMaxPollRange(maxPoll);
+        Objects.requireNonNull(processTimeoutTime);
+
+        // 可见的待处理消息和租约已过期的处理中消息都可被领取
+        String sql = """
+                with message_to_process as (
+                    select m.id
+                        from pgmq_message m
+                        where m.topic = ? and m.visible_time <= now() and %s
+                        order by m.priority desc, m.id
+                        limit ?
+                        for update skip locked
+                ), claimed as (
+                    update pgmq_message m
+                        set state = 1, attempt = m.attempt + 1, visible_time = ?, node_id = ?
+                        from message_to_process p
+                        where m.id = p.id
+                        returning m.id, m.create_time, m.topic, m.priority, m.payload, m.attempt, m.group_key
+                ) select id, create_time, topic, priority, payload, attempt, group_key from claimed
+                    order by priority desc, id
+                """.formatted(GROUP_HEAD_CONDITION);
+
+        return jdbcTemplate.query(sql, rowMapper, topic, maxPoll, processTimeoutTime, nodeId);
+    }
+
+    @Override
+    public List<Message> getPendingMessagesAndMoveToProcessing(List<String> topics, int maxPerTopic, int maxTotal,
+            LocalDateTime processTimeoutTime) {
+        Checker.checkMessagesNotEmpty(topics);
+        Checker.checkMaxPollRange(maxPerTopic);
+        Checker.checkMaxPollRange(maxTotal);
+        Objects.requireNonNull(processTimeoutTime);
+
+        String sql = """
+                with message_to_process as (
+                    select c.id
+                        from unnest(?::varchar[]) as t(topic)
+                        cross join lateral (
+                            select m.id
+                                from pgmq_message m
+                                where m.topic = t.topic and m.visible_time <= now() and %s
+                                order by m.priority desc, m.id
+                                limit ?
+                                for update skip locked
+                        ) c
+                        limit ?
+                ), claimed as (
+                    update pgmq_message m
+                        set state = 1, attempt = m.attempt + 1, visible_time = ?, node_id = ?
+                        from message_to_process p
+                        where m.id = p.id
+                        returning m.id, m.create_time, m.topic, m.priority, m.payload, m.attempt, m.group_key
+                ) select id, create_time, topic, priority, payload, attempt, group_key from claimed
+                    order by topic, priority desc, id
+                """.formatted(GROUP_HEAD_CONDITION);
+
+        return jdbcTemplate.query(sql, rowMapper, topics.toArray(String[]::new), maxPerTopic, maxTotal,
+                processTimeoutTime, nodeId);
+    }
+
+    @Override
+    protected List<String> moveNodeMessagesToPending(String nodeCondition, Object arg) {
+        String sql = """
+                with removed_node as (
+                    delete from pgmq_node where %s returning node_id
+                ), moved as (
+                    update pgmq_message set state = 0, visible_time = now()
+                        where state = 1 and node_id in (select node_id from removed_node)
+                        returning topic
+                ) select distinct topic from moved
+                """.formatted(nodeCondition);
+
+        return jdbcTemplate.queryForList(sql, String.class, arg);
+    }
+
+    @Override
+    public int deleteProcessingMessageById(Long id, int attempt) {
+        Objects.requireNonNull(id);
+
+        return jdbcTemplate.update("delete from pgmq_message where " + LEASE_MATCH + " and state = 1", id,
+                attempt, nodeId);
+    }
+
+    @Override
+    public int moveProcessingMessageToDeadById(Long id, int attempt) {
+        Objects.requireNonNull(id);
+
+        String sql = """
+                with message_to_dead as (
+                    delete from pgmq_message where %s and state = 1
+                    returning id, create_time, topic, priority, payload, attempt, group_key
+                ) insert into pgmq_dead_queue
+                      (id, create_time, topic, priority, payload, attempt, group_key, dead_time)
+                select id, create_time, topic, priority, payload, attempt, group_key, now() from message_to_dead
+                """.formatted(LEASE_MATCH);
+
+        return jdbcTemplate.update(sql, id, attempt, nodeId);
+    }
+
+    @Override
+    public int moveProcessingMessageToPendingById(Long id, int attempt) {
+        Objects.requireNonNull(id);
+
+        return jdbcTemplate.update(
+                "update pgmq_message set state = 0, visible_time = now() where " + LEASE_MATCH + " and state = 1",
+                id, attempt, nodeId);
+    }
+
+    @Override
+    public int moveProcessingMessageToInvisibleById(Long id, int attempt, LocalDateTime visibleTime) {
+        Objects.requireNonNull(id);
+        Objects.requireNonNull(visibleTime);
+
+        int rows = jdbcTemplate.update(
+                "update pgmq_message set state = 0, visible_time = ? where " + LEASE_MATCH + " and state = 1",
+                visibleTime, id, attempt, nodeId);
+        if (rows > 0) {
+            onDelayed(visibleTime);
+        }
+        return rows;
+    }
+
+    @Override
+    public int extendProcessingTimeoutById(Long id, int attempt, LocalDateTime timeoutTime) {
+        Objects.requireNonNull(id);
+        Objects.requireNonNull(timeoutTime);
+
+        return jdbcTemplate.update(
+                "update pgmq_message set visible_time = ? where " + LEASE_MATCH + " and state = 1",
+                timeoutTime, id, attempt, nodeId);
+    }
+
+    @Override
+    public List<Long> extendProcessingTimeout(List<Message> messages, LocalDateTime timeoutTime) {
+        Checker.checkMessagesNotEmpty(messages);
+        Objects.requireNonNull(timeoutTime);
+
+        String sql = """
+                update pgmq_message p set visible_time = ?
+                    from %s
+                    where %s and p.state = 1
+                    returning p.id
+                """.formatted(LEASE_TOKENS, LEASE_CONDITION);
+
+        List<Object> args = new ArrayList<>();
+        args.add(timeoutTime);
+        Collections.addAll(args, leaseArgs(messages));
+        return jdbcTemplate.query(sql, ID_MAPPER, args.toArray());
+    }
+
+    @Override
+    public List<Long> deleteProcessingMessages(List<Message> messages) {
+        Checker.checkMessagesNotEmpty(messages);
+
+        String sql = "delete from pgmq_message p using %s where %s and p.state = 1 returning p.id"
+                .formatted(LEASE_TOKENS, LEASE_CONDITION);
+
+        return jdbcTemplate.query(sql, ID_MAPPER, leaseArgs(messages));
+    }
+
+    @Override
+    public List<Long> moveProcessingMessagesToDead(List<Message> messages) {
+        Checker.checkMessagesNotEmpty(messages);
+
+        String sql = """
+                with message_to_dead as (
+                    delete from pgmq_message p using %s where %s and p.state = 1
+                    returning p.id, p.create_time, p.topic, p.priority, p.payload, p.attempt, p.group_key
+                ), insert_into_dead as (
+                    insert into pgmq_dead_queue
+                          (id, create_time, topic, priority, payload, attempt, group_key, dead_time)
+                    select id, create_time, topic, priority, payload, attempt, group_key, now() from message_to_dead
+                ) select id from message_to_dead
+                """.formatted(LEASE_TOKENS, LEASE_CONDITION);
+
+        return jdbcTemplate.query(sql, ID_MAPPER, leaseArgs(messages));
+    }
+
+    @Override
+    public List<Long> moveProcessingMessagesToPending(List<Message> messages) {
+        Checker.checkMessagesNotEmpty(messages);
+
+        String sql = """
+                update pgmq_message p set state = 0, visible_time = now()
+                    from %s
+                    where %s and p.state = 1
+                    returning p.id
+                """.formatted(LEASE_TOKENS, LEASE_CONDITION);
+
+        return jdbcTemplate.query(sql, ID_MAPPER, leaseArgs(messages));
+    }
+
+    @Override
+    public List<Long> moveProcessingMessagesToInvisible(List<Message> messages, LocalDateTime visibleTime) {
+        Checker.checkMessagesNotEmpty(messages);
+        Objects.requireNonNull(visibleTime);
+
+        String sql = """
+                update pgmq_message p set state = 0, visible_time = ?
+                    from %s
+                    where %s and p.state = 1
+                    returning p.id
+                """.formatted(LEASE_TOKENS, LEASE_CONDITION);
+
+        List<Object> args = new ArrayList<>();
+        args.add(visibleTime);
+        Collections.addAll(args, leaseArgs(messages));
+        List<Long> movedIds = jdbcTemplate.query(sql, ID_MAPPER, args.toArray());
+        if (!movedIds.isEmpty()) {
+            onDelayed(visibleTime);
+        }
+        return movedIds;
+    }
+
+    @Override
+    public boolean hasAvailableMessages(String topic) {
+        Objects.requireNonNull(topic);
+
+        // 处理中消息的visible_time为租约到期时间,租约过期的同样可以拉取
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject(
+                "select exists(select 1 from pgmq_message where topic = ? and visible_time <= now())", Boolean.class,
+                topic));
+    }
+
+    @Override
+    public List<Long> getNextVisibleDelays(Duration horizon, int limit) {
+        Objects.requireNonNull(horizon);
+
+        String sql = """
+                select distinct ceil(extract(epoch from visible_time - now()) * 1000)::bigint as delay
+                    from pgmq_message
+                    where state = 0 and visible_time > now() and visible_time <= now() + make_interval(secs => ?)
+                    order by delay
+                    limit ?
+                """;
+
+        return jdbcTemplate.queryForList(sql, Long.class, horizon.toMillis() / 1000.0, limit);
+    }
+}
@@ -3,29 +3,150 @@ package github.luckygc.pgq.dao;
 import github.luckygc.pgq.model.Message;
 import github.luckygc.pgq.model.MessageDO;
 import github.luckygc.pgq.tool.Checker;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.StringJoiner;
+import java.util.function.Consumer;
+import org.jspecify.annotations.Nullable;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 
 public class MessageDao {
 
     private static final String INSERT_INTO_PENDING = """
-            insert into pgmq_pending_queue(create_time, topic, priority, payload, attempt)
-                values(?, ?, ?, ?, ?)
+            insert into pgmq_pending_queue(create_time, topic, priority, payload, attempt, group_key)
+                values(?, ?, ?, ?, ?, ?)
             """;
     private static final String INSERT_INTO_INVISIBLE = """
-            insert into pgmq_invisible_queue(create_time, topic, priority, payload, attempt, visible_time)
-                values(?, ?, ?, ?, ?, ?)
+            insert into pgmq_invisible_queue(create_time, topic, priority, payload, attempt, group_key, visible_time)
+                values(?, ?, ?, ?, ?, ?, ?)
+            """;
+    private static final String MULTI_INSERT_INTO_PENDING = """
+            insert into pgmq_pending_queue(create_time, topic, priority, payload, attempt, group_key)
+            select * from unnest(?::timestamp[], ?::varchar[], ?::int[], ?::varchar[], ?::int[], ?::varchar[])
+            """;
+    private static final String COPY_INTO_PENDING = """
+            copy pgmq_pending_queue(create_time, topic, priority, payload, attempt, group_key) from stdin
+            """;
+    private static final String COPY_INTO_INVISIBLE = """
+            copy pgmq_invisible_queue(create_time, topic, priority, payload, attempt, group_key, visible_time)
+                from stdin
             """;
 
-    private final JdbcTemplate jdbcTemplate;
+    /**
+     * 分组消息只有在同组没有更早的待处理、延时中消息且没有处理中消息时才能被拉取,保证同组消息逐条顺序处理
+     */
+    protected static final String GROUP_HEAD_CONDITION = """
+            (p.group_key is null or (
+                not exists (select 1 from pgmq_pending_queue e
+                    where e.topic = p.topic and e.group_key = p.group_key and e.id < p.id)
+                and not exists (select 1 from pgmq_processing_queue r
+                    where r.topic = p.topic and r.group_key = p.group_key)
+                and not exists (select 1 from pgmq_invisible_queue i
+                    where i.topic = p.topic and i.group_key = p.group_key and i.id < p.id)))""";
+
+    /**
+     * 一个来源的候选,参数为来源编号、表名、topic条件、来源条件;
+     * 来源0为待处理队列,1为不可见队列中已到期的消息,2为处理超时的消息
+     */
+    private static final String CANDIDATE_SOURCE = """
+                select p.id, p.create_time, p.topic, p.priority, p.payload, p.attempt, p.group_key, %d as source
+                    from %s p
+                    where %s and %s
+                    order by p.priority desc, p.id
+                    limit ?
+                    for update skip locked
+            """;
+
+    /**
+     * 领取的待处理、到期延时消息移入处理中队列,处理超时的消息原地续租
+     */
+    private static final String SETTLE_CANDIDATES = """
+            , delete_from_pending as (
+                delete from pgmq_pending_queue where id in (select id from message_to_process where source = 0)
+            ), delete_from_invisible as (
+                delete from pgmq_invisible_queue where id in (select id from message_to_process where source = 1)
+            ), insert_into_processing as (
+                insert into pgmq_processing_queue
+                          (id, create_time, topic, priority, payload, attempt, group_key, timeout_time, node_id)
+                    select id, create_time, topic, priority, payload, attempt + 1, group_key, ?, ?::varchar
+                        from message_to_process where source <> 2
+            ), release_expired as (
+                update pgmq_processing_queue r set attempt = r.attempt + 1, timeout_time = ?, node_id = ?::varchar
+                    from message_to_process m
+                    where m.source = 2 and r.id = m.id
+            )""";
+    /**
+     * 按id、attempt和持有节点匹配处理中的消息;拉取时attempt递增,作为租约令牌,
+     * 消息超时或节点被判定宕机后被重新领取,旧的持有者不能再确认、重试或续期
+     */
+    protected static final String LEASE_MATCH = "id = ? and attempt = ? and node_id is not distinct from ?::varchar";
+    /**
+     * 批量匹配,参数为id数组、attempt数组、节点id
+     */
+    protected static final String LEASE_TOKENS = "unnest(?::bigint[], ?::int[]) as t(id, attempt)";
+    protected static final String LEASE_CONDITION =
+            "p.id = t.id and p.attempt = t.attempt and p.node_id is not distinct from ?::varchar";
+
+    private static final String SELECT_CLAIMED =
+            " select id, create_time, topic, priority, payload, attempt + 1, group_key from message_to_process";
+
+    /**
+     * COPY数据攒到该字符数后写出一次
+     */
+    private static final int COPY_FLUSH_CHARS = 64 * 1024;
+    /**
+     * COPY及数组参数中时间的文本格式
+     */
+    private static final DateTimeFormatter TEXT_TIME_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSS");
+
+    protected static final RowMapper<Long> ID_MAPPER = (rs, ignore) -> rs.getLong(1);
+
+    protected final JdbcTemplate jdbcTemplate;
     public final RowMapper<Message> rowMapper;
+    /**
+     * 拉取消息时记录在处理中消息上的节点id,节点宕机后由存活节点立即回收
+     */
+    protected final @Nullable String nodeId;
+    /**
+     * 写入不可见消息后回调,参数为可见时间,用于延时调度
+     */
+    private final @Nullable Consumer<LocalDateTime> delayListener;
+    private final boolean reclaimExpired;
 
     public MessageDao(JdbcTemplate jdbcTemplate) {
+        this(jdbcTemplate, null);
+    }
+
+    public MessageDao(JdbcTemplate jdbcTemplate, @Nullable String nodeId) {
+        this(jdbcTemplate, nodeId, null);
+    }
+
+    public MessageDao(JdbcTemplate jdbcTemplate, @Nullable String nodeId,
+            @Nullable Consumer<LocalDateTime> delayListener) {
+        this(jdbcTemplate, nodeId, delayListener, false);
+    }
+
+    /**
+     * @param reclaimExpired 拉取时是否同时领取处理超时的消息,原地续租给本次拉取的消费者
+     */
+    public MessageDao(JdbcTemplate jdbcTemplate, @Nullable String nodeId,
+            @Nullable Consumer<LocalDateTime> delayListener, boolean reclaimExpired) {
         this.jdbcTemplate = Objects.requireNonNull(jdbcTemplate);
+        this.nodeId = nodeId;
+        this.delayListener = delayListener;
+        this.reclaimExpired = reclaimExpired;
         this.rowMapper = (rs, ignore) -> new Message.Builder()
                 .id(rs.getLong(1))
                 .createTime(rs.getTimestamp(2).toLocalDateTime())
@@ -33,6 +154,7 @@ public class MessageDao {
                 .priority(rs.getInt(4))
                 .payload(rs.getString(5))
                 .attempt(rs.getInt(6))
+                .groupKey(rs.getString(7))
                 .messageDao(this)
                 .build();
     }
@@ -55,12 +177,22 @@ public class MessageDao {
         jdbcTemplate.batchUpdate(INSERT_INTO_PENDING, rows);
     }
 
+    /**
+     * 以单条多行insert语句写入待处理队列,非事务环境下只产生一次提交
+     */
+    public int multiInsertIntoPending(List<MessageDO> messageDOS) {
+        Checker.checkMessagesNotEmpty(messageDOS);
+
+        return jdbcTemplate.update(MULTI_INSERT_INTO_PENDING, toColumnArrays(messageDOS));
+    }
+
     public void insertIntoInvisible(MessageDO messageDO, LocalDateTime visibleTime) {
         Objects.requireNonNull(messageDO);
 
         Objects.requireNonNull(visibleTime);
         Object[] row = mapToArgArray(messageDO, visibleTime);
         jdbcTemplate.update(INSERT_INTO_INVISIBLE, row);
+        onDelayed(visibleTime);
     }
 
     public void insertIntoInvisible(List<MessageDO> messageDOS, LocalDateTime visibleTime) {
@@ -74,6 +206,32 @@ public class MessageDao {
         }
 
         jdbcTemplate.batchUpdate(INSERT_INTO_INVISIBLE, rows);
+        onDelayed(visibleTime);
+    }
+
+    /**
+     * 通过COPY协议批量写入待处理队列,适用于大批量消息
+     *
+     * @return 写入行数
+     */
+    public long copyIntoPending(List<MessageDO> messageDOS) {
+        Checker.checkMessagesNotEmpty(messageDOS);
+
+        return copyIn(COPY_INTO_PENDING, messageDOS, null);
+    }
+
+    /**
+     * 通过COPY协议批量写入不可见队列,适用于大批量消息
+     *
+     * @return 写入行数
+     */
+    public long copyIntoInvisible(List<MessageDO> messageDOS, LocalDateTime visibleTime) {
+        Checker.checkMessagesNotEmpty(messageDOS);
+        Objects.requireNonNull(visibleTime);
+
+        long rows = copyIn(COPY_INTO_INVISIBLE, messageDOS, visibleTime);
+        onDelayed(visibleTime);
+        return rows;
     }
 
     public List<Message> getPendingMessagesAndMoveToProcessing(String topic, int maxPoll,
@@ -82,97 +240,520 @@ public class MessageDao {
         Checker.checkMaxPollRange(maxPoll);
         Objects.requireNonNull(processTimeoutTime);
 
+        if (reclaimExpired || claimDueInvisible()) {
+            return claimFromCandidates(topic, maxPoll, processTimeoutTime);
+        }
+
         String sql = """
                 with message_to_process as (
-                    select id, create_time, topic, priority, payload, attempt
-                        from pgmq_pending_queue
-                        where topic = ?
-                        order by priority desc ,id
+                    select p.id, p.create_time, p.topic, p.priority, p.payload, p.attempt, p.group_key
+                        from pgmq_pending_queue p
+                        where p.topic = ? and %s
+                        order by p.priority desc, p.id
                         limit ?
                         for update skip locked
                 ), delete_from_pending as (
                     delete from pgmq_pending_queue where id in (select id from message_to_process)
                 ), insert_into_processing as (
                     insert into pgmq_processing_queue
-                              (id, create_time, topic, priority, payload, attempt, timeout_time)
-                        select id, create_time, topic, priority, payload, attempt + 1, ? from message_to_process
-                ) select id, create_time, topic, priority, payload, attempt + 1 from message_to_process
-                """;
+                              (id, create_time, topic, priority, payload, attempt, group_key, timeout_time, node_id)
+                        select id, create_time, topic, priority, payload, attempt + 1, group_key, ?, ?::varchar
+                            from message_to_process
+                ) select id, create_time, topic, priority, payload, attempt + 1, group_key from message_to_process
+                """.formatted(GROUP_HEAD_CONDITION);
+
+        return jdbcTemplate.query(sql, rowMapper, topic, maxPoll, processTimeoutTime, nodeId);
+    }
+
+    /**
+     * 一条语句为多个topic拉取消息,每个topic最多maxPerTopic条,合计最多maxTotal条,按topics顺序填充
+     */
+    public List<Message> getPendingMessagesAndMoveToProcessing(List<String> topics, int maxPerTopic, int maxTotal,
+            LocalDateTime processTimeoutTime) {
+        Checker.checkMessagesNotEmpty(topics);
+        Checker.checkMaxPollRange(maxPerTopic);
+        Checker.checkMaxPollRange(maxTotal);
+        Objects.requireNonNull(processTimeoutTime);
+
+        if (reclaimExpired || claimDueInvisible()) {
+            return claimFromCandidates(topics, maxPerTopic, maxTotal, processTimeoutTime);
+        }
+
+        String sql = """
+                with message_to_process as (
+                    select c.id, c.create_time, c.topic, c.priority, c.payload, c.attempt, c.group_key
+                        from unnest(?::varchar[]) as t(topic)
+                        cross join lateral (
+                            select p.id, p.create_time, p.topic, p.priority, p.payload, p.attempt, p.group_key
+                                from pgmq_pending_queue p
+                                where p.topic = t.topic and %s
+                                order by p.priority desc, p.id
+                                limit ?
+                                for update skip locked
+                        ) c
+                        limit ?
+                ), delete_from_pending as (
+                    delete from pgmq_pending_queue where id in (select id from message_to_process)
+                ), insert_into_processing as (
+                    insert into pgmq_processing_queue
+                              (id, create_time, topic, priority, payload, attempt, group_key, timeout_time, node_id)
+                        select id, create_time, topic, priority, payload, attempt + 1, group_key, ?, ?::varchar
+                            from message_to_process
+                ) select id, create_time, topic, priority, payload, attempt + 1, group_key from message_to_process
+                """.formatted(GROUP_HEAD_CONDITION);
+
+        return jdbcTemplate.query(sql, rowMapper, topics.toArray(String[]::new), maxPerTopic, maxTotal,
+                processTimeoutTime, nodeId);
+    }
+
+    /**
+     * 是否同时领取不可见队列中已到期的消息
+     */
+    protected boolean claimDueInvisible() {
+        return false;
+    }
+
+    private List<String> candidateSources(String topicCondition) {
+        List<String> sources = new ArrayList<>(3);
+        sources.add(CANDIDATE_SOURCE.formatted(0, "pgmq_pending_queue", topicCondition, GROUP_HEAD_CONDITION));
+        if (claimDueInvisible()) {
+            sources.add(CANDIDATE_SOURCE.formatted(1, "pgmq_invisible_queue", topicCondition,
+                    "p.visible_time <= now() and " + GROUP_HEAD_CONDITION));
+        }
+        if (reclaimExpired) {
+            sources.add(CANDIDATE_SOURCE.formatted(2, "pgmq_processing_queue", topicCondition,
+                    "p.timeout_time <= now()"));
+        }
+        return sources;
+    }
+
+    /**
+     * 各来源分别加锁取候选,合并后按优先级、id截取;多锁而未被领取的候选直到事务结束才释放,其他消费者在此之前会跳过它们
+     */
+    private List<Message> claimFromCandidates(String topic, int maxPoll, LocalDateTime processTimeoutTime) {
+        List<String> sources = candidateSources("p.topic = ?");
+        List<Object> args = new ArrayList<>();
+        StringBuilder sql = new StringBuilder("with ");
+        for (int i = 0; i < sources.size(); i++) {
+            sql.append("candidate_").append(i).append(" as (\n").append(sources.get(i)).append("), ");
+            args.add(topic);
+            args.add(maxPoll);
+        }
+
+        sql.append("message_to_process as (\n").append(unionCandidates(sources.size()))
+                .append("    order by priority desc, id\n    limit ?\n)")
+                .append(SETTLE_CANDIDATES)
+                .append(SELECT_CLAIMED)
+                .append(" order by priority desc, id");
+        args.add(maxPoll);
+        Collections.addAll(args, processTimeoutTime, nodeId, processTimeoutTime, nodeId);
+
+        return jdbcTemplate.query(sql.toString(), rowMapper, args.toArray());
+    }
+
+    private List<Message> claimFromCandidates(List<String> topics, int maxPerTopic, int maxTotal,
+            LocalDateTime processTimeoutTime) {
+        String[] topicArray = topics.toArray(String[]::new);
+        List<String> sources = candidateSources("p.topic = t.topic");
+        List<Object> args = new ArrayList<>();
+        StringBuilder sql = new StringBuilder("with ");
+        for (int i = 0; i < sources.size(); i++) {
+            sql.append("candidate_").append(i).append(" as (\n")
+                    .append("select t.ord, c.* from unnest(?::varchar[]) with ordinality as t(topic, ord)\n")
+                    .append("cross join lateral (\n")
+                    .append(sources.get(i))
+                    .append(") c), ");
+            args.add(topicArray);
+            args.add(maxPerTopic);
+        }
+
+        sql.append("ranked as (\n")
+                .append("    select u.*, row_number() over (partition by u.ord order by u.priority desc, u.id) as rn\n")
+                .append("        from (").append(unionCandidates(sources.size())).append(") u\n")
+                .append("), message_to_process as (\n")
+                .append("    select ord, id, create_time, topic, priority, payload, attempt, group_key, source\n")
+                .append("        from ranked where rn <= ? order by ord, priority desc, id limit ?\n)")
+                .append(SETTLE_CANDIDATES)
+                .append(SELECT_CLAIMED)
+                .append(" order by ord, priority desc, id");
+        Collections.addAll(args, maxPerTopic, maxTotal, processTimeoutTime, nodeId, processTimeoutTime, nodeId);
+
+        return jdbcTemplate.query(sql.toString(), rowMapper, args.toArray());
+    }
+
+    private static String unionCandidates(int count) {
+        StringJoiner union = new StringJoiner("\n    union all\n", "", "\n");
+        for (int i = 0; i < count; i++) {
+            union.add("    select * from candidate_" + i);
+        }
+        return union.toString();
+    }
+
+    /**
+     * 删除心跳超时的节点,并把这些节点处理中的消息移回待处理队列,返回有消息移回的topic
+     */
+    public List<String> moveDeadNodeMessagesToPending(Duration nodeTimeout) {
+        Objects.requireNonNull(nodeTimeout);
+
+        return moveNodeMessagesToPending("heartbeat_time < now() - make_interval(secs => ?)",
+                nodeTimeout.toMillis() / 1000.0);
+    }
+
+    /**
+     * 注销节点,并把该节点处理中的消息移回待处理队列,返回有消息移回的topic
+     */
+    public List<String> moveNodeMessagesToPending(String nodeId) {
+        Objects.requireNonNull(nodeId);
+
+        return moveNodeMessagesToPending("node_id = ?", nodeId);
+    }
 
-        return jdbcTemplate.query(sql, rowMapper, topic, maxPoll, processTimeoutTime);
+    protected List<String> moveNodeMessagesToPending(String nodeCondition, Object arg) {
+        String sql = """
+                with removed_node as (
+                    delete from pgmq_node where %s returning node_id
+                ), moved as (
+                    delete from pgmq_processing_queue
+                        where node_id in (select node_id from removed_node)
+                        returning id, create_time, topic, priority, payload, attempt, group_key
+                ), inserted as (
+                    insert into pgmq_pending_queue (id, create_time, topic, priority, payload, attempt, group_key)
+                        select id, create_time, topic, priority, payload, attempt, group_key from moved
+                        returning topic
+                ) select distinct topic from inserted
+                """.formatted(nodeCondition);
+
+        return jdbcTemplate.queryForList(sql, String.class, arg);
     }
 
-    public int deleteProcessingMessageById(Long id) {
+    /**
+     * 以下按id确认、重试、续期的方法都要求attempt与拉取时一致且由本节点持有,消息被重新领取后返回0
+     */
+    public int deleteProcessingMessageById(Long id, int attempt) {
         Objects.requireNonNull(id);
 
-        return jdbcTemplate.update("delete from pgmq_processing_queue where id = ?", id);
+        return jdbcTemplate.update("delete from pgmq_processing_queue where " + LEASE_MATCH, id, attempt, nodeId);
     }
 
-    public int moveProcessingMessageToDeadById(Long id) {
+    public int moveProcessingMessageToDeadById(Long id, int attempt) {
         Objects.requireNonNull(id);
 
         String sql = """
                 with message_to_dead as (
-                    delete from pgmq_processing_queue where id = ?
-                    returning id, create_time, topic, priority, payload, attempt
+                    delete from pgmq_processing_queue where %s
+                    returning id, create_time, topic, priority, payload, attempt, group_key
                 ) insert into pgmq_dead_queue
-                      (id, create_time, topic, priority, payload, attempt, dead_time)
-                select id, create_time, topic, priority, payload, attempt, now() from message_to_dead
-                """;
+                      (id, create_time, topic, priority, payload, attempt, group_key, dead_time)
+                select id, create_time, topic, priority, payload, attempt, group_key, now() from message_to_dead
+                """.formatted(LEASE_MATCH);
 
-        return jdbcTemplate.update(sql, id);
+        return jdbcTemplate.update(sql, id, attempt, nodeId);
     }
 
-    public int moveProcessingMessageToPendingById(Long id) {
+    public int moveProcessingMessageToPendingById(Long id, int attempt) {
         Objects.requireNonNull(id);
 
         String sql = """
                 with message_to_retry as (
-                    delete from pgmq_processing_queue where id = ?
-                    returning id, create_time, topic, priority, payload, attempt
+                    delete from pgmq_processing_queue where %s
+                    returning id, create_time, topic, priority, payload, attempt, group_key
                 )
                 insert into pgmq_pending_queue
-                      (id, create_time, topic, priority, payload, attempt)
-                select id, create_time, topic, priority, payload, attempt from message_to_retry
-                """;
+                      (id, create_time, topic, priority, payload, attempt, group_key)
+                select id, create_time, topic, priority, payload, attempt, group_key from message_to_retry
+                """.formatted(LEASE_MATCH);
 
-        return jdbcTemplate.update(sql, id);
+        return jdbcTemplate.update(sql, id, attempt, nodeId);
     }
 
-    public int moveProcessingMessageToInvisibleById(Long id, LocalDateTime visibleTime) {
+    public int moveProcessingMessageToInvisibleById(Long id, int attempt, LocalDateTime visibleTime) {
         Objects.requireNonNull(id);
         Objects.requireNonNull(visibleTime);
 
         String sql = """
                 with message_to_retry as (
-                    delete from pgmq_processing_queue where id = ?
-                    returning id, create_time, topic, priority, payload, attempt
+                    delete from pgmq_processing_queue where %s
+                    returning id, create_time, topic, priority, payload, attempt, group_key
                 )
                 insert into pgmq_invisible_queue
-                      (id, create_time, topic, priority, payload, attempt, visible_time)
-                select id, create_time, topic, priority, payload, attempt, ? from message_to_retry
+                      (id, create_time, topic, priority, payload, attempt, group_key, visible_time)
+                select id, create_time, topic, priority, payload, attempt, group_key, ? from message_to_retry
+                """.formatted(LEASE_MATCH);
+
+        int rows = jdbcTemplate.update(sql, id, attempt, nodeId, visibleTime);
+        if (rows > 0) {
+            onDelayed(visibleTime);
+        }
+        return rows;
+    }
+
+    public int extendProcessingTimeoutById(Long id, int attempt, LocalDateTime timeoutTime) {
+        Objects.requireNonNull(id);
+        Objects.requireNonNull(timeoutTime);
+
+        return jdbcTemplate.update("update pgmq_processing_queue set timeout_time = ? where " + LEASE_MATCH,
+                timeoutTime, id, attempt, nodeId);
+    }
+
+    /**
+     * 以下批量方法按消息的id和attempt匹配,返回成功的id
+     */
+    public List<Long> extendProcessingTimeout(List<Message> messages, LocalDateTime timeoutTime) {
+        Checker.checkMessagesNotEmpty(messages);
+        Objects.requireNonNull(timeoutTime);
+
+        String sql = """
+                update pgmq_processing_queue p set timeout_time = ?
+                    from %s
+                    where %s
+                    returning p.id
+                """.formatted(LEASE_TOKENS, LEASE_CONDITION);
+
+        List<Object> args = new ArrayList<>();
+        args.add(timeoutTime);
+        Collections.addAll(args, leaseArgs(messages));
+        return jdbcTemplate.query(sql, ID_MAPPER, args.toArray());
+    }
+
+    public List<Long> deleteProcessingMessages(List<Message> messages) {
+        Checker.checkMessagesNotEmpty(messages);
+
+        String sql = "delete from pgmq_processing_queue p using %s where %s returning p.id"
+                .formatted(LEASE_TOKENS, LEASE_CONDITION);
+
+        return jdbcTemplate.query(sql, ID_MAPPER, leaseArgs(messages));
+    }
+
+    public List<Long> moveProcessingMessagesToDead(List<Message> messages) {
+        Checker.checkMessagesNotEmpty(messages);
+
+        String sql = """
+                with message_to_dead as (
+                    delete from pgmq_processing_queue p using %s where %s
+                    returning p.id, p.create_time, p.topic, p.priority, p.payload, p.attempt, p.group_key
+                ), insert_into_dead as (
+                    insert into pgmq_dead_queue
+                          (id, create_time, topic, priority, payload, attempt, group_key, dead_time)
+                    select id, create_time, topic, priority, payload, attempt, group_key, now() from message_to_dead
+                ) select id from message_to_dead
+                """.formatted(LEASE_TOKENS, LEASE_CONDITION);
+
+        return jdbcTemplate.query(sql, ID_MAPPER, leaseArgs(messages));
+    }
+
+    public List<Long> moveProcessingMessagesToPending(List<Message> messages) {
+        Checker.checkMessagesNotEmpty(messages);
+
+        String sql = """
+                with message_to_retry as (
+                    delete from pgmq_processing_queue p using %s where %s
+                    returning p.id, p.create_time, p.topic, p.priority, p.payload, p.attempt, p.group_key
+                ), insert_into_pending as (
+                    insert into pgmq_pending_queue
+                          (id, create_time, topic, priority, payload, attempt, group_key)
+                    select id, create_time, topic, priority, payload, attempt, group_key from message_to_retry
+                ) select id from message_to_retry
+                """.formatted(LEASE_TOKENS, LEASE_CONDITION);
+
+        return jdbcTemplate.query(sql, ID_MAPPER, leaseArgs(messages));
+    }
+
+    public List<Long> moveProcessingMessagesToInvisible(List<Message> messages, LocalDateTime visibleTime) {
+        Checker.checkMessagesNotEmpty(messages);
+        Objects.requireNonNull(visibleTime);
+
+        String sql = """
+                with message_to_retry as (
+                    delete from pgmq_processing_queue p using %s where %s
+                    returning p.id, p.create_time, p.topic, p.priority, p.payload, p.attempt, p.group_key
+                ), insert_into_invisible as (
+                    insert into pgmq_invisible_queue
+                          (id, create_time, topic, priority, payload, attempt, group_key, visible_time)
+                    select id, create_time, topic, priority, payload, attempt, group_key, ? from message_to_retry
+                ) select id from message_to_retry
+                """.formatted(LEASE_TOKENS, LEASE_CONDITION);
+
+        List<Object> args = new ArrayList<>();
+        Collections.addAll(args, leaseArgs(messages));
+        args.add(visibleTime);
+        List<Long> movedIds = jdbcTemplate.query(sql, ID_MAPPER, args.toArray());
+        if (!movedIds.isEmpty()) {
+            onDelayed(visibleTime);
+        }
+        return movedIds;
+    }
+
+    /**
+     * topic是否有可拉取的消息,只检查是否存在,不考虑分组顺序,用于轮询时避免无消息的拉取
+     */
+    public boolean hasAvailableMessages(String topic) {
+        Objects.requireNonNull(topic);
+
+        String sql = """
+                select exists(select 1 from pgmq_pending_queue where topic = ?)
+                    or (? and exists(select 1 from pgmq_invisible_queue where topic = ? and visible_time <= now()))
+                    or (? and exists(select 1 from pgmq_processing_queue where topic = ? and timeout_time <= now()))
                 """;
 
-        return jdbcTemplate.update(sql, id, visibleTime);
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject(sql, Boolean.class, topic, claimDueInvisible(), topic,
+                reclaimExpired, topic));
+    }
+
+    /**
+     * 查询horizon内将要到期的不可见消息,用于延时调度
+     *
+     * @return 距数据库当前时间的毫秒数,去重升序
+     */
+    public List<Long> getNextVisibleDelays(Duration horizon, int limit) {
+        Objects.requireNonNull(horizon);
+
+        String sql = """
+                select distinct ceil(extract(epoch from visible_time - now()) * 1000)::bigint as delay
+                    from pgmq_invisible_queue
+                    where visible_time > now() and visible_time <= now() + make_interval(secs => ?)
+                    order by delay
+                    limit ?
+                """;
+
+        return jdbcTemplate.queryForList(sql, Long.class, horizon.toMillis() / 1000.0, limit);
+    }
+
+    protected void onDelayed(LocalDateTime visibleTime) {
+        if (delayListener != null) {
+            delayListener.accept(visibleTime);
+        }
+    }
+
+    /**
+     * 租约匹配的参数,顺序为id数组、attempt数组、节点id,配合{@link #LEASE_TOKENS}和{@link #LEASE_CONDITION}使用
+     */
+    protected Object[] leaseArgs(List<Message> messages) {
+        int size = messages.size();
+        Long[] ids = new Long[size];
+        Integer[] attempts = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = messages.get(i).getId();
+            attempts[i] = messages.get(i).getAttempt();
+        }
+
+        return new Object[]{ids, attempts, nodeId};
+    }
+
+    /**
+     * 按列拆分为数组参数,顺序为create_time, topic, priority, payload, attempt, group_key,配合unnest使用
+     */
+    protected Object[] toColumnArrays(List<MessageDO> messageDOS) {
+        int size = messageDOS.size();
+        String[] createTimes = new String[size];
+        String[] topics = new String[size];
+        Integer[] priorities = new Integer[size];
+        String[] payloads = new String[size];
+        Integer[] attempts = new Integer[size];
+        String[] groupKeys = new String[size];
+        for (int i = 0; i < size; i++) {
+            MessageDO messageDO = messageDOS.get(i);
+            createTimes[i] = TEXT_TIME_FORMATTER.format(messageDO.getCreateTime());
+            topics[i] = messageDO.getTopic();
+            priorities[i] = messageDO.getPriority();
+            payloads[i] = messageDO.getPayload();
+            attempts[i] = messageDO.getAttempt();
+            groupKeys[i] = messageDO.getGroupKey();
+        }
+
+        return new Object[]{createTimes, topics, priorities, payloads, attempts, groupKeys};
+    }
+
+    /**
+     * 按COPY text格式写入,每行列顺序为create_time, topic, priority, payload, attempt, group_key[, visible_time]
+     */
+    protected long copyIn(String sql, List<MessageDO> messageDOS, @Nullable LocalDateTime visibleTime) {
+        // 通过JdbcTemplate获取连接,保证与当前事务使用同一连接
+        Long rows = jdbcTemplate.execute((ConnectionCallback<Long>) con -> {
+            CopyIn copyIn = con.unwrap(PGConnection.class).getCopyAPI().copyIn(sql);
+            try {
+                StringBuilder buffer = new StringBuilder(COPY_FLUSH_CHARS + 1024);
+                for (MessageDO messageDO : messageDOS) {
+                    appendCopyRow(buffer, messageDO, visibleTime);
+                    if (buffer.length() >= COPY_FLUSH_CHARS) {
+                        writeToCopy(copyIn, buffer);
+                    }
+                }
+
+                writeToCopy(copyIn, buffer);
+                return copyIn.endCopy();
+            } finally {
+                if (copyIn.isActive()) {
+                    copyIn.cancelCopy();
+                }
+            }
+        });
+
+        return Objects.requireNonNull(rows);
     }
 
-    private Object[] mapToArgArray(MessageDO messageDO) {
+    private static void writeToCopy(CopyIn copyIn, StringBuilder buffer) throws SQLException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+
+        byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+        copyIn.writeToCopy(bytes, 0, bytes.length);
+        buffer.setLength(0);
+    }
+
+    /**
+     * 按COPY text格式追加一行,列以tab分隔,行以换行结束
+     */
+    private static void appendCopyRow(StringBuilder buffer, MessageDO messageDO,
+            @Nullable LocalDateTime visibleTime) {
+        buffer.append(TEXT_TIME_FORMATTER.format(messageDO.getCreateTime())).append('\t');
+        appendCopyText(buffer, messageDO.getTopic());
+        buffer.append('\t').append(messageDO.getPriority()).append('\t');
+        appendCopyText(buffer, messageDO.getPayload());
+        buffer.append('\t').append(messageDO.getAttempt()).append('\t');
+        if (messageDO.getGroupKey() == null) {
+            buffer.append("\\N");
+        } else {
+            appendCopyText(buffer, messageDO.getGroupKey());
+        }
+        if (visibleTime != null) {
+            buffer.append('\t').append(TEXT_TIME_FORMATTER.format(visibleTime));
+        }
+        buffer.append('\n');
+    }
+
+    private static void appendCopyText(StringBuilder buffer, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> buffer.append("\\\\");
+                case '\t' -> buffer.append("\\t");
+                case '\n' -> buffer.append("\\n");
+                case '\r' -> buffer.append("\\r");
+                default -> buffer.append(c);
+            }
+        }
+    }
+
+    protected Object[] mapToArgArray(MessageDO messageDO) {
         return new Object[]{
                 messageDO.getCreateTime(),
                 messageDO.getTopic(),
                 messageDO.getPriority(),
                 messageDO.getPayload(),
-                messageDO.getAttempt()
+                messageDO.getAttempt(),
+                messageDO.getGroupKey()
         };
     }
 
-    private Object[] mapToArgArray(MessageDO messageDO, LocalDateTime visibleTime) {
+    protected Object[] mapToArgArray(MessageDO messageDO, LocalDateTime visibleTime) {
         return new Object[]{
                 messageDO.getCreateTime(),
                 messageDO.getTopic(),
                 messageDO.getPriority(),
                 messageDO.getPayload(),
                 messageDO.getAttempt(),
+                messageDO.getGroupKey(),
                 visibleTime
         };
     }
@@ -1,59 +1,263 @@
 package github.luckygc.pgq.dao;
 
 import github.luckygc.pgq.model.PgmqConstants;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.RowCallbackHandler;
 
 public class QueueDao {
 
     private static final Logger log = LoggerFactory.getLogger(QueueDao.class);
 
     private final JdbcTemplate jdbcTemplate;
+    // 发送通知时附带的本节点id,监听器据此忽略本节点发出的通知,为null时不附带
+    private final @Nullable String nodeId;
 
     public QueueDao(JdbcTemplate jdbcTemplate) {
-        this.jdbcTemplate = jdbcTemplate;
+        this(jdbcTemplate, null);
     }
 
-    private static final RowMapper<String> stringMapper = (rs, ignore) -> rs.getString(1);
-    private static final RowMapper<Void> emptyMapper = (rs, ignore) -> null;
+    public QueueDao(JdbcTemplate jdbcTemplate, @Nullable String nodeId) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.nodeId = nodeId;
+    }
 
     /**
      * 批量把到时间的不可见消息移入待处理队列,把处理超时任务重新移回待处理队列,并返回有可用消息的topic集合
+     * <p>
+     * 供自行驱动搬运的调用方使用,不分片,分批搬运直到没有到期消息,每批单独提交。
+     * {@link github.luckygc.pgq.impl.PgmqManagerImpl}按分片调用{@link #moveTimeoutAndVisibleMsgToPending},每批提交后立即唤醒处理器
      */
     public List<String> moveTimeoutAndVisibleMsgToPendingAndReturnPendingTopics() {
-        return jdbcTemplate.query("select pgmq_move_timeout_and_visible_msg_to_pending_then_notify()", stringMapper);
+        Set<String> topics = new LinkedHashSet<>();
+        Map<String, Integer> moved;
+        do {
+            moved = moveTimeoutAndVisibleMsgToPending(true, PgmqConstants.PROMOTE_BATCH_SIZE);
+            topics.addAll(moved.keySet());
+        } while (isFullBatch(moved, PgmqConstants.PROMOTE_BATCH_SIZE));
+
+        return new ArrayList<>(topics);
     }
 
-    public void sendNotify(String topic) {
+    /**
+     * 搬运一批处理超时和到期的延时消息,两类消息各最多limit条,并通知有消息搬运的topic
+     *
+     * @return 本批每个topic搬运的数量,拿不到调度锁时为空
+     */
+    public Map<String, Integer> moveTimeoutAndVisibleMsgToPending(boolean promoteVisible, int limit) {
+        return moveTimeoutAndVisibleMsgToPending(promoteVisible, limit, 0, 1);
+    }
+
+    /**
+     * 搬运一批属于分片shard的消息,即id对shardCount取模等于shard的消息,不同分片可由不同节点同时搬运
+     *
+     * @return 本批每个topic搬运的数量,拿不到该分片的调度锁时为空
+     */
+    public Map<String, Integer> moveTimeoutAndVisibleMsgToPending(boolean promoteVisible, int limit, int shard,
+            int shardCount) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit必须大于0");
+        }
+        if (shard < 0 || shard >= shardCount) {
+            throw new IllegalArgumentException("shard必须在0-(shardCount-1)之间");
+        }
+
+        Map<String, Integer> moved = new LinkedHashMap<>();
+        jdbcTemplate.query("""
+                        select _topic, _count from pgmq_move_timeout_and_visible_msg_to_pending_then_notify(?, ?, ?, ?)
+                        """,
+                (RowCallbackHandler) rs -> moved.put(rs.getString(1), rs.getInt(2)), promoteVisible, limit, shard,
+                shardCount);
+        return moved;
+    }
+
+    /**
+     * 本批搬运数量达到limit时可能还有未搬运的消息
+     */
+    public static boolean isFullBatch(Map<String, Integer> moved, int limit) {
+        int total = 0;
+        for (int count : moved.values()) {
+            total += count;
+        }
+        return total >= limit;
+    }
+
+    /**
+     * 注册节点或刷新节点心跳时间
+     */
+    public void heartbeat(String nodeId) {
+        Objects.requireNonNull(nodeId);
+
+        jdbcTemplate.update("""
+                insert into pgmq_node(node_id, heartbeat_time) values(?, now())
+                    on conflict (node_id) do update set heartbeat_time = excluded.heartbeat_time
+                """, nodeId);
+    }
+
+    /**
+     * 节点订阅topic,只有存在订阅的topic才会发送通知
+     */
+    public void subscribe(String topic, String nodeId) {
+        subscribe(List.of(Objects.requireNonNull(topic)), nodeId);
+    }
+
+    /**
+     * 节点批量订阅topic,已订阅的忽略,用于心跳时补齐订阅
+     */
+    public void subscribe(List<String> topics, String nodeId) {
+        Objects.requireNonNull(topics);
+        Objects.requireNonNull(nodeId);
+        if (topics.isEmpty()) {
+            return;
+        }
+
+        jdbcTemplate.update("""
+                insert into pgmq_subscription(topic, node_id) select t.topic, ? from unnest(?::varchar[]) as t(topic)
+                    on conflict (topic, node_id) do nothing
+                """, nodeId, topics.toArray(String[]::new));
+    }
+
+    /**
+     * 节点取消订阅topic,节点注销时其订阅级联删除
+     */
+    public void unsubscribe(String topic, String nodeId) {
         Objects.requireNonNull(topic);
+        Objects.requireNonNull(nodeId);
+
+        jdbcTemplate.update("delete from pgmq_subscription where topic = ? and node_id = ?", topic, nodeId);
+    }
+
+    public void sendNotify(String topic) {
+        sendNotify(List.of(Objects.requireNonNull(topic)));
+    }
+
+    /**
+     * 写入消息数量未知时通知
+     */
+    public void sendNotify(List<String> topics) {
+        Objects.requireNonNull(topics);
+
+        Map<String, Integer> topicCounts = new LinkedHashMap<>();
+        for (String topic : topics) {
+            topicCounts.put(topic, 0);
+        }
+        sendNotify(topicCounts);
+    }
+
+    /**
+     * 在topic专属通道上发送通知,内容为"消息数量@节点id:topic",数量为0表示未知,没有节点订阅的topic不发送
+     */
+    public void sendNotify(Map<String, Integer> topicCounts) {
+        Objects.requireNonNull(topicCounts);
+        if (topicCounts.isEmpty()) {
+            return;
+        }
 
         try {
-            jdbcTemplate.query("select pg_notify(?, ?)", emptyMapper, PgmqConstants.TOPIC_CHANNEL, topic);
+            jdbcTemplate.query("""
+                            select pg_notify('pgmq_t_' || md5(t.topic), t.count || ? || ':' || t.topic)
+                            from unnest(?::varchar[], ?::int[]) as t(topic, count)
+                            where exists (select 1 from pgmq_subscription s where s.topic = t.topic)
+                            """,
+                    (RowCallbackHandler) ignore -> {
+                    }, senderSuffix(), topicCounts.keySet().toArray(String[]::new),
+                    topicCounts.values().toArray(Integer[]::new));
         } catch (Exception e) {
             log.warn("发送通知失败", e);
         }
     }
 
-    public void sendNotify(List<String> topics) {
+    /**
+     * 查询订阅了topic且心跳未超时的节点
+     */
+    public Map<String, List<String>> getSubscribers(List<String> topics, Duration nodeTimeout) {
         Objects.requireNonNull(topics);
+        Objects.requireNonNull(nodeTimeout);
+
+        Map<String, List<String>> subscribers = new LinkedHashMap<>();
         if (topics.isEmpty()) {
-            return;
+            return subscribers;
         }
 
-        List<Object[]> rows = new ArrayList<>(topics.size());
-        for (String topic : topics) {
-            rows.add(new Object[]{PgmqConstants.TOPIC_CHANNEL, topic});
+        jdbcTemplate.query("""
+                        select s.topic, s.node_id from pgmq_subscription s join pgmq_node n on n.node_id = s.node_id
+                            where s.topic = any(?) and n.heartbeat_time > now() - make_interval(secs => ?)
+                        """,
+                (RowCallbackHandler) rs -> subscribers.computeIfAbsent(rs.getString(1), ignore -> new ArrayList<>())
+                        .add(rs.getString(2)),
+                topics.toArray(String[]::new), nodeTimeout.toMillis() / 1000.0);
+        return subscribers;
+    }
+
+    /**
+     * 在通道上发送内容为空的通知,用于唤醒监听该通道的监听线程
+     */
+    public void sendWakeUp(String channel) {
+        Objects.requireNonNull(channel);
+
+        try {
+            jdbcTemplate.query("select pg_notify(?, '')", (RowCallbackHandler) ignore -> {
+            }, channel);
+        } catch (Exception e) {
+            log.warn("发送唤醒通知失败", e);
         }
+    }
 
+    /**
+     * 通知其他节点有延时消息将在delayMillis后到期
+     */
+    public void sendDelayNotify(long delayMillis) {
         try {
-            jdbcTemplate.query("select pg_notify(?, ?)", emptyMapper, rows);
+            jdbcTemplate.query("select pg_notify(?, ?)", (RowCallbackHandler) ignore -> {
+            }, PgmqConstants.DELAY_CHANNEL, delayMillis + senderSuffix());
         } catch (Exception e) {
-            log.warn("发送通知失败", e);
+            log.warn("发送延时通知失败", e);
+        }
+    }
+
+    /**
+     * 递增topic的水位版本号,不存在时插入,topics不能重复
+     */
+    public void increaseWatermarks(List<String> topics) {
+        Objects.requireNonNull(topics);
+        if (topics.isEmpty()) {
+            return;
         }
+
+        jdbcTemplate.update("""
+                insert into pgmq_topic_watermark(topic, version) select t.topic, 1 from unnest(?::varchar[]) as t(topic)
+                    on conflict (topic) do update set version = pgmq_topic_watermark.version + 1
+                """, (Object) topics.toArray(String[]::new));
+    }
+
+    /**
+     * 查询topic的水位版本号,没有水位的topic不返回
+     */
+    public Map<String, Long> getWatermarks(List<String> topics) {
+        Objects.requireNonNull(topics);
+
+        Map<String, Long> watermarks = new LinkedHashMap<>();
+        if (topics.isEmpty()) {
+            return watermarks;
+        }
+
+        jdbcTemplate.query("select topic, version from pgmq_topic_watermark where topic = any(?)",
+                (RowCallbackHandler) rs -> watermarks.put(rs.getString(1), rs.getLong(2)),
+                (Object) topics.toArray(String[]::new));
+        return watermarks;
+    }
+
+    private String senderSuffix() {
+        return nodeId == null ? "" : PgmqConstants.NOTIFY_SENDER_SEPARATOR + nodeId;
     }
 }
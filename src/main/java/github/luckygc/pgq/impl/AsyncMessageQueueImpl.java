@@ -0,0 +1,190 @@
+package github.luckygc.pgq.impl;
+
+import github.luckygc.pgq.api.AsyncMessageQueue;
+import github.luckygc.pgq.dao.MessageDao;
+import github.luckygc.pgq.model.MessageDO;
+import github.luckygc.pgq.model.PgmqConfig;
+import github.luckygc.pgq.model.PgmqConstants;
+import github.luckygc.pgq.tool.MessageProcessorDispatcher;
+import github.luckygc.pgq.tool.WakeUpTransport;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class AsyncMessageQueueImpl implements AsyncMessageQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncMessageQueueImpl.class);
+
+    private final MessageDao messageDao;
+    private final MessageProcessorDispatcher dispatcher;
+    private final @Nullable WakeUpTransport wakeUpTransport;
+    private final int batchSize;
+    private final long lingerNanos;
+
+    private final ConcurrentLinkedQueue<PendingSend> buffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger bufferSize = new AtomicInteger(0);
+    private final AtomicBoolean startedFlag = new AtomicBoolean(false);
+    private volatile boolean running = true;
+    private volatile @Nullable Thread flusher;
+
+    public AsyncMessageQueueImpl(MessageDao messageDao, MessageProcessorDispatcher dispatcher,
+            @Nullable WakeUpTransport wakeUpTransport, PgmqConfig config) {
+        this.messageDao = Objects.requireNonNull(messageDao);
+        this.dispatcher = Objects.requireNonNull(dispatcher);
+        this.wakeUpTransport = wakeUpTransport;
+        this.batchSize = config.getAsyncBatchSize();
+        this.lingerNanos = config.getAsyncLinger().toNanos();
+    }
+
+    @Override
+    public CompletableFuture<Void> send(String topic, String message) {
+        return send(topic, message, PgmqConstants.MESSAGE_PRIORITY);
+    }
+
+    @Override
+    public CompletableFuture<Void> send(String topic, String message, int priority) {
+        MessageDO messageDO = MessageDO.Builder.create()
+                .topic(topic)
+                .priority(priority)
+                .payload(message)
+                .attempt(0)
+                .build();
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(new IllegalStateException("异步队列已关闭"));
+            return future;
+        }
+
+        ensureFlusherStarted();
+        PendingSend pendingSend = new PendingSend(messageDO, future);
+        buffer.offer(pendingSend);
+        int size = bufferSize.incrementAndGet();
+        // 首条消息开始计时,攒满一批立即刷出
+        if (size == 1 || size >= batchSize) {
+            LockSupport.unpark(flusher);
+        }
+
+        // 与关闭并发时,未被刷出的消息直接失败
+        if (!running && buffer.remove(pendingSend)) {
+            bufferSize.decrementAndGet();
+            future.completeExceptionally(new IllegalStateException("异步队列已关闭"));
+        }
+
+        return future;
+    }
+
+    public void shutdown() {
+        running = false;
+        Thread thread = flusher;
+        if (thread == null) {
+            return;
+        }
+
+        LockSupport.unpark(thread);
+        try {
+            thread.join(PgmqConstants.ASYNC_SHUTDOWN_TIMEOUT.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void ensureFlusherStarted() {
+        if (!startedFlag.compareAndSet(false, true)) {
+            return;
+        }
+
+        Thread thread = new Thread(this::loopFlush, "pgmq-async-flusher");
+        thread.setDaemon(true);
+        flusher = thread;
+        thread.start();
+    }
+
+    private void loopFlush() {
+        while (running) {
+            if (bufferSize.get() == 0) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            long deadline = System.nanoTime() + lingerNanos;
+            long remaining;
+            while (running && bufferSize.get() < batchSize && (remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+
+            flush();
+        }
+
+        // 关闭时刷出剩余消息
+        while (bufferSize.get() > 0) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        List<PendingSend> batch = new ArrayList<>(Math.min(bufferSize.get(), batchSize));
+        PendingSend pendingSend;
+        while (batch.size() < batchSize && (pendingSend = buffer.poll()) != null) {
+            batch.add(pendingSend);
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        bufferSize.addAndGet(-batch.size());
+
+        List<MessageDO> messageDOS = new ArrayList<>(batch.size());
+        Set<String> topics = new LinkedHashSet<>();
+        for (PendingSend send : batch) {
+            messageDOS.add(send.messageDO());
+            topics.add(send.messageDO().getTopic());
+        }
+
+        try {
+            messageDao.multiInsertIntoPending(messageDOS);
+        } catch (Throwable t) {
+            log.error("异步发送消息失败, 数量:{}", batch.size(), t);
+            for (PendingSend send : batch) {
+                send.future().completeExceptionally(t);
+            }
+            return;
+        }
+
+        // 消息已写入,先完成future,唤醒失败不影响发送结果,也不能让刷写线程退出
+        for (PendingSend send : batch) {
+            send.future().complete(null);
+        }
+
+        if (wakeUpTransport != null) {
+            try {
+                wakeUpTransport.sendNotify(new ArrayList<>(topics));
+            } catch (Throwable t) {
+                log.warn("异步发送消息后发送通知失败, topic:{}", topics, t);
+            }
+        }
+
+        for (String topic : topics) {
+            try {
+                dispatcher.dispatch(topic);
+            } catch (Throwable t) {
+                log.warn("异步发送消息后调度topic[{}]失败", topic, t);
+            }
+        }
+    }
+
+    private record PendingSend(MessageDO messageDO, CompletableFuture<Void> future) {
+
+    }
+}
@@ -1,35 +1,70 @@
 package github.luckygc.pgq.impl;
 
 import github.luckygc.pgq.api.DelayMessageQueue;
+import github.luckygc.pgq.api.GroupMessageQueue;
 import github.luckygc.pgq.api.MessageQueue;
 import github.luckygc.pgq.api.PriorityMessageQueue;
 import github.luckygc.pgq.dao.MessageDao;
 import github.luckygc.pgq.model.Message;
 import github.luckygc.pgq.model.MessageDO;
 import github.luckygc.pgq.model.MessageDO.Builder;
+import github.luckygc.pgq.model.PgmqConfig;
 import github.luckygc.pgq.model.PgmqConstants;
+import github.luckygc.pgq.model.SettleResult;
 import github.luckygc.pgq.tool.Checker;
 import github.luckygc.pgq.tool.MessageProcessorDispatcher;
-import github.luckygc.pgq.tool.PgNotifier;
+import github.luckygc.pgq.tool.TransactionBoundSynchronization;
+import github.luckygc.pgq.tool.WakeUpTransport;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import org.jspecify.annotations.Nullable;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
-public class MessageQueueImpl implements MessageQueue, DelayMessageQueue, PriorityMessageQueue {
+public class MessageQueueImpl implements MessageQueue, DelayMessageQueue, PriorityMessageQueue, GroupMessageQueue {
 
 
     private final MessageDao messageDao;
     private final MessageProcessorDispatcher dispatcher;
-    private final @Nullable PgNotifier pgNotifier;
+    private final @Nullable WakeUpTransport wakeUpTransport;
+    private final int copyThreshold;
+    private final boolean transactionSendBuffer;
+    private final Map<String, Duration> processTimeouts = new ConcurrentHashMap<>();
 
     public MessageQueueImpl(MessageDao messageDao, MessageProcessorDispatcher dispatcher,
-            @Nullable PgNotifier pgNotifier) {
+            @Nullable WakeUpTransport wakeUpTransport) {
+        this(messageDao, dispatcher, wakeUpTransport, PgmqConfig.Builder.create().build());
+    }
+
+    public MessageQueueImpl(MessageDao messageDao, MessageProcessorDispatcher dispatcher,
+            @Nullable WakeUpTransport wakeUpTransport, PgmqConfig config) {
         this.messageDao = Objects.requireNonNull(messageDao);
         this.dispatcher = Objects.requireNonNull(dispatcher);
-        this.pgNotifier = pgNotifier;
+        this.wakeUpTransport = wakeUpTransport;
+        this.copyThreshold = Objects.requireNonNull(config).getCopyThreshold();
+        this.transactionSendBuffer = config.isTransactionSendBuffer();
+    }
+
+    /**
+     * 设置topic拉取消息时的处理超时时间,未设置时为{@link PgmqConstants#PROCESS_TIMEOUT}
+     */
+    public void setProcessTimeout(String topic, Duration processTimeout) {
+        Objects.requireNonNull(topic);
+        Objects.requireNonNull(processTimeout);
+        Checker.checkDurationIsPositive(processTimeout);
+        processTimeouts.put(topic, processTimeout);
+    }
+
+    public void removeProcessTimeout(String topic) {
+        processTimeouts.remove(topic);
     }
 
     @Override
@@ -40,10 +75,10 @@ public class MessageQueueImpl implements MessageQueue, DelayMessageQueue, Priori
                 .payload(message)
                 .attempt(0)
                 .build();
-        messageDao.insertIntoPending(messageDO);
+        insertIntoPending(messageDO);
 
-        if (pgNotifier != null) {
-            pgNotifier.sendNotify(topic);
+        if (wakeUpTransport != null) {
+            wakeUpTransport.sendNotify(topic);
         }
 
         dispatcher.dispatch(topic);
@@ -60,7 +95,7 @@ public class MessageQueueImpl implements MessageQueue, DelayMessageQueue, Priori
 
         Checker.checkDurationIsPositive(processDelay);
         LocalDateTime visibleTime = LocalDateTime.now().plus(processDelay);
-        messageDao.insertIntoInvisible(messageDO, visibleTime);
+        insertIntoInvisible(messageDO, visibleTime);
     }
 
     @Override
@@ -71,10 +106,10 @@ public class MessageQueueImpl implements MessageQueue, DelayMessageQueue, Priori
                 .payload(message)
                 .attempt(0)
                 .build();
-        messageDao.insertIntoPending(messageDO);
+        insertIntoPending(messageDO);
 
-        if (pgNotifier != null) {
-            pgNotifier.sendNotify(topic);
+        if (wakeUpTransport != null) {
+            wakeUpTransport.sendNotify(topic);
         }
 
         dispatcher.dispatch(topic);
@@ -95,10 +130,10 @@ public class MessageQueueImpl implements MessageQueue, DelayMessageQueue, Priori
                     .build());
         }
 
-        messageDao.insertIntoPending(messageDOS);
+        insertIntoPending(messageDOS);
 
-        if (pgNotifier != null) {
-            pgNotifier.sendNotify(topic);
+        if (wakeUpTransport != null) {
+            wakeUpTransport.sendNotify(topic, messageDOS.size());
         }
 
         dispatcher.dispatch(topic);
@@ -119,7 +154,7 @@ public class MessageQueueImpl implements MessageQueue, DelayMessageQueue, Priori
 
         Checker.checkDurationIsPositive(processDelay);
         LocalDateTime visibleTime = LocalDateTime.now().plus(processDelay);
-        messageDao.insertIntoInvisible(messageDOS, visibleTime);
+        insertIntoInvisible(messageDOS, visibleTime);
     }
 
     @Override
@@ -135,10 +170,56 @@ public class MessageQueueImpl implements MessageQueue, DelayMessageQueue, Priori
                     .build());
         }
 
-        messageDao.insertIntoPending(messageDOS);
+        insertIntoPending(messageDOS);
+
+        if (wakeUpTransport != null) {
+            wakeUpTransport.sendNotify(topic, messageDOS.size());
+        }
+
+        dispatcher.dispatch(topic);
+    }
+
+    @Override
+    public void send(String topic, String groupKey, String message) {
+        Objects.requireNonNull(groupKey);
+        MessageDO messageDO = MessageDO.Builder.create()
+                .topic(topic)
+                .priority(PgmqConstants.MESSAGE_PRIORITY)
+                .payload(message)
+                .attempt(0)
+                .groupKey(groupKey)
+                .build();
+        insertIntoPending(messageDO);
+
+        if (wakeUpTransport != null) {
+            wakeUpTransport.sendNotify(topic);
+        }
+
+        dispatcher.dispatch(topic);
+    }
+
+    @Override
+    public void send(String topic, String groupKey, List<String> messages) {
+        Objects.requireNonNull(groupKey);
+        Checker.checkMessagesNotEmpty(messages);
+
+        List<MessageDO> messageDOS = new ArrayList<>(messages.size());
+
+        for (String message : messages) {
+            messageDOS.add(Builder.create()
+                    .topic(topic)
+                    .priority(PgmqConstants.MESSAGE_PRIORITY)
+                    .payload(message)
+                    .attempt(0)
+                    .groupKey(groupKey)
+                    .build());
+        }
+
+        insertIntoPending(messageDOS);
 
-        if (pgNotifier != null) {
-            pgNotifier.sendNotify(topic);
+        if (wakeUpTransport != null) {
+            // 同一分组的消息逐条按顺序处理,数量无助于估算消费者数量,按数量未知通知
+            wakeUpTransport.sendNotify(List.of(topic));
         }
 
         dispatcher.dispatch(topic);
@@ -146,7 +227,7 @@ public class MessageQueueImpl implements MessageQueue, DelayMessageQueue, Priori
 
     @Override
     public @Nullable Message poll(String topic) {
-        LocalDateTime processTimeoutTime = LocalDateTime.now().plus(PgmqConstants.PROCESS_TIMEOUT);
+        LocalDateTime processTimeoutTime = LocalDateTime.now().plus(processTimeout(topic));
         List<Message> messages = messageDao.getPendingMessagesAndMoveToProcessing(topic, 1, processTimeoutTime);
         if (messages.isEmpty()) {
             return null;
@@ -158,7 +239,185 @@ public class MessageQueueImpl implements MessageQueue, DelayMessageQueue, Priori
     @Override
     public List<Message> poll(String topic, int maxPoll) {
         Checker.checkMaxPollRange(maxPoll);
-        LocalDateTime processTimeoutTime = LocalDateTime.now().plus(PgmqConstants.PROCESS_TIMEOUT);
+        LocalDateTime processTimeoutTime = LocalDateTime.now().plus(processTimeout(topic));
         return messageDao.getPendingMessagesAndMoveToProcessing(topic, maxPoll, processTimeoutTime);
     }
+
+    @Override
+    public List<Message> poll(String topic, int maxPoll, Duration maxWait) {
+        Objects.requireNonNull(topic);
+        Checker.checkMaxPollRange(maxPoll);
+        Objects.requireNonNull(maxWait);
+
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        dispatcher.beginAwait(topic);
+        try {
+            while (true) {
+                // 先取版本号再查询,查询期间到达的通知不会丢失
+                long signal = dispatcher.currentSignal(topic);
+                List<Message> messages = poll(topic, maxPoll);
+                long remaining = deadline - System.nanoTime();
+                if (!messages.isEmpty() || remaining <= 0) {
+                    return messages;
+                }
+
+                try {
+                    if (!dispatcher.awaitSignal(topic, signal, remaining)) {
+                        return messages;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return messages;
+                }
+            }
+        } finally {
+            dispatcher.endAwait(topic);
+        }
+    }
+
+    @Override
+    public List<Message> poll(Collection<String> topics, int maxPerTopic, int maxTotal) {
+        Objects.requireNonNull(topics);
+        Checker.checkMaxPollRange(maxPerTopic);
+        Checker.checkMaxPollRange(maxTotal);
+        if (topics.isEmpty()) {
+            return List.of();
+        }
+
+        // 一条语句只有一个超时时间,取各topic中最短的,较长的由处理器心跳续期
+        Duration processTimeout = topics.stream().map(this::processTimeout).min(Comparator.naturalOrder())
+                .orElseThrow();
+        LocalDateTime processTimeoutTime = LocalDateTime.now().plus(processTimeout);
+        return messageDao.getPendingMessagesAndMoveToProcessing(new ArrayList<>(new LinkedHashSet<>(topics)),
+                maxPerTopic, maxTotal, processTimeoutTime);
+    }
+
+    @Override
+    public SettleResult ack(List<Message> messages) {
+        return SettleResult.of(toIds(messages), messageDao.deleteProcessingMessages(messages));
+    }
+
+    @Override
+    public SettleResult retry(List<Message> messages) {
+        return SettleResult.of(toIds(messages), messageDao.moveProcessingMessagesToPending(messages));
+    }
+
+    @Override
+    public SettleResult retry(List<Message> messages, Duration processDelay) {
+        Objects.requireNonNull(processDelay);
+        Checker.checkDurationIsPositive(processDelay);
+
+        List<Long> ids = toIds(messages);
+        LocalDateTime visibleTime = LocalDateTime.now().plus(processDelay);
+        return SettleResult.of(ids, messageDao.moveProcessingMessagesToInvisible(messages, visibleTime));
+    }
+
+    @Override
+    public SettleResult dead(List<Message> messages) {
+        return SettleResult.of(toIds(messages), messageDao.moveProcessingMessagesToDead(messages));
+    }
+
+    @Override
+    public SettleResult extendLease(List<Message> messages, Duration processTimeout) {
+        Objects.requireNonNull(processTimeout);
+        Checker.checkDurationIsPositive(processTimeout);
+
+        List<Long> ids = toIds(messages);
+        LocalDateTime timeoutTime = LocalDateTime.now().plus(processTimeout);
+        return SettleResult.of(ids, messageDao.extendProcessingTimeout(messages, timeoutTime));
+    }
+
+    private Duration processTimeout(String topic) {
+        return processTimeouts.getOrDefault(topic, PgmqConstants.PROCESS_TIMEOUT);
+    }
+
+    private List<Long> toIds(List<Message> messages) {
+        Checker.checkMessagesNotEmpty(messages);
+
+        List<Long> ids = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            ids.add(message.getId());
+        }
+        return ids;
+    }
+
+    private void insertIntoPending(MessageDO messageDO) {
+        if (isBufferingInTransaction()) {
+            currentSendBuffer().pending.add(messageDO);
+        } else {
+            messageDao.insertIntoPending(messageDO);
+        }
+    }
+
+    private void insertIntoPending(List<MessageDO> messageDOS) {
+        if (isBufferingInTransaction()) {
+            currentSendBuffer().pending.addAll(messageDOS);
+        } else if (messageDOS.size() >= copyThreshold) {
+            messageDao.copyIntoPending(messageDOS);
+        } else {
+            messageDao.insertIntoPending(messageDOS);
+        }
+    }
+
+    private void insertIntoInvisible(MessageDO messageDO, LocalDateTime visibleTime) {
+        if (isBufferingInTransaction()) {
+            currentSendBuffer().addInvisible(List.of(messageDO), visibleTime);
+        } else {
+            messageDao.insertIntoInvisible(messageDO, visibleTime);
+        }
+    }
+
+    private void insertIntoInvisible(List<MessageDO> messageDOS, LocalDateTime visibleTime) {
+        if (isBufferingInTransaction()) {
+            currentSendBuffer().addInvisible(messageDOS, visibleTime);
+        } else if (messageDOS.size() >= copyThreshold) {
+            messageDao.copyIntoInvisible(messageDOS, visibleTime);
+        } else {
+            messageDao.insertIntoInvisible(messageDOS, visibleTime);
+        }
+    }
+
+    private boolean isBufferingInTransaction() {
+        return transactionSendBuffer && TransactionSynchronizationManager.isActualTransactionActive();
+    }
+
+    private SendBufferSynchronization currentSendBuffer() {
+        return TransactionBoundSynchronization.obtain(this, () -> new SendBufferSynchronization(this));
+    }
+
+    /**
+     * 事务内发送的消息先缓存,提交前统一写入
+     */
+    private class SendBufferSynchronization extends TransactionBoundSynchronization {
+
+        private final List<MessageDO> pending = new ArrayList<>();
+        private final Map<LocalDateTime, List<MessageDO>> invisible = new LinkedHashMap<>();
+
+        SendBufferSynchronization(Object key) {
+            super(key);
+        }
+
+        void addInvisible(List<MessageDO> messageDOS, LocalDateTime visibleTime) {
+            invisible.computeIfAbsent(visibleTime, ignore -> new ArrayList<>()).addAll(messageDOS);
+        }
+
+        @Override
+        public void beforeCommit(boolean readOnly) {
+            if (!pending.isEmpty()) {
+                if (pending.size() >= copyThreshold) {
+                    messageDao.copyIntoPending(pending);
+                } else {
+                    messageDao.multiInsertIntoPending(pending);
+                }
+            }
+
+            for (Map.Entry<LocalDateTime, List<MessageDO>> entry : invisible.entrySet()) {
+                if (entry.getValue().size() >= copyThreshold) {
+                    messageDao.copyIntoInvisible(entry.getValue(), entry.getKey());
+                } else {
+                    messageDao.insertIntoInvisible(entry.getValue(), entry.getKey());
+                }
+            }
+        }
+    }
 }
@@ -1,22 +1,44 @@
 package github.luckygc.pgq.impl;
 
+import github.luckygc.pgq.api.AsyncMessageQueue;
 import github.luckygc.pgq.api.DelayMessageQueue;
+import github.luckygc.pgq.api.GroupMessageQueue;
 import github.luckygc.pgq.api.MessageProcessor;
 import github.luckygc.pgq.api.MessageQueue;
 import github.luckygc.pgq.api.PgmqManager;
 import github.luckygc.pgq.api.PriorityMessageQueue;
 import github.luckygc.pgq.api.handler.MessageHandler;
+import github.luckygc.pgq.dao.DirectDelayMessageDao;
+import github.luckygc.pgq.dao.LeaseMessageDao;
 import github.luckygc.pgq.dao.MessageDao;
 import github.luckygc.pgq.dao.QueueDao;
+import github.luckygc.pgq.model.PgmqConfig;
 import github.luckygc.pgq.model.PgmqConstants;
+import github.luckygc.pgq.model.StorageMode;
+import github.luckygc.pgq.model.TopicExecutorMetrics;
+import github.luckygc.pgq.model.WakeUpMode;
+import github.luckygc.pgq.tool.AdaptivePoller;
+import github.luckygc.pgq.tool.DelayScheduler;
+import github.luckygc.pgq.tool.FairTopicExecutor;
 import github.luckygc.pgq.tool.MessageProcessorDispatcher;
 import github.luckygc.pgq.tool.PgListener;
 import github.luckygc.pgq.tool.PgNotifier;
+import github.luckygc.pgq.tool.SharedTopicPoller;
+import github.luckygc.pgq.tool.TopicChannels;
+import github.luckygc.pgq.tool.WakeUpSpreader;
+import github.luckygc.pgq.tool.WakeUpTransport;
+import github.luckygc.pgq.tool.WatermarkWakeUp;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
@@ -28,32 +50,98 @@ public class PgmqManagerImpl implements PgmqManager {
     private static final Logger log = LoggerFactory.getLogger(PgmqManagerImpl.class);
 
     private final QueueDao queueDao;
+    private final MessageDao messageDao;
     private final MessageQueueImpl messageQueue;
+    private final AsyncMessageQueueImpl asyncMessageQueue;
     private final MessageProcessorDispatcher dispatcher;
+    private final StorageMode storageMode;
+    private final boolean pollDelayedDirectly;
+    private final int promoteShards;
 
     @Nullable
-    private final PgNotifier pgNotifier;
+    private final WakeUpTransport wakeUpTransport;
     @Nullable
     private final PgListener pgListener;
+    @Nullable
+    private final WatermarkWakeUp watermarkWakeUp;
+    @Nullable
+    private final AdaptivePoller adaptivePoller;
+    @Nullable
+    private final WakeUpSpreader wakeUpSpreader;
+    @Nullable
+    private final FairTopicExecutor sharedExecutor;
+    private final SharedTopicPoller sharedPoller;
 
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
 
+    // 延时消息到期时立即搬运,定时任务只作为兜底
+    private final DelayScheduler delayScheduler = new DelayScheduler(this::loadDelays, this::promoteDelayed,
+            PgmqConstants.DELAY_LOAD_HORIZON, PgmqConstants.DELAY_LOAD_LIMIT);
+
+    // 节点心跳,处理中的消息记录节点id,节点宕机后由存活节点立即回收
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Duration nodeTimeout;
+    private final ScheduledExecutorService nodeHeartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "pgmq-node-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public PgmqManagerImpl(JdbcTemplate jdbcTemplate) {
         this(jdbcTemplate, null, null, null);
     }
 
+    public PgmqManagerImpl(JdbcTemplate jdbcTemplate, PgmqConfig config) {
+        this(jdbcTemplate, null, null, null, config);
+    }
+
     public PgmqManagerImpl(JdbcTemplate jdbcTemplate, String jdbcUrl, String username, String password) {
-        this.queueDao = new QueueDao(jdbcTemplate);
+        this(jdbcTemplate, jdbcUrl, username, password, PgmqConfig.Builder.create().build());
+    }
+
+    public PgmqManagerImpl(JdbcTemplate jdbcTemplate, String jdbcUrl, String username, String password,
+            PgmqConfig config) {
+        Objects.requireNonNull(config);
+        this.storageMode = config.getStorageMode();
+        this.pollDelayedDirectly = storageMode == StorageMode.QUEUE_TABLES && config.isPollDelayedDirectly();
+        this.promoteShards = config.getPromoteShards();
+        this.queueDao = new QueueDao(jdbcTemplate, nodeId);
 
         this.dispatcher = new MessageProcessorDispatcher();
+        this.sharedExecutor = config.getSharedExecutorThreads() > 0
+                ? new FairTopicExecutor(config.getSharedExecutorThreads())
+                : null;
 
-        if (jdbcUrl == null) {
-            this.pgNotifier = null;
+        if (config.getWakeUpMode() == WakeUpMode.WATERMARK) {
+            this.watermarkWakeUp = new WatermarkWakeUp(queueDao, dispatcher, delayScheduler::reload,
+                    config.getWatermarkPollInterval());
+            this.wakeUpTransport = watermarkWakeUp;
             this.pgListener = null;
+            this.wakeUpSpreader = null;
+        } else if (config.getWakeUpMode() == WakeUpMode.LOCAL || jdbcUrl == null) {
+            this.watermarkWakeUp = null;
+            this.wakeUpTransport = null;
+            this.pgListener = null;
+            this.wakeUpSpreader = null;
         } else {
             Objects.requireNonNull(username);
-            this.pgNotifier = new PgNotifier(queueDao);
-            this.pgListener = new PgListener(PgmqConstants.TOPIC_CHANNEL, jdbcUrl, username, password, dispatcher);
+            this.watermarkWakeUp = null;
+            this.wakeUpTransport = new PgNotifier(queueDao);
+            PgListener.Options.Builder listenerOptions = PgListener.Options.Builder.create()
+                    .delayScheduler(delayScheduler)
+                    .debounce(config.getNotifyDebounce())
+                    .localNode(nodeId)
+                    .wakeUp(() -> queueDao.sendWakeUp(TopicChannels.nodeChannel(nodeId)));
+            if (config.isSpreadWakeUp()) {
+                this.wakeUpSpreader = new WakeUpSpreader(nodeId, dispatcher, this::hasAvailableMessages,
+                        PgmqConstants.WAKE_UP_FALLBACK_DELAY, PgmqConstants.WAKE_UP_FALLBACK_MAX_DELAY);
+                listenerOptions.spreader(wakeUpSpreader);
+            } else {
+                this.wakeUpSpreader = null;
+            }
+            // 固定监听本节点专属的通道,topic的通道随处理器注册动态监听
+            this.pgListener = new PgListener(TopicChannels.nodeChannel(nodeId), jdbcUrl, username, password,
+                    dispatcher, listenerOptions.build());
             try {
                 this.pgListener.startListen();
             } catch (SQLException e) {
@@ -61,20 +149,144 @@ public class PgmqManagerImpl implements PgmqManager {
             }
         }
 
-        MessageDao messageDao = new MessageDao(jdbcTemplate);
-        this.messageQueue = new MessageQueueImpl(messageDao, dispatcher, pgNotifier);
+        this.nodeTimeout = config.getNodeTimeout();
+        if (storageMode == StorageMode.LEASE_TABLE) {
+            this.messageDao = new LeaseMessageDao(jdbcTemplate, nodeId, this::onDelayed);
+        } else if (pollDelayedDirectly) {
+            this.messageDao = new DirectDelayMessageDao(jdbcTemplate, nodeId, this::onDelayed,
+                    config.isReclaimExpiredOnPoll());
+        } else {
+            this.messageDao = new MessageDao(jdbcTemplate, nodeId, this::onDelayed, config.isReclaimExpiredOnPoll());
+        }
+        this.messageQueue = new MessageQueueImpl(messageDao, dispatcher, wakeUpTransport, config);
+        this.asyncMessageQueue = new AsyncMessageQueueImpl(messageDao, dispatcher, wakeUpTransport, config);
+        this.sharedPoller = new SharedTopicPoller(messageQueue);
+        this.adaptivePoller = config.getAdaptivePollMaxInterval().isZero()
+                ? null
+                : new AdaptivePoller(dispatcher, this::hasAvailableMessages, this::isWakeUpUnavailable,
+                        PgmqConstants.ADAPTIVE_POLL_MIN_INTERVAL, config.getAdaptivePollMaxInterval());
+
+        queueDao.heartbeat(nodeId);
+        if (pgListener != null) {
+            dispatcher.setSubscriptionListener(new TopicSubscriber(pgListener));
+        }
+        long heartbeatInterval = nodeTimeout.toMillis() / 3;
+        nodeHeartbeat.scheduleWithFixedDelay(this::heartbeat, heartbeatInterval, heartbeatInterval,
+                TimeUnit.MILLISECONDS);
 
         scheduler.scheduleWithFixedDelay(this::schedule, 0, 1, TimeUnit.MINUTES);
+        delayScheduler.start();
+        if (watermarkWakeUp != null) {
+            watermarkWakeUp.start();
+        }
+        if (adaptivePoller != null) {
+            adaptivePoller.start();
+        }
+    }
+
+    /**
+     * 未启用跨节点唤醒或监听器正在重连时,其他节点写入的消息需要轮询
+     */
+    private boolean isWakeUpUnavailable() {
+        if (watermarkWakeUp != null) {
+            return false;
+        }
+        return pgListener == null || !pgListener.isHealthy();
+    }
+
+    private boolean hasAvailableMessages(String topic) {
+        return messageDao.hasAvailableMessages(topic);
+    }
+
+    private List<Long> loadDelays(Duration horizon, int limit) {
+        return messageDao.getNextVisibleDelays(horizon, limit);
+    }
+
+    /**
+     * 写入延时消息后加入本节点的延时调度,并通知其他节点
+     */
+    private void onDelayed(LocalDateTime visibleTime) {
+        delayScheduler.schedule(visibleTime);
+        if (wakeUpTransport != null) {
+            wakeUpTransport.sendDelayNotify(visibleTime);
+        }
+    }
+
+    /**
+     * 刷新本节点心跳,并回收心跳超时节点处理中的消息
+     */
+    private void heartbeat() {
+        try {
+            queueDao.heartbeat(nodeId);
+            dispatcher.expireSubscriptions(PgmqConstants.SUBSCRIPTION_LINGER);
+            if (pgListener != null) {
+                // 节点曾被误判宕机时订阅已级联删除,心跳时补齐
+                queueDao.subscribe(new ArrayList<>(dispatcher.subscribedTopics()), nodeId);
+            }
+            if (wakeUpSpreader != null) {
+                wakeUpSpreader.updateSubscribers(
+                        queueDao.getSubscribers(new ArrayList<>(dispatcher.subscribedTopics()), nodeTimeout));
+            }
+
+            List<String> topics = messageDao.moveDeadNodeMessagesToPending(nodeTimeout);
+            if (!topics.isEmpty()) {
+                log.info("已回收宕机节点处理中的消息,topics:{}", topics);
+                notifyAndDispatch(topics);
+            }
+        } catch (Throwable t) {
+            log.error("节点心跳失败", t);
+        }
     }
 
     private void schedule() {
-        List<String> topics = queueDao.moveTimeoutAndVisibleMsgToPendingAndReturnPendingTopics();
+        if (storageMode == StorageMode.LEASE_TABLE) {
+            // 单表模式下到期消息无需搬运,直接唤醒本节点的处理器拉取
+            dispatcher.dispatchAll();
+            return;
+        }
+
+        // 从随机分片开始,各节点优先搬运不同分片,被其他节点占用的分片直接跳过
+        int start = ThreadLocalRandom.current().nextInt(promoteShards);
+        for (int i = 0; i < promoteShards; i++) {
+            promoteShard((start + i) % promoteShards);
+        }
+
+        if (pollDelayedDirectly) {
+            dispatcher.dispatchAll();
+        }
+    }
+
+    /**
+     * 分批搬运,每批提交后立即唤醒处理器,不等待全部搬运完成
+     */
+    private void promoteShard(int shard) {
+        Map<String, Integer> moved;
+        do {
+            moved = queueDao.moveTimeoutAndVisibleMsgToPending(!pollDelayedDirectly,
+                    PgmqConstants.PROMOTE_BATCH_SIZE, shard, promoteShards);
+            notifyAndDispatch(new ArrayList<>(moved.keySet()));
+        } while (QueueDao.isFullBatch(moved, PgmqConstants.PROMOTE_BATCH_SIZE));
+    }
+
+    /**
+     * 延时消息到期,不需要搬运时直接唤醒本节点的处理器拉取
+     */
+    private void promoteDelayed() {
+        if (storageMode == StorageMode.LEASE_TABLE || pollDelayedDirectly) {
+            dispatcher.dispatchAll();
+            return;
+        }
+
+        schedule();
+    }
+
+    private void notifyAndDispatch(List<String> topics) {
         if (topics.isEmpty()) {
             return;
         }
 
-        if (pgNotifier != null) {
-            queueDao.sendNotify(topics);
+        if (wakeUpTransport != null) {
+            wakeUpTransport.sendNotify(topics);
         }
 
         for (String topic : topics) {
@@ -84,12 +296,37 @@ public class PgmqManagerImpl implements PgmqManager {
 
     @Override
     public void shutdown() {
+        asyncMessageQueue.shutdown();
+
         if (pgListener != null) {
             pgListener.stopListen();
         }
+        if (wakeUpSpreader != null) {
+            wakeUpSpreader.shutdown();
+        }
 
+        if (adaptivePoller != null) {
+            adaptivePoller.shutdown();
+        }
         scheduler.shutdownNow();
+        delayScheduler.shutdown();
         dispatcher.shutdown();
+        sharedPoller.shutdown();
+        if (sharedExecutor != null) {
+            sharedExecutor.shutdown();
+        }
+
+        nodeHeartbeat.shutdownNow();
+        try {
+            // 注销节点,未处理完的消息立即交给其他节点
+            notifyAndDispatch(messageDao.moveNodeMessagesToPending(nodeId));
+        } catch (Throwable t) {
+            log.error("注销节点失败,未处理完的消息将在节点心跳超时后被回收", t);
+        }
+        // 注销节点时回收的消息也需要写入水位
+        if (watermarkWakeUp != null) {
+            watermarkWakeUp.shutdown();
+        }
         log.info("pgmq已停止");
     }
 
@@ -108,14 +345,70 @@ public class PgmqManagerImpl implements PgmqManager {
         return messageQueue;
     }
 
+    @Override
+    public GroupMessageQueue groupQueue() {
+        return messageQueue;
+    }
+
+    @Override
+    public AsyncMessageQueue asyncQueue() {
+        return asyncMessageQueue;
+    }
+
+    @Override
+    public List<TopicExecutorMetrics> executorMetrics() {
+        return sharedExecutor == null ? List.of() : sharedExecutor.metrics();
+    }
+
     @Override
     public void registerHandler(MessageHandler messageHandler) {
-        MessageProcessor messageProcessor = new MessageProcessor(messageQueue, messageHandler);
-        dispatcher.register(messageProcessor);
+        MessageProcessor messageProcessor = new MessageProcessor(messageQueue, messageHandler, sharedExecutor,
+                sharedPoller);
+        try {
+            dispatcher.register(messageProcessor);
+        } catch (RuntimeException e) {
+            messageProcessor.shutdown();
+            throw e;
+        }
+
+        messageQueue.setProcessTimeout(messageProcessor.topic(), messageProcessor.processTimeout());
     }
 
     @Override
     public void unregisterHandler(MessageHandler messageHandler) {
         dispatcher.unregister(messageHandler.topic());
+        messageQueue.removeProcessTimeout(messageHandler.topic());
+    }
+
+    /**
+     * 本节点订阅topic时登记到订阅注册表并监听topic的通道,只有存在订阅的topic才会发送通知。
+     * 订阅在心跳线程上执行,不加入调用方的事务;取消订阅由心跳检查过期时执行
+     */
+    private class TopicSubscriber implements MessageProcessorDispatcher.SubscriptionListener {
+
+        private final PgListener listener;
+
+        TopicSubscriber(PgListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void subscribed(String topic) {
+            nodeHeartbeat.execute(() -> {
+                try {
+                    queueDao.subscribe(topic, nodeId);
+                } catch (Throwable t) {
+                    log.error("登记topic[{}]的订阅失败,将在下次心跳时补齐", topic, t);
+                }
+                // 登记后再监听,监听生效时会重新检查消息
+                listener.listen(topic);
+            });
+        }
+
+        @Override
+        public void unsubscribed(String topic) {
+            queueDao.unsubscribe(topic, nodeId);
+            listener.unlisten(topic);
+        }
     }
 }
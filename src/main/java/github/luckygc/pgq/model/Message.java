@@ -2,9 +2,11 @@ package github.luckygc.pgq.model;
 
 import github.luckygc.pgq.dao.MessageDao;
 import github.luckygc.pgq.tool.Checker;
+import github.luckygc.pgq.tool.SettlementBuffer;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.Objects;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,8 +26,14 @@ public class Message {
 
     private final Integer attempt;
 
+    private final @Nullable String groupKey;
+
     private final MessageDao messageDao;
 
+    private final @Nullable SettlementBuffer settlementBuffer;
+
+    private volatile boolean settled;
+
     private Message(Builder builder) {
         this.id = Objects.requireNonNull(builder.id);
         this.createTime = Objects.requireNonNull(builder.createTime);
@@ -33,7 +41,13 @@ public class Message {
         this.topic = Objects.requireNonNull(builder.topic);
         this.payload = Objects.requireNonNull(builder.payload);
         this.attempt = Objects.requireNonNull(builder.attempt);
+        this.groupKey = builder.groupKey;
         this.messageDao = Objects.requireNonNull(builder.messageDao);
+        this.settlementBuffer = builder.settlementBuffer;
+    }
+
+    public Long getId() {
+        return id;
     }
 
     public LocalDateTime getCreateTime() {
@@ -56,22 +70,72 @@ public class Message {
         return attempt;
     }
 
+    /**
+     * 消息分组,同组消息按发送顺序逐条处理,未分组时为null
+     */
+    public @Nullable String getGroupKey() {
+        return groupKey;
+    }
+
+    /**
+     * 是否已调用过delete/dead/retry
+     */
+    public boolean isSettled() {
+        return settled;
+    }
+
+    /**
+     * 延长处理超时时间,从当前时刻起再处理processTimeout,适用于耗时较长的消息
+     *
+     * @return 续期失败说明消息已被处理或已超时被重新投递
+     */
+    public boolean extendLease(Duration processTimeout) {
+        Objects.requireNonNull(processTimeout);
+        Checker.checkDurationIsPositive(processTimeout);
+
+        int extendCount = messageDao.extendProcessingTimeoutById(id, attempt,
+                LocalDateTime.now().plus(processTimeout));
+        if (extendCount == 0) {
+            log.warn("延长消息处理超时时间失败，消息可能已被处理或已超时,id:{}", id);
+            return false;
+        }
+        return true;
+    }
+
     public void delete() {
-        int deleteCount = messageDao.deleteProcessingMessageById(id);
+        settled = true;
+        if (settlementBuffer != null) {
+            settlementBuffer.delete(this);
+            return;
+        }
+
+        int deleteCount = messageDao.deleteProcessingMessageById(id, attempt);
         if (deleteCount == 0) {
             log.warn("删除消息失败，消息可能已被处理,id:{}", id);
         }
     }
 
     public void dead() {
-        int deadCount = messageDao.moveProcessingMessageToDeadById(id);
+        settled = true;
+        if (settlementBuffer != null) {
+            settlementBuffer.dead(this);
+            return;
+        }
+
+        int deadCount = messageDao.moveProcessingMessageToDeadById(id, attempt);
         if (deadCount == 0) {
             log.warn("移动消息到死信队列失败，消息可能已被处理,id:{}", id);
         }
     }
 
     public void retry() {
-        int retryCount = messageDao.moveProcessingMessageToPendingById(id);
+        settled = true;
+        if (settlementBuffer != null) {
+            settlementBuffer.retry(this);
+            return;
+        }
+
+        int retryCount = messageDao.moveProcessingMessageToPendingById(id, attempt);
         if (retryCount == 0) {
             log.warn("重试消息失败，消息可能已被处理,id:{}", id);
         }
@@ -81,8 +145,14 @@ public class Message {
         Objects.requireNonNull(processDelay);
         Checker.checkDurationIsPositive(processDelay);
 
+        settled = true;
+        if (settlementBuffer != null) {
+            settlementBuffer.retry(this, processDelay);
+            return;
+        }
+
         LocalDateTime visibleTime = LocalDateTime.now().plus(processDelay);
-        int retryCount = messageDao.moveProcessingMessageToInvisibleById(id, visibleTime);
+        int retryCount = messageDao.moveProcessingMessageToInvisibleById(id, attempt, visibleTime);
         if (retryCount == 0) {
             log.warn("延迟重试消息失败，消息可能已被处理,id:{}", id);
         }
@@ -96,12 +166,30 @@ public class Message {
         private String topic;
         private Integer priority;
         private Integer attempt;
+        private @Nullable String groupKey;
         private MessageDao messageDao;
+        private @Nullable SettlementBuffer settlementBuffer;
 
         public static Builder create() {
             return new Builder();
         }
 
+        /**
+         * 复制已有消息的所有属性
+         */
+        public Builder from(Message message) {
+            this.id = message.id;
+            this.createTime = message.createTime;
+            this.payload = message.payload;
+            this.topic = message.topic;
+            this.priority = message.priority;
+            this.attempt = message.attempt;
+            this.groupKey = message.groupKey;
+            this.messageDao = message.messageDao;
+            this.settlementBuffer = message.settlementBuffer;
+            return this;
+        }
+
         public Builder id(Long id) {
             this.id = id;
             return this;
@@ -133,12 +221,22 @@ public class Message {
             return this;
         }
 
+        public Builder groupKey(@Nullable String groupKey) {
+            this.groupKey = groupKey;
+            return this;
+        }
+
 
         public Builder messageDao(MessageDao messageDao) {
             this.messageDao = messageDao;
             return this;
         }
 
+        public Builder settlementBuffer(@Nullable SettlementBuffer settlementBuffer) {
+            this.settlementBuffer = settlementBuffer;
+            return this;
+        }
+
         public Message build() {
             return new Message(this);
         }
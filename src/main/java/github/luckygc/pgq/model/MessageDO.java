@@ -2,6 +2,7 @@ package github.luckygc.pgq.model;
 
 import java.time.LocalDateTime;
 import java.util.Objects;
+import org.jspecify.annotations.Nullable;
 
 public class MessageDO {
 
@@ -15,12 +16,15 @@ public class MessageDO {
 
     private final Integer attempt;
 
+    private final @Nullable String groupKey;
+
     private MessageDO(Builder builder) {
         this.createTime = Objects.requireNonNullElseGet(builder.createTime, LocalDateTime::now);
         this.priority = Objects.requireNonNull(builder.priority);
         this.topic = Objects.requireNonNull(builder.topic);
         this.payload = Objects.requireNonNull(builder.payload);
         this.attempt = Objects.requireNonNull(builder.attempt);
+        this.groupKey = builder.groupKey;
     }
 
     public LocalDateTime getCreateTime() {
@@ -43,6 +47,10 @@ public class MessageDO {
         return attempt;
     }
 
+    public @Nullable String getGroupKey() {
+        return groupKey;
+    }
+
     public static class Builder {
 
         private LocalDateTime createTime;
@@ -50,6 +58,7 @@ public class MessageDO {
         private String topic;
         private Integer priority;
         private Integer attempt;
+        private @Nullable String groupKey;
 
         public static Builder create() {
             return new Builder();
@@ -81,6 +90,11 @@ public class MessageDO {
             return this;
         }
 
+        public Builder groupKey(@Nullable String groupKey) {
+            this.groupKey = groupKey;
+            return this;
+        }
+
         public MessageDO build() {
             return new MessageDO(this);
         }
@@ -0,0 +1,341 @@
+package github.luckygc.pgq.model;
+
+import github.luckygc.pgq.tool.Checker;
+import java.time.Duration;
+import java.util.Objects;
+
+public class PgmqConfig {
+
+    /**
+     * 批量发送消息数量达到该值时改用COPY写入
+     */
+    private final int copyThreshold;
+
+    /**
+     * 异步发送攒批的最大消息数量
+     */
+    private final int asyncBatchSize;
+
+    /**
+     * 异步发送攒批的最长等待时间
+     */
+    private final Duration asyncLinger;
+
+    /**
+     * 事务内发送的消息是否缓存到提交前统一写入,开启后事务内不能查询到本事务发送的消息
+     */
+    private final boolean transactionSendBuffer;
+
+    /**
+     * 消息存储方式
+     */
+    private final StorageMode storageMode;
+
+    /**
+     * 所有topic共享的处理线程数,0表示每个topic使用独立线程池
+     */
+    private final int sharedExecutorThreads;
+
+    /**
+     * 节点心跳超时时间,节点每隔该时间的1/3心跳一次
+     */
+    private final Duration nodeTimeout;
+
+    /**
+     * 是否直接从不可见队列拉取到期消息,仅对{@link StorageMode#QUEUE_TABLES}有效
+     */
+    private final boolean pollDelayedDirectly;
+
+    /**
+     * 定时任务搬运消息的分片数,各节点同时搬运不同分片
+     */
+    private final int promoteShards;
+
+    /**
+     * 拉取时是否同时领取处理超时的消息,仅对{@link StorageMode#QUEUE_TABLES}有效
+     */
+    private final boolean reclaimExpiredOnPoll;
+
+    /**
+     * 监听器收到通知后等待该时间再统一调度,窗口内同一topic只调度一次
+     */
+    private final Duration notifyDebounce;
+
+    /**
+     * 跨节点唤醒方式
+     */
+    private final WakeUpMode wakeUpMode;
+
+    /**
+     * 水位唤醒模式下查询和写入水位的间隔
+     */
+    private final Duration watermarkPollInterval;
+
+    /**
+     * 无法被其他节点唤醒时兜底轮询的最大间隔,0表示不轮询
+     */
+    private final Duration adaptivePollMaxInterval;
+
+    /**
+     * 收到通知时是否只唤醒部分订阅节点,仅对{@link WakeUpMode#NOTIFY}有效
+     */
+    private final boolean spreadWakeUp;
+
+    private PgmqConfig(Builder builder) {
+        this.copyThreshold = builder.copyThreshold;
+        this.asyncBatchSize = builder.asyncBatchSize;
+        this.asyncLinger = builder.asyncLinger;
+        this.transactionSendBuffer = builder.transactionSendBuffer;
+        this.storageMode = builder.storageMode;
+        this.sharedExecutorThreads = builder.sharedExecutorThreads;
+        this.nodeTimeout = builder.nodeTimeout;
+        this.pollDelayedDirectly = builder.pollDelayedDirectly;
+        this.promoteShards = builder.promoteShards;
+        this.reclaimExpiredOnPoll = builder.reclaimExpiredOnPoll;
+        this.notifyDebounce = builder.notifyDebounce;
+        this.wakeUpMode = builder.wakeUpMode;
+        this.watermarkPollInterval = builder.watermarkPollInterval;
+        this.adaptivePollMaxInterval = builder.adaptivePollMaxInterval;
+        this.spreadWakeUp = builder.spreadWakeUp;
+    }
+
+    public int getCopyThreshold() {
+        return copyThreshold;
+    }
+
+    public int getAsyncBatchSize() {
+        return asyncBatchSize;
+    }
+
+    public Duration getAsyncLinger() {
+        return asyncLinger;
+    }
+
+    public boolean isTransactionSendBuffer() {
+        return transactionSendBuffer;
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    public int getSharedExecutorThreads() {
+        return sharedExecutorThreads;
+    }
+
+    public Duration getNodeTimeout() {
+        return nodeTimeout;
+    }
+
+    public boolean isPollDelayedDirectly() {
+        return pollDelayedDirectly;
+    }
+
+    public int getPromoteShards() {
+        return promoteShards;
+    }
+
+    public boolean isReclaimExpiredOnPoll() {
+        return reclaimExpiredOnPoll;
+    }
+
+    public Duration getNotifyDebounce() {
+        return notifyDebounce;
+    }
+
+    public WakeUpMode getWakeUpMode() {
+        return wakeUpMode;
+    }
+
+    public Duration getWatermarkPollInterval() {
+        return watermarkPollInterval;
+    }
+
+    public Duration getAdaptivePollMaxInterval() {
+        return adaptivePollMaxInterval;
+    }
+
+    public boolean isSpreadWakeUp() {
+        return spreadWakeUp;
+    }
+
+    public static class Builder {
+
+        private int copyThreshold = PgmqConstants.COPY_THRESHOLD;
+        private int asyncBatchSize = PgmqConstants.ASYNC_BATCH_SIZE;
+        private Duration asyncLinger = PgmqConstants.ASYNC_LINGER;
+        private boolean transactionSendBuffer;
+        private StorageMode storageMode = StorageMode.QUEUE_TABLES;
+        private int sharedExecutorThreads;
+        private Duration nodeTimeout = PgmqConstants.NODE_TIMEOUT;
+        private boolean pollDelayedDirectly;
+        private int promoteShards = PgmqConstants.PROMOTE_SHARDS;
+        private boolean reclaimExpiredOnPoll;
+        private Duration notifyDebounce = Duration.ZERO;
+        private WakeUpMode wakeUpMode = WakeUpMode.NOTIFY;
+        private Duration watermarkPollInterval = PgmqConstants.WATERMARK_POLL_INTERVAL;
+        private Duration adaptivePollMaxInterval = PgmqConstants.ADAPTIVE_POLL_MAX_INTERVAL;
+        private boolean spreadWakeUp;
+
+        public static Builder create() {
+            return new Builder();
+        }
+
+        /**
+         * 范围[1,∞)
+         */
+        public Builder copyThreshold(int copyThreshold) {
+            if (copyThreshold < 1) {
+                throw new IllegalArgumentException("copyThreshold必须大于0");
+            }
+
+            this.copyThreshold = copyThreshold;
+            return this;
+        }
+
+        /**
+         * 范围[1,5000]
+         */
+        public Builder asyncBatchSize(int asyncBatchSize) {
+            if (asyncBatchSize < 1 || asyncBatchSize > 5000) {
+                throw new IllegalArgumentException("asyncBatchSize必须在1-5000之间");
+            }
+
+            this.asyncBatchSize = asyncBatchSize;
+            return this;
+        }
+
+        public Builder asyncLinger(Duration asyncLinger) {
+            Objects.requireNonNull(asyncLinger);
+            Checker.checkDurationIsPositive(asyncLinger);
+
+            this.asyncLinger = asyncLinger;
+            return this;
+        }
+
+        public Builder transactionSendBuffer(boolean transactionSendBuffer) {
+            this.transactionSendBuffer = transactionSendBuffer;
+            return this;
+        }
+
+        public Builder storageMode(StorageMode storageMode) {
+            this.storageMode = Objects.requireNonNull(storageMode);
+            return this;
+        }
+
+        /**
+         * 范围[0,1000],0表示不使用共享执行器
+         */
+        public Builder sharedExecutorThreads(int sharedExecutorThreads) {
+            if (sharedExecutorThreads < 0 || sharedExecutorThreads > 1000) {
+                throw new IllegalArgumentException("sharedExecutorThreads必须在0-1000之间");
+            }
+
+            this.sharedExecutorThreads = sharedExecutorThreads;
+            return this;
+        }
+
+        /**
+         * 不能小于3秒
+         */
+        public Builder nodeTimeout(Duration nodeTimeout) {
+            Objects.requireNonNull(nodeTimeout);
+            if (nodeTimeout.compareTo(Duration.ofSeconds(3)) < 0) {
+                throw new IllegalArgumentException("nodeTimeout不能小于3秒");
+            }
+
+            this.nodeTimeout = nodeTimeout;
+            return this;
+        }
+
+        /**
+         * 开启后到期的延时消息不再搬运到待处理队列,拉取时直接领取,延时和重试消息少写一次
+         */
+        public Builder pollDelayedDirectly(boolean pollDelayedDirectly) {
+            this.pollDelayedDirectly = pollDelayedDirectly;
+            return this;
+        }
+
+        /**
+         * 范围[1,64],集群所有节点应使用相同的值
+         */
+        public Builder promoteShards(int promoteShards) {
+            if (promoteShards < 1 || promoteShards > 64) {
+                throw new IllegalArgumentException("promoteShards必须在1-64之间");
+            }
+
+            this.promoteShards = promoteShards;
+            return this;
+        }
+
+        /**
+         * 开启后处理超时的消息在下一次拉取时即可被重新领取,不需要等待定时任务搬运
+         */
+        public Builder reclaimExpiredOnPoll(boolean reclaimExpiredOnPoll) {
+            this.reclaimExpiredOnPoll = reclaimExpiredOnPoll;
+            return this;
+        }
+
+        /**
+         * 范围[0,1秒],0表示只合并已到达的通知
+         */
+        public Builder notifyDebounce(Duration notifyDebounce) {
+            Objects.requireNonNull(notifyDebounce);
+            if (notifyDebounce.isNegative() || notifyDebounce.compareTo(Duration.ofSeconds(1)) > 0) {
+                throw new IllegalArgumentException("notifyDebounce必须在0-1秒之间");
+            }
+
+            this.notifyDebounce = notifyDebounce;
+            return this;
+        }
+
+        /**
+         * 默认{@link WakeUpMode#NOTIFY},未提供数据库连接信息时只唤醒本节点
+         */
+        public Builder wakeUpMode(WakeUpMode wakeUpMode) {
+            this.wakeUpMode = Objects.requireNonNull(wakeUpMode);
+            return this;
+        }
+
+        /**
+         * 范围[1毫秒,1秒]
+         */
+        public Builder watermarkPollInterval(Duration watermarkPollInterval) {
+            Objects.requireNonNull(watermarkPollInterval);
+            if (watermarkPollInterval.compareTo(Duration.ofMillis(1)) < 0
+                    || watermarkPollInterval.compareTo(Duration.ofSeconds(1)) > 0) {
+                throw new IllegalArgumentException("watermarkPollInterval必须在1毫秒-1秒之间");
+            }
+
+            this.watermarkPollInterval = watermarkPollInterval;
+            return this;
+        }
+
+        /**
+         * 范围0或[10毫秒,1分钟],0表示不启用兜底轮询,只依赖定时任务
+         */
+        public Builder adaptivePollMaxInterval(Duration adaptivePollMaxInterval) {
+            Objects.requireNonNull(adaptivePollMaxInterval);
+            if (!adaptivePollMaxInterval.isZero()
+                    && (adaptivePollMaxInterval.compareTo(PgmqConstants.ADAPTIVE_POLL_MIN_INTERVAL) < 0
+                    || adaptivePollMaxInterval.compareTo(Duration.ofMinutes(1)) > 0)) {
+                throw new IllegalArgumentException("adaptivePollMaxInterval必须为0或在10毫秒-1分钟之间");
+            }
+
+            this.adaptivePollMaxInterval = adaptivePollMaxInterval;
+            return this;
+        }
+
+        /**
+         * 开启后按topic把订阅节点排名,根据通知中的消息数量只唤醒排名靠前的节点,其余节点稍后检查一次
+         */
+        public Builder spreadWakeUp(boolean spreadWakeUp) {
+            this.spreadWakeUp = spreadWakeUp;
+            return this;
+        }
+
+        public PgmqConfig build() {
+            return new PgmqConfig(this);
+        }
+    }
+}
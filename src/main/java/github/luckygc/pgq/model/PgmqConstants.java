@@ -17,7 +17,111 @@ public class PgmqConstants {
     public static final int MAX_POLL = 50;
     public static final int MESSAGE_HANDLER_THREAD_COUNT = 1;
 
+    /**
+     * 默认批量发送改用COPY写入的消息数量阈值
+     */
+    public static final int COPY_THRESHOLD = 1000;
+
+    /**
+     * 默认异步发送攒批数量
+     */
+    public static final int ASYNC_BATCH_SIZE = 500;
+
+    /**
+     * 默认异步发送攒批等待时间
+     */
+    public static final Duration ASYNC_LINGER = Duration.ofNanos(500_000);
+
+    /**
+     * 关闭时等待异步发送刷出的最长时间
+     */
+    public static final Duration ASYNC_SHUTDOWN_TIMEOUT = Duration.ofSeconds(10);
+
+    /**
+     * 共享拉取单条语句最多拉取的消息数量
+     */
+    public static final int SHARED_POLL_MAX_TOTAL = 500;
+
+    /**
+     * 默认流水线模式预取消息数量
+     */
+    public static final int PREFETCH_SIZE = 100;
+
+    /**
+     * 默认延迟确认批量提交数量
+     */
+    public static final int DEFERRED_ACK_BATCH_SIZE = 100;
+
+    /**
+     * 默认延迟确认最长未提交时间
+     */
+    public static final Duration DEFERRED_ACK_MAX_DELAY = Duration.ofMillis(100);
+
+    /**
+     * 默认节点心跳超时时间,超过该时间未心跳的节点视为宕机
+     */
+    public static final Duration NODE_TIMEOUT = Duration.ofSeconds(30);
+
+    /**
+     * 定时任务每批搬运的最大消息数量,每批单独提交
+     */
+    public static final int PROMOTE_BATCH_SIZE = 1000;
+
+    /**
+     * 默认搬运分片数,每个分片使用独立的咨询锁
+     */
+    public static final int PROMOTE_SHARDS = 4;
+
+    /**
+     * 水位唤醒模式下默认查询水位变化的间隔,写入的水位也按该间隔合并提交
+     */
+    public static final Duration WATERMARK_POLL_INTERVAL = Duration.ofMillis(10);
+
+    /**
+     * 兜底轮询的最小间隔,检查到有消息后重置为该值
+     */
+    public static final Duration ADAPTIVE_POLL_MIN_INTERVAL = Duration.ofMillis(10);
+
+    /**
+     * 兜底轮询默认的最大间隔,没有消息时间隔翻倍直到该值
+     */
+    public static final Duration ADAPTIVE_POLL_MAX_INTERVAL = Duration.ofSeconds(2);
+
+    /**
+     * 分散唤醒时未被唤醒的节点等待该时间后检查topic是否仍有消息
+     */
+    public static final Duration WAKE_UP_FALLBACK_DELAY = Duration.ofMillis(500);
+
+    /**
+     * 分散唤醒时未被唤醒的节点检查后调度却没有拉取到消息时,检查的等待时间翻倍直到该值
+     */
+    public static final Duration WAKE_UP_FALLBACK_MAX_DELAY = Duration.ofSeconds(8);
+
+    /**
+     * 没有处理器和等待者的topic保留订阅的时间,避免长轮询反复订阅和取消订阅,由节点心跳检查过期
+     */
+    public static final Duration SUBSCRIPTION_LINGER = Duration.ofMinutes(1);
+
     public static final int PGMQ_ID = 199738;
     public static final int SCHEDULER_ID = 1;
-    public static final String TOPIC_CHANNEL = "pgmq_topic_channel";
+
+    /**
+     * 延时消息通知通道,内容为距到期的毫秒数
+     */
+    public static final String DELAY_CHANNEL = "pgmq_delay_channel";
+
+    /**
+     * 通知内容中分隔发送节点id的字符,节点发送的通知为"内容@节点id:topic"或"延时毫秒数@节点id"
+     */
+    public static final char NOTIFY_SENDER_SEPARATOR = '@';
+
+    /**
+     * 延时调度每次从数据库加载的到期时间范围
+     */
+    public static final Duration DELAY_LOAD_HORIZON = Duration.ofMinutes(1);
+
+    /**
+     * 延时调度每次从数据库加载的最大到期时间数量
+     */
+    public static final int DELAY_LOAD_LIMIT = 1000;
 }
@@ -0,0 +1,48 @@
+package github.luckygc.pgq.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 批量确认/重试/死信的结果,未成功的消息可能已被其他消费者处理或已超时被重新投递
+ */
+public class SettleResult {
+
+    private final List<Long> succeededIds;
+    private final List<Long> failedIds;
+
+    private SettleResult(List<Long> succeededIds, List<Long> failedIds) {
+        this.succeededIds = List.copyOf(succeededIds);
+        this.failedIds = List.copyOf(failedIds);
+    }
+
+    public static SettleResult of(List<Long> requestedIds, Collection<Long> settledIds) {
+        Set<Long> settled = new HashSet<>(settledIds);
+        List<Long> succeededIds = new ArrayList<>(settled.size());
+        List<Long> failedIds = new ArrayList<>();
+        for (Long id : requestedIds) {
+            if (settled.contains(id)) {
+                succeededIds.add(id);
+            } else {
+                failedIds.add(id);
+            }
+        }
+
+        return new SettleResult(succeededIds, failedIds);
+    }
+
+    public List<Long> getSucceededIds() {
+        return succeededIds;
+    }
+
+    public List<Long> getFailedIds() {
+        return failedIds;
+    }
+
+    public boolean isAllSucceeded() {
+        return failedIds.isEmpty();
+    }
+}
@@ -0,0 +1,14 @@
+package github.luckygc.pgq.model;
+
+public enum StorageMode {
+
+    /**
+     * 待处理、处理中、不可见、死信四张表,状态变更时在表之间搬运消息
+     */
+    QUEUE_TABLES,
+
+    /**
+     * 单表租约,状态变更为原地更新,死信仍写入死信表
+     */
+    LEASE_TABLE
+}
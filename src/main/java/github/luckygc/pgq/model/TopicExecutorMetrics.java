@@ -0,0 +1,72 @@
+package github.luckygc.pgq.model;
+
+import java.time.Duration;
+
+/**
+ * 共享执行器中单个topic的执行统计快照
+ */
+public class TopicExecutorMetrics {
+
+    private final String topic;
+    private final int queuedTasks;
+    private final int runningTasks;
+    private final long startedTasks;
+    private final long completedTasks;
+    private final Duration totalQueueWait;
+    private final Duration maxQueueWait;
+
+    public TopicExecutorMetrics(String topic, int queuedTasks, int runningTasks, long startedTasks,
+            long completedTasks, Duration totalQueueWait, Duration maxQueueWait) {
+        this.topic = topic;
+        this.queuedTasks = queuedTasks;
+        this.runningTasks = runningTasks;
+        this.startedTasks = startedTasks;
+        this.completedTasks = completedTasks;
+        this.totalQueueWait = totalQueueWait;
+        this.maxQueueWait = maxQueueWait;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * 排队等待执行的任务数
+     */
+    public int getQueuedTasks() {
+        return queuedTasks;
+    }
+
+    public int getRunningTasks() {
+        return runningTasks;
+    }
+
+    /**
+     * 已开始执行的任务数
+     */
+    public long getStartedTasks() {
+        return startedTasks;
+    }
+
+    /**
+     * 已执行结束的任务数,包括执行失败的任务
+     */
+    public long getCompletedTasks() {
+        return completedTasks;
+    }
+
+    /**
+     * 任务从提交到开始执行的累计等待时间
+     */
+    public Duration getTotalQueueWait() {
+        return totalQueueWait;
+    }
+
+    public Duration getMaxQueueWait() {
+        return maxQueueWait;
+    }
+
+    public Duration getAverageQueueWait() {
+        return startedTasks == 0 ? Duration.ZERO : totalQueueWait.dividedBy(startedTasks);
+    }
+}
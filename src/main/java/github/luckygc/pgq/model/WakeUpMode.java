@@ -0,0 +1,19 @@
+package github.luckygc.pgq.model;
+
+public enum WakeUpMode {
+
+    /**
+     * 通过LISTEN/NOTIFY唤醒其他节点,需要提供数据库连接信息,pg_notify提交时需要获取全局锁
+     */
+    NOTIFY,
+
+    /**
+     * 只唤醒本节点的处理器,其他节点依赖轮询或定时任务
+     */
+    LOCAL,
+
+    /**
+     * 有新消息时合并递增topic的水位版本号,各节点定时查询版本号变化,不使用pg_notify
+     */
+    WATERMARK
+}
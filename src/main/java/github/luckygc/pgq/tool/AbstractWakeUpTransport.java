@@ -0,0 +1,99 @@
+package github.luckygc.pgq.tool;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * 事务内的唤醒按topic和到期时间去重,提交后统一发送
+ */
+public abstract class AbstractWakeUpTransport implements WakeUpTransport {
+
+    public static final int UNKNOWN_COUNT = 0;
+
+    @Override
+    public void sendNotify(String topic) {
+        sendNotify(topic, 1);
+    }
+
+    @Override
+    public void sendNotify(String topic, int count) {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            currentSynchronization().add(topic, count);
+        } else {
+            doSendNotify(Map.of(topic, count));
+        }
+    }
+
+    @Override
+    public void sendNotify(List<String> topics) {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            WakeUpSynchronization synchronization = currentSynchronization();
+            for (String topic : topics) {
+                synchronization.add(topic, UNKNOWN_COUNT);
+            }
+        } else if (!topics.isEmpty()) {
+            Map<String, Integer> topicCounts = new LinkedHashMap<>();
+            for (String topic : topics) {
+                topicCounts.put(topic, UNKNOWN_COUNT);
+            }
+            doSendNotify(topicCounts);
+        }
+    }
+
+    @Override
+    public void sendDelayNotify(LocalDateTime visibleTime) {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            currentSynchronization().visibleTimes.add(visibleTime);
+        } else {
+            doSendDelayNotify(delayMillis(visibleTime));
+        }
+    }
+
+    /**
+     * 发送topic的唤醒,topicCounts不为空,值为写入的消息数量,{@link #UNKNOWN_COUNT}表示未知
+     */
+    protected abstract void doSendNotify(Map<String, Integer> topicCounts);
+
+    /**
+     * 发送延时消息的唤醒,delayMillis为距到期的毫秒数
+     */
+    protected abstract void doSendDelayNotify(long delayMillis);
+
+    private static long delayMillis(LocalDateTime visibleTime) {
+        return Math.max(0, Duration.between(LocalDateTime.now(), visibleTime).toMillis());
+    }
+
+    private WakeUpSynchronization currentSynchronization() {
+        return TransactionBoundSynchronization.obtain(this, () -> new WakeUpSynchronization(this));
+    }
+
+    private class WakeUpSynchronization extends TransactionBoundSynchronization {
+
+        private final Map<String, Integer> topicCounts = new LinkedHashMap<>();
+        private final Set<LocalDateTime> visibleTimes = new LinkedHashSet<>();
+
+        WakeUpSynchronization(Object key) {
+            super(key);
+        }
+
+        void add(String topic, int count) {
+            topicCounts.merge(topic, count, Integer::sum);
+        }
+
+        @Override
+        public void afterCommit() {
+            if (!topicCounts.isEmpty()) {
+                doSendNotify(topicCounts);
+            }
+            for (LocalDateTime visibleTime : visibleTimes) {
+                doSendDelayNotify(delayMillis(visibleTime));
+            }
+        }
+    }
+}
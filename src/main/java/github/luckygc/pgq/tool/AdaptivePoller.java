@@ -0,0 +1,123 @@
+package github.luckygc.pgq.tool;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 无法被其他节点唤醒时的兜底轮询,未启用监听或监听器正在重连时,其他节点写入的消息不必等待定时任务
+ * <p>
+ * 每个topic单独退避:检查到有消息时调度处理器,首次检查到或上次调度后处理器确实拉取到了消息时把间隔重置为minInterval,
+ * 否则间隔翻倍直到maxInterval。有消息但拉取不到(如分组队头消息处理中)或处理器已满负荷时同样退避,不会持续空转查询。
+ * 恢复唤醒后停止轮询并清空退避状态,下次启用时从minInterval开始
+ */
+public class AdaptivePoller {
+
+    private static final Logger log = LoggerFactory.getLogger(AdaptivePoller.class);
+
+    private final MessageProcessorDispatcher dispatcher;
+    private final Predicate<String> probe;
+    private final BooleanSupplier enabled;
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+
+    // 只在轮询线程中访问
+    private final Map<String, Backoff> backoffs = new HashMap<>();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "pgmq-adaptive-poller");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param probe 检查topic是否有可拉取的消息
+     * @param enabled 返回true时轮询,即当前无法被其他节点唤醒
+     */
+    public AdaptivePoller(MessageProcessorDispatcher dispatcher, Predicate<String> probe, BooleanSupplier enabled,
+            Duration minInterval, Duration maxInterval) {
+        this.dispatcher = Objects.requireNonNull(dispatcher);
+        this.probe = Objects.requireNonNull(probe);
+        this.enabled = Objects.requireNonNull(enabled);
+        Objects.requireNonNull(minInterval);
+        Objects.requireNonNull(maxInterval);
+        Checker.checkDurationIsPositive(minInterval);
+        if (maxInterval.compareTo(minInterval) < 0) {
+            throw new IllegalArgumentException("maxInterval不能小于minInterval");
+        }
+
+        this.minIntervalNanos = minInterval.toNanos();
+        this.maxIntervalNanos = maxInterval.toNanos();
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(this::pollDueTopics, minIntervalNanos, minIntervalNanos,
+                TimeUnit.NANOSECONDS);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void pollDueTopics() {
+        if (!enabled.getAsBoolean()) {
+            backoffs.clear();
+            return;
+        }
+
+        Set<String> topics = dispatcher.subscribedTopics();
+        backoffs.keySet().retainAll(topics);
+
+        long now = System.nanoTime();
+        for (String topic : topics) {
+            Backoff backoff = backoffs.computeIfAbsent(topic, ignore -> new Backoff(now));
+            if (now - backoff.nextPollAt < 0) {
+                continue;
+            }
+
+            // 满负荷时处理器的拉取循环仍在运行,不需要检查和调度
+            boolean hit = !dispatcher.isSaturated(topic) && probe(topic);
+            long claimed = dispatcher.claimedCount(topic);
+            boolean progressed = !backoff.dispatched || claimed != backoff.claimed;
+            backoff.interval = hit && progressed ? minIntervalNanos : Math.min(backoff.interval * 2, maxIntervalNanos);
+            backoff.claimed = claimed;
+            backoff.dispatched = hit;
+
+            if (hit) {
+                dispatcher.dispatch(topic);
+            }
+            backoff.nextPollAt = now + backoff.interval;
+        }
+    }
+
+    private boolean probe(String topic) {
+        try {
+            return probe.test(topic);
+        } catch (Throwable t) {
+            log.warn("检查topic[{}]是否有消息失败", topic, t);
+            return false;
+        }
+    }
+
+    private class Backoff {
+
+        private long nextPollAt;
+        private long interval = minIntervalNanos;
+        // 上次检查时是否调度了处理器,以及当时处理器累计拉取到的消息数量
+        private boolean dispatched;
+        private long claimed;
+
+        Backoff(long nextPollAt) {
+            this.nextPollAt = nextPollAt;
+        }
+    }
+}
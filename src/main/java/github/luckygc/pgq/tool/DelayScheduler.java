@@ -0,0 +1,241 @@
+package github.luckygc.pgq.tool;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * 延时消息到期调度,把即将到期的时间加载到时间轮,到期时立即触发搬运,不依赖定时任务的1分钟间隔
+ * <p>
+ * 每隔horizon从数据库加载一次未来horizon内的到期时间;本节点和其他节点发送的延时消息直接加入时间轮,不需要查询。
+ * 时间轮中已有的到期时间不会重复加入,节点与数据库之间时钟偏差导致提前搬运而遗漏的消息由下一次加载补上。
+ * 没有消息到期时查询频率与原定时任务相同
+ */
+public class DelayScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(DelayScheduler.class);
+
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SIZE = 128;
+
+    private final DueDelayLoader loader;
+    private final Runnable promoter;
+    private final long horizonMillis;
+    private final int loadLimit;
+    private final long origin = System.nanoTime();
+
+    private final Object lock = new Object();
+    private final TimingWheel wheel = new TimingWheel(TICK_MILLIS, WHEEL_SIZE, 0);
+    // 时间轮中尚未到期的格子,重复加载的到期时间不再加入
+    private final TreeSet<Long> scheduledTicks = new TreeSet<>();
+    private boolean loadRequested = true;
+    private boolean promoteRequested;
+    private long nextLoadAt;
+    private boolean running;
+    private @Nullable Thread thread;
+
+    /**
+     * @param loader 加载horizon内的到期时间,返回距数据库当前时间的毫秒数,升序,最多loadLimit条
+     * @param promoter 有延时消息到期时调用
+     */
+    public DelayScheduler(DueDelayLoader loader, Runnable promoter, Duration horizon, int loadLimit) {
+        this.loader = Objects.requireNonNull(loader);
+        this.promoter = Objects.requireNonNull(promoter);
+        Objects.requireNonNull(horizon);
+        Checker.checkDurationIsPositive(horizon);
+        if (loadLimit < 1) {
+            throw new IllegalArgumentException("loadLimit必须大于0");
+        }
+
+        this.horizonMillis = horizon.toMillis();
+        this.loadLimit = loadLimit;
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (running) {
+                throw new IllegalStateException("延时调度已启动");
+            }
+
+            running = true;
+            Thread loopThread = new Thread(this::loop, "pgmq-delay-scheduler");
+            loopThread.setDaemon(true);
+            thread = loopThread;
+            loopThread.start();
+        }
+    }
+
+    /**
+     * 本节点写入延时消息后调用,事务内写入时在提交后加入时间轮
+     */
+    public void schedule(LocalDateTime visibleTime) {
+        Objects.requireNonNull(visibleTime);
+
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            TransactionBoundSynchronization.obtain(this, () -> new ScheduleSynchronization(this))
+                    .visibleTimes.add(visibleTime);
+        } else {
+            scheduleAfter(Duration.between(LocalDateTime.now(), visibleTime).toMillis());
+        }
+    }
+
+    /**
+     * 在delayMillis后触发一次搬运,超出horizon的由后续加载负责
+     */
+    public void scheduleAfter(long delayMillis) {
+        if (delayMillis > horizonMillis) {
+            return;
+        }
+
+        synchronized (lock) {
+            long deadline = nowMillis() + Math.max(0, delayMillis);
+            boolean earlier = deadline < wheel.nextExpiration();
+            if (!add(deadline)) {
+                promoteRequested = true;
+                lock.notifyAll();
+            } else if (earlier) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 其他节点写入了延时消息但不知道到期时间时调用,立即重新加载
+     */
+    public void reload() {
+        synchronized (lock) {
+            loadRequested = true;
+            lock.notifyAll();
+        }
+    }
+
+    public void shutdown() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            boolean load;
+            boolean promote;
+            synchronized (lock) {
+                if (!running) {
+                    return;
+                }
+
+                long now = nowMillis();
+                load = loadRequested || now >= nextLoadAt;
+                int expired = wheel.advance(now);
+                scheduledTicks.headSet(now / TICK_MILLIS, true).clear();
+                promote = promoteRequested || expired > 0;
+                loadRequested = false;
+                promoteRequested = false;
+
+                if (!load && !promote) {
+                    long waitMillis = Math.min(wheel.nextExpiration(), nextLoadAt) - now;
+                    try {
+                        lock.wait(Math.max(1, waitMillis));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    continue;
+                }
+            }
+
+            if (promote) {
+                promote();
+            }
+            if (load) {
+                load();
+            }
+        }
+    }
+
+    private void promote() {
+        try {
+            promoter.run();
+        } catch (Throwable t) {
+            log.error("搬运到期延时消息失败", t);
+        }
+    }
+
+    private void load() {
+        List<Long> delays;
+        try {
+            delays = loader.load(Duration.ofMillis(horizonMillis), loadLimit);
+        } catch (Throwable t) {
+            log.error("加载延时消息到期时间失败", t);
+            delays = List.of();
+        }
+
+        synchronized (lock) {
+            long now = nowMillis();
+            for (long delay : delays) {
+                if (!add(now + delay)) {
+                    promoteRequested = true;
+                }
+            }
+
+            // 达到上限时在最后一条到期后继续加载
+            nextLoadAt = delays.size() >= loadLimit
+                    ? now + Math.max(TICK_MILLIS, delays.get(delays.size() - 1))
+                    : now + horizonMillis;
+        }
+    }
+
+    /**
+     * 加入时间轮,同一格或下一格已有到期时间时视为重复,两次加载的计算结果可能相差几毫秒
+     *
+     * @return 到期时间不足一格时返回false,调用方应立即搬运
+     */
+    private boolean add(long deadline) {
+        long tick = deadline / TICK_MILLIS;
+        if (!scheduledTicks.subSet(tick, true, tick + 1, true).isEmpty()) {
+            return true;
+        }
+
+        if (!wheel.add(deadline)) {
+            return false;
+        }
+        scheduledTicks.add(tick);
+        return true;
+    }
+
+    private long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - origin);
+    }
+
+    @FunctionalInterface
+    public interface DueDelayLoader {
+
+        List<Long> load(Duration horizon, int limit);
+    }
+
+    private class ScheduleSynchronization extends TransactionBoundSynchronization {
+
+        private final List<LocalDateTime> visibleTimes = new ArrayList<>();
+
+        ScheduleSynchronization(Object key) {
+            super(key);
+        }
+
+        @Override
+        public void afterCommit() {
+            // 提交后同步器仍处于激活状态,不能再经过schedule,否则会加入到正在遍历的列表
+            for (LocalDateTime visibleTime : visibleTimes) {
+                scheduleAfter(Duration.between(LocalDateTime.now(), visibleTime).toMillis());
+            }
+        }
+    }
+}
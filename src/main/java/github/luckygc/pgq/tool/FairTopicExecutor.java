@@ -0,0 +1,330 @@
+package github.luckygc.pgq.tool;
+
+import github.luckygc.pgq.model.TopicExecutorMetrics;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 多个topic共享的固定大小执行器,按topic限制最大并发,topic之间按权重做差额轮询(DRR)调度
+ * <p>
+ * 每个topic通过{@link #lane}获得一个独立的ExecutorService视图,关闭视图只影响该topic。
+ * 工作线程由所有topic共享,关闭视图时不中断线程,只标记该topic正在执行的任务已取消,任务通过{@link #isCurrentTaskCancelled}自行退出
+ */
+public class FairTopicExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(FairTopicExecutor.class);
+
+    // 工作线程当前执行的任务
+    private static final ThreadLocal<Task> CURRENT_TASK = new ThreadLocal<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final Condition taskFinished = lock.newCondition();
+
+    // 有排队任务的topic,按轮询顺序排列
+    private final List<Lane> activeLanes = new ArrayList<>();
+    private final Map<String, Lane> laneMap = new ConcurrentHashMap<>();
+    private final List<Thread> workers;
+    private int cursor;
+    private volatile boolean shutdown;
+
+    public FairTopicExecutor(int threadCount) {
+        if (threadCount < 1 || threadCount > 1000) {
+            throw new IllegalArgumentException("sharedExecutorThreads必须在1-1000之间");
+        }
+
+        this.workers = new ArrayList<>(threadCount);
+        for (int i = 1; i <= threadCount; i++) {
+            Thread worker = new Thread(this::loopRunTask, "pgmq-shared-worker-%d".formatted(i));
+            worker.setDaemon(true);
+            worker.setUncaughtExceptionHandler((t, e) -> log.error("线程 {} 发生未捕获异常", t.getName(), e));
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * 获取topic的执行视图,同一topic重复获取会替换之前的视图
+     *
+     * @param maxConcurrency 该topic同时执行的最大任务数
+     * @param weight 每轮调度最多连续执行的任务数,范围[1,100]
+     */
+    public ExecutorService lane(String topic, int maxConcurrency, int weight) {
+        Objects.requireNonNull(topic);
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency必须大于0");
+        }
+        if (weight < 1 || weight > 100) {
+            throw new IllegalArgumentException("weight必须在1-100之间");
+        }
+
+        Lane lane = new Lane(topic, maxConcurrency, weight);
+        Lane previous = laneMap.put(topic, lane);
+        if (previous != null) {
+            previous.shutdown();
+        }
+        return lane;
+    }
+
+    public List<TopicExecutorMetrics> metrics() {
+        lock.lock();
+        try {
+            List<TopicExecutorMetrics> metrics = new ArrayList<>(laneMap.size());
+            for (Lane lane : laneMap.values()) {
+                metrics.add(new TopicExecutorMetrics(lane.topic, lane.queue.size(), lane.running, lane.started,
+                        lane.completed, Duration.ofNanos(lane.totalWaitNanos), Duration.ofNanos(lane.maxWaitNanos)));
+            }
+            return metrics;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 当前线程正在执行的共享执行器任务所属的topic视图是否已被shutdownNow,不在共享执行器中执行时返回false
+     */
+    public static boolean isCurrentTaskCancelled() {
+        Task task = CURRENT_TASK.get();
+        return task != null && task.cancelled;
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        for (Lane lane : laneMap.values()) {
+            lane.shutdownNow();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private void loopRunTask() {
+        while (!shutdown) {
+            Task task;
+            lock.lock();
+            try {
+                while ((task = nextTask()) == null) {
+                    if (shutdown) {
+                        return;
+                    }
+                    workAvailable.await();
+                }
+            } catch (InterruptedException e) {
+                // 只有整体关闭才中断工作线程,由循环条件退出
+                continue;
+            } finally {
+                lock.unlock();
+            }
+
+            runTask(task);
+        }
+    }
+
+    /**
+     * 调用方需持有锁,跳过已达最大并发的topic,每个topic每轮最多连续取weight个任务
+     */
+    private @Nullable Task nextTask() {
+        int size = activeLanes.size();
+        for (int i = 0; i < size; i++) {
+            if (cursor >= activeLanes.size()) {
+                cursor = 0;
+            }
+
+            Lane lane = activeLanes.get(cursor);
+            if (lane.running >= lane.maxConcurrency) {
+                cursor++;
+                continue;
+            }
+
+            if (lane.deficit <= 0) {
+                lane.deficit += lane.weight;
+            }
+
+            lane.deficit--;
+            lane.running++;
+            lane.started++;
+            Task task = Objects.requireNonNull(lane.queue.poll());
+            lane.runningTasks.add(task);
+            long waitNanos = System.nanoTime() - task.enqueueNanos;
+            lane.totalWaitNanos += waitNanos;
+            lane.maxWaitNanos = Math.max(lane.maxWaitNanos, waitNanos);
+
+            if (lane.queue.isEmpty()) {
+                lane.deficit = 0;
+                activeLanes.remove(cursor);
+            } else if (lane.deficit <= 0) {
+                cursor++;
+            }
+            return task;
+        }
+
+        return null;
+    }
+
+    private void runTask(Task task) {
+        Lane lane = task.lane;
+        CURRENT_TASK.set(task);
+        try {
+            task.runnable.run();
+        } catch (Throwable t) {
+            log.error("执行任务失败, topic:{}", lane.topic, t);
+        } finally {
+            CURRENT_TASK.remove();
+            // 清除任务自己设置的中断标记,避免影响下一个任务
+            Thread.interrupted();
+
+            lock.lock();
+            try {
+                lane.runningTasks.remove(task);
+                lane.running--;
+                lane.completed++;
+                // 释放的并发名额可能让其他排队任务可执行
+                workAvailable.signal();
+                taskFinished.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class Task {
+
+        private final Lane lane;
+        private final Runnable runnable;
+        private final long enqueueNanos = System.nanoTime();
+        private volatile boolean cancelled;
+
+        Task(Lane lane, Runnable runnable) {
+            this.lane = lane;
+            this.runnable = runnable;
+        }
+    }
+
+    private class Lane extends AbstractExecutorService {
+
+        private final String topic;
+        private final int maxConcurrency;
+        private final int weight;
+        private final Deque<Task> queue = new ArrayDeque<>();
+        // 正在执行的任务,只在持有锁时访问
+        private final Set<Task> runningTasks = new HashSet<>();
+        private int running;
+        private int deficit;
+        private long started;
+        private long completed;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+        private boolean closed;
+
+        Lane(String topic, int maxConcurrency, int weight) {
+            this.topic = topic;
+            this.maxConcurrency = maxConcurrency;
+            this.weight = weight;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            Objects.requireNonNull(command);
+
+            lock.lock();
+            try {
+                if (closed || shutdown) {
+                    throw new RejectedExecutionException("topic[%s]的执行器已关闭".formatted(topic));
+                }
+
+                if (queue.isEmpty()) {
+                    activeLanes.add(this);
+                }
+                queue.add(new Task(this, command));
+                workAvailable.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            lock.lock();
+            try {
+                closed = true;
+            } finally {
+                lock.unlock();
+            }
+            laneMap.remove(topic, this);
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            List<Runnable> dropped = new ArrayList<>();
+            lock.lock();
+            try {
+                closed = true;
+                if (!queue.isEmpty()) {
+                    activeLanes.remove(this);
+                    for (Task task : queue) {
+                        dropped.add(task.runnable);
+                    }
+                    queue.clear();
+                }
+                // 工作线程共享,中断可能落到其他topic的任务上,只标记取消
+                for (Task task : runningTasks) {
+                    task.cancelled = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            laneMap.remove(topic, this);
+            return dropped;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return closed;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            lock.lock();
+            try {
+                return closed && running == 0 && queue.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long remaining = unit.toNanos(timeout);
+            lock.lock();
+            try {
+                while (!(closed && running == 0 && queue.isEmpty())) {
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    remaining = taskFinished.awaitNanos(remaining);
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package github.luckygc.pgq.tool;
+
+import github.luckygc.pgq.api.MessagePoller;
+import github.luckygc.pgq.model.Message;
+import github.luckygc.pgq.model.SettleResult;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 单个topic处理中消息的租约续期,每隔processTimeout的1/3以一条语句为所有未处理完的消息续期
+ * <p>
+ * 没有处理中消息时停止心跳,心跳线程空闲后自动回收
+ */
+public class LeaseKeeper {
+
+    private static final Logger log = LoggerFactory.getLogger(LeaseKeeper.class);
+
+    private final MessagePoller messagePoller;
+    private final Duration processTimeout;
+    private final long intervalNanos;
+    private final ScheduledThreadPoolExecutor heartbeat;
+
+    // 按id记录,续期时需要拉取时的attempt作为租约令牌
+    private final Map<Long, Message> inFlight = new HashMap<>();
+    private @Nullable ScheduledFuture<?> scheduledHeartbeat;
+
+    public LeaseKeeper(MessagePoller messagePoller, String topic, Duration processTimeout) {
+        this.messagePoller = Objects.requireNonNull(messagePoller);
+        Objects.requireNonNull(topic);
+        Objects.requireNonNull(processTimeout);
+        if (processTimeout.compareTo(Duration.ofSeconds(1)) < 0) {
+            throw new IllegalArgumentException("processTimeout不能小于1秒");
+        }
+
+        this.processTimeout = processTimeout;
+        this.intervalNanos = processTimeout.toNanos() / 3;
+        this.heartbeat = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "pgmq-lease-%s".formatted(topic));
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        heartbeat.allowCoreThreadTimeOut(true);
+        heartbeat.setRemoveOnCancelPolicy(true);
+    }
+
+    public Duration processTimeout() {
+        return processTimeout;
+    }
+
+    public void track(List<Message> messages) {
+        synchronized (inFlight) {
+            for (Message message : messages) {
+                inFlight.put(message.getId(), message);
+            }
+            startHeartbeat();
+        }
+    }
+
+    public void untrack(Message message) {
+        synchronized (inFlight) {
+            inFlight.remove(message.getId());
+        }
+    }
+
+    public void untrack(List<Message> messages) {
+        synchronized (inFlight) {
+            for (Message message : messages) {
+                inFlight.remove(message.getId());
+            }
+        }
+    }
+
+    public void shutdown() {
+        heartbeat.shutdownNow();
+    }
+
+    private void startHeartbeat() {
+        if (scheduledHeartbeat != null || inFlight.isEmpty() || heartbeat.isShutdown()) {
+            return;
+        }
+
+        scheduledHeartbeat = heartbeat.scheduleWithFixedDelay(this::extendLease, intervalNanos, intervalNanos,
+                TimeUnit.NANOSECONDS);
+    }
+
+    void extendLease() {
+        List<Message> messages;
+        synchronized (inFlight) {
+            if (inFlight.isEmpty()) {
+                if (scheduledHeartbeat != null) {
+                    scheduledHeartbeat.cancel(false);
+                    scheduledHeartbeat = null;
+                }
+                return;
+            }
+            messages = new ArrayList<>(inFlight.values());
+        }
+
+        try {
+            SettleResult result = messagePoller.extendLease(messages, processTimeout);
+            if (!result.isAllSucceeded()) {
+                // 续期期间刚被确认的消息也会续期失败,属于正常情况;已被重新领取的消息不再续期
+                log.debug("部分消息续期失败，消息可能已被处理或已超时,ids:{}", result.getFailedIds());
+                Set<Long> failedIds = new HashSet<>(result.getFailedIds());
+                synchronized (inFlight) {
+                    for (Message message : messages) {
+                        if (failedIds.contains(message.getId())) {
+                            inFlight.remove(message.getId(), message);
+                        }
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            log.error("消息续期失败", t);
+        }
+    }
+}
@@ -1,12 +1,16 @@
 package github.luckygc.pgq.tool;
 
 import github.luckygc.pgq.api.MessageProcessor;
+import java.time.Duration;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.transaction.support.TransactionSynchronization;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 public class MessageProcessorDispatcher {
@@ -14,12 +18,17 @@ public class MessageProcessorDispatcher {
     private static final Logger log = LoggerFactory.getLogger(MessageProcessorDispatcher.class);
 
     private final Map<String, MessageProcessor> processorMap = new ConcurrentHashMap<>();
+    private final Map<String, TopicSignal> signalMap = new ConcurrentHashMap<>();
+    private final Map<String, Subscription> subscriptionMap = new ConcurrentHashMap<>();
+    private volatile @Nullable SubscriptionListener subscriptionListener;
 
     public void register(MessageProcessor messageProcessor) {
         String topic = messageProcessor.topic();
         if (processorMap.putIfAbsent(topic, messageProcessor) != null) {
             throw new IllegalStateException("当前已存在topic[%s]的消息处理器".formatted(topic));
         }
+
+        acquireSubscription(topic);
     }
 
     public void unregister(String topic) {
@@ -27,29 +36,137 @@ public class MessageProcessorDispatcher {
         if (noProcessor) {
             throw new IllegalStateException("未找到topic[%s]的消息处理器".formatted(topic));
         }
+
+        releaseSubscription(topic);
+    }
+
+    /**
+     * 本节点关注的topic,包括注册了处理器的topic、正在等待唤醒的topic和订阅尚未过期的topic
+     */
+    public Set<String> subscribedTopics() {
+        return new LinkedHashSet<>(subscriptionMap.keySet());
+    }
+
+    /**
+     * 取消没有处理器和等待者且空闲超过linger的订阅
+     */
+    public void expireSubscriptions(Duration linger) {
+        long lingerNanos = linger.toNanos();
+        long now = System.nanoTime();
+        for (Subscription subscription : subscriptionMap.values()) {
+            synchronized (subscription) {
+                if (subscription.refs > 0 || now - subscription.releasedNanos < lingerNanos) {
+                    continue;
+                }
+                // 持有锁直到移除,同一topic的订阅等待取消订阅完成后重新创建
+                subscription.expired = true;
+                fireUnsubscribed(subscription.topic);
+                subscriptionMap.remove(subscription.topic, subscription);
+            }
+        }
+    }
+
+    /**
+     * topic的处理器每次拉取的最大数量,没有处理器时为1
+     */
+    public int maxPoll(String topic) {
+        MessageProcessor processor = processorMap.get(Objects.requireNonNull(topic));
+        return processor == null ? 1 : processor.maxPoll();
+    }
+
+    /**
+     * topic的处理器累计拉取到的消息数量,没有处理器时为0
+     */
+    public long claimedCount(String topic) {
+        MessageProcessor processor = processorMap.get(Objects.requireNonNull(topic));
+        return processor == null ? 0 : processor.claimedCount();
+    }
+
+    /**
+     * topic的处理器是否已满负荷,没有处理器时为false
+     */
+    public boolean isSaturated(String topic) {
+        MessageProcessor processor = processorMap.get(Objects.requireNonNull(topic));
+        return processor != null && processor.isSaturated();
+    }
+
+    /**
+     * 本节点关注的topic变化时回调,用于按topic监听通知
+     */
+    public void setSubscriptionListener(@Nullable SubscriptionListener subscriptionListener) {
+        this.subscriptionListener = subscriptionListener;
     }
 
     public void dispatch(String topic) {
         Objects.requireNonNull(topic);
 
-        MessageProcessor messageProcessor = processorMap.get(topic);
-        if (messageProcessor == null) {
+        if (!processorMap.containsKey(topic) && !signalMap.containsKey(topic)) {
             return;
         }
 
         if (TransactionSynchronizationManager.isActualTransactionActive()) {
-            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
-
-                @Override
-                public void afterCommit() {
-                    tryProcess(messageProcessor);
-                }
-            });
+            // 同一事务内按topic去重,提交后统一调度
+            TransactionBoundSynchronization.obtain(this, () -> new DispatchSynchronization(this)).topics.add(topic);
         } else {
-            tryProcess(messageProcessor);
+            wakeUp(topic);
+        }
+    }
+
+    /**
+     * 调度所有已注册的消息处理器,并唤醒所有等待中的拉取
+     */
+    public void dispatchAll() {
+        for (TopicSignal signal : signalMap.values()) {
+            signal.signal();
+        }
+
+        for (MessageProcessor processor : processorMap.values()) {
+            tryProcess(processor);
         }
     }
 
+    /**
+     * 开始等待topic的唤醒,topic未订阅时先订阅,结束后必须调用{@link #endAwait}
+     */
+    public void beginAwait(String topic) {
+        Objects.requireNonNull(topic);
+
+        acquireSubscription(topic);
+        signalMap.compute(topic, (ignore, signal) -> {
+            if (signal == null) {
+                signal = new TopicSignal();
+            }
+            signal.waiters++;
+            return signal;
+        });
+    }
+
+    /**
+     * 结束等待topic的唤醒,没有等待者且没有处理器时订阅保留到过期
+     */
+    public void endAwait(String topic) {
+        Objects.requireNonNull(topic);
+
+        signalMap.computeIfPresent(topic, (ignore, signal) -> --signal.waiters > 0 ? signal : null);
+        releaseSubscription(topic);
+    }
+
+    /**
+     * 当前topic的唤醒版本号,需在查询消息前获取,配合{@link #awaitSignal}避免丢失唤醒
+     */
+    public long currentSignal(String topic) {
+        return topicSignal(topic).generation;
+    }
+
+    /**
+     * 等待topic被调度,版本号已变化时立即返回
+     *
+     * @return 是否在超时前被唤醒
+     */
+    public boolean awaitSignal(String topic, long signal, long timeoutNanos) throws InterruptedException {
+        return topicSignal(topic).await(signal, timeoutNanos);
+    }
+
     public void shutdown() {
         for (MessageProcessor processor : processorMap.values()) {
             try {
@@ -60,6 +177,86 @@ public class MessageProcessorDispatcher {
         }
     }
 
+    private TopicSignal topicSignal(String topic) {
+        TopicSignal signal = signalMap.get(Objects.requireNonNull(topic));
+        if (signal == null) {
+            throw new IllegalStateException("未开始等待topic[%s]的唤醒".formatted(topic));
+        }
+        return signal;
+    }
+
+    /**
+     * 处理器和等待者各持有一次订阅,同一topic的订阅和取消订阅串行执行
+     */
+    private void acquireSubscription(String topic) {
+        while (true) {
+            Subscription subscription = subscriptionMap.computeIfAbsent(topic, Subscription::new);
+            synchronized (subscription) {
+                if (subscription.expired) {
+                    // 已被取消订阅并移除,重新创建
+                    continue;
+                }
+                subscription.refs++;
+                if (!subscription.subscribed) {
+                    subscription.subscribed = true;
+                    fireSubscribed(topic);
+                }
+                return;
+            }
+        }
+    }
+
+    private void releaseSubscription(String topic) {
+        Subscription subscription = subscriptionMap.get(topic);
+        if (subscription == null) {
+            return;
+        }
+
+        synchronized (subscription) {
+            if (subscription.refs > 0 && --subscription.refs == 0) {
+                subscription.releasedNanos = System.nanoTime();
+            }
+        }
+    }
+
+    private void fireSubscribed(String topic) {
+        SubscriptionListener listener = subscriptionListener;
+        if (listener == null) {
+            return;
+        }
+
+        try {
+            listener.subscribed(topic);
+        } catch (Throwable t) {
+            log.error("订阅topic[{}]失败", topic, t);
+        }
+    }
+
+    private void fireUnsubscribed(String topic) {
+        SubscriptionListener listener = subscriptionListener;
+        if (listener == null) {
+            return;
+        }
+
+        try {
+            listener.unsubscribed(topic);
+        } catch (Throwable t) {
+            log.error("取消订阅topic[{}]失败", topic, t);
+        }
+    }
+
+    private void wakeUp(String topic) {
+        TopicSignal signal = signalMap.get(topic);
+        if (signal != null) {
+            signal.signal();
+        }
+
+        MessageProcessor messageProcessor = processorMap.get(topic);
+        if (messageProcessor != null) {
+            tryProcess(messageProcessor);
+        }
+    }
+
     private void tryProcess(MessageProcessor processor) {
         try {
             processor.asyncProcess();
@@ -67,4 +264,68 @@ public class MessageProcessorDispatcher {
             log.error("调度消息处理器失败", t);
         }
     }
+
+    private class DispatchSynchronization extends TransactionBoundSynchronization {
+
+        private final Set<String> topics = new LinkedHashSet<>();
+
+        DispatchSynchronization(Object key) {
+            super(key);
+        }
+
+        @Override
+        public void afterCommit() {
+            for (String topic : topics) {
+                wakeUp(topic);
+            }
+        }
+    }
+
+    private static class Subscription {
+
+        private final String topic;
+        // 以下字段只在持有当前对象锁时访问
+        private int refs;
+        private boolean subscribed;
+        private boolean expired;
+        private long releasedNanos;
+
+        Subscription(String topic) {
+            this.topic = topic;
+        }
+    }
+
+    public interface SubscriptionListener {
+
+        void subscribed(String topic);
+
+        void unsubscribed(String topic);
+    }
+
+    /**
+     * 单个topic的唤醒信号,所有等待线程共享监听连接收到的通知,不占用数据库连接
+     */
+    private static class TopicSignal {
+
+        private volatile long generation;
+        // 只在signalMap的compute中修改
+        private int waiters;
+
+        synchronized void signal() {
+            generation++;
+            notifyAll();
+        }
+
+        synchronized boolean await(long signal, long timeoutNanos) throws InterruptedException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (generation == signal) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+    }
 }
@@ -1,10 +1,18 @@
 package github.luckygc.pgq.tool;
 
+import github.luckygc.pgq.model.PgmqConstants;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.LockSupport;
@@ -29,17 +37,76 @@ public class PgListener {
     private final String username;
     private final String password;
     private final MessageProcessorDispatcher dispatcher;
+    private final @Nullable DelayScheduler delayScheduler;
+    private final long debounceNanos;
+    private final @Nullable String localNode;
+    private final @Nullable Runnable wakeUp;
+    private final @Nullable WakeUpSpreader spreader;
+
+    // 需要监听的topic由调用方线程修改,监听线程在每次等待前同步到连接上
+    private final Set<String> listenTopics = ConcurrentHashMap.newKeySet();
+    private final Set<String> listeningTopics = new HashSet<>();
 
     private final AtomicBoolean runningFlag = new AtomicBoolean(false);
     private volatile @Nullable PgConnection con;
+    // 连接正常并已监听所有通道时为true,读取通知失败到重新监听成功之间为false
+    private volatile boolean healthy;
 
     public PgListener(String channel, String jdbcUrl, String username, String password,
             MessageProcessorDispatcher dispatcher) {
+        this(channel, jdbcUrl, username, password, dispatcher, Options.Builder.create().build());
+    }
+
+    public PgListener(String channel, String jdbcUrl, String username, String password,
+            MessageProcessorDispatcher dispatcher, Options options) {
         this.channel = Objects.requireNonNull(channel);
         this.jdbcUrl = Objects.requireNonNull(jdbcUrl);
         this.username = Objects.requireNonNull(username);
         this.password = password;
         this.dispatcher = Objects.requireNonNull(dispatcher);
+        Objects.requireNonNull(options);
+        this.delayScheduler = options.delayScheduler;
+        this.debounceNanos = options.debounce.toNanos();
+        this.localNode = options.localNode;
+        this.wakeUp = options.wakeUp;
+        this.spreader = options.spreader;
+    }
+
+    /**
+     * 监听topic的通道,监听线程在下一次等待前生效,生效后调度一次topic以补上生效前发出的通知
+     */
+    public void listen(String topic) {
+        if (listenTopics.add(Objects.requireNonNull(topic))) {
+            wakeUpListenThread();
+        }
+    }
+
+    /**
+     * 取消监听topic的通道,监听线程在下一次等待前生效
+     */
+    public void unlisten(String topic) {
+        if (listenTopics.remove(Objects.requireNonNull(topic))) {
+            wakeUpListenThread();
+        }
+    }
+
+    private void wakeUpListenThread() {
+        if (wakeUp == null || !runningFlag.get()) {
+            return;
+        }
+
+        try {
+            wakeUp.run();
+        } catch (Throwable t) {
+            log.warn("唤醒监听线程失败,将在等待超时后生效", t);
+        }
+    }
+
+    /**
+     * 监听器是否正在正常接收通知
+     */
+    public boolean isHealthy() {
+        return healthy && runningFlag.get();
     }
 
     public void startListen() throws SQLException {
@@ -63,26 +130,22 @@ public class PgListener {
     private void listenChannel() {
         while (runningFlag.get()) {
             try {
-                checkConnection();
+                syncTopicChannels();
                 PGNotification[] notifications = Objects.requireNonNull(con)
                         .getNotifications(LISTEN_CHANNEL_TIMEOUT_MILLIS);
-                if (notifications == null) {
+                if (notifications == null || notifications.length == 0) {
+                    // 只在等待超时后检查连接,收到通知时不额外往返
+                    checkConnection();
                     continue;
                 }
 
-                for (PGNotification notification : notifications) {
-                    String topic = notification.getParameter();
-                    int pid = notification.getPID();
-                    log.debug("收到消息, topic:{}, pid:{}", topic, pid);
-
-                    try {
-                        dispatcher.dispatch(topic);
-                    } catch (Throwable t) {
-                        log.error("消息处理器调度失败", t);
-                    }
-                }
+                NotificationBatch batch = new NotificationBatch();
+                batch.addAll(notifications);
+                drainNotifications(batch);
+                batch.dispatch();
             } catch (SQLException e) {
                 log.error("读取通知失败", e);
+                healthy = false;
                 LockSupport.parkNanos(FIRST_RECONNECT_DELAY_NANOS);
                 reconnect();
             }
@@ -90,18 +153,70 @@ public class PgListener {
         closeConnectionQuietly();
     }
 
+    /**
+     * 读取已到达的通知,开启防抖时继续等待到窗口结束
+     */
+    private void drainNotifications(NotificationBatch batch) throws SQLException {
+        PgConnection connection = Objects.requireNonNull(con);
+        long deadline = System.nanoTime() + debounceNanos;
+        long remainingMillis;
+        while ((remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0) {
+            batch.addAll(connection.getNotifications(Math.toIntExact(remainingMillis)));
+        }
+
+        PGNotification[] pending;
+        do {
+            // 不带超时时只读取已到达的通知,不阻塞
+            pending = connection.getNotifications();
+            batch.addAll(pending);
+        } while (pending != null && pending.length > 0);
+    }
+
+    private void syncTopicChannels() throws SQLException {
+        Set<String> toListen = new HashSet<>(listenTopics);
+        toListen.removeAll(listeningTopics);
+        Set<String> toUnlisten = new HashSet<>(listeningTopics);
+        toUnlisten.removeAll(listenTopics);
+        if (toListen.isEmpty() && toUnlisten.isEmpty()) {
+            return;
+        }
+
+        try (Statement statement = Objects.requireNonNull(con).createStatement()) {
+            for (String topic : toListen) {
+                statement.execute("LISTEN %s".formatted(TopicChannels.topicChannel(topic)));
+                listeningTopics.add(topic);
+            }
+            for (String topic : toUnlisten) {
+                statement.execute("UNLISTEN %s".formatted(TopicChannels.topicChannel(topic)));
+                listeningTopics.remove(topic);
+            }
+        }
+
+        log.debug("监听topic变更, 新增:{}, 取消:{}", toListen, toUnlisten);
+        for (String topic : toListen) {
+            dispatcher.dispatch(topic);
+        }
+    }
+
     private void connectAndStartListenChannel() throws SQLException {
         Connection raw = DriverManager.getConnection(jdbcUrl, username, password);
         con = raw.unwrap(PgConnection.class);
+        listeningTopics.clear();
 
         try (Statement statement = Objects.requireNonNull(con).createStatement()) {
             statement.execute("LISTEN %s".formatted(channel));
+            if (delayScheduler != null) {
+                statement.execute("LISTEN %s".formatted(PgmqConstants.DELAY_CHANNEL));
+            }
         }
+        syncTopicChannels();
+        healthy = true;
 
         log.debug("已建立连接,正在监听通道: {}", channel);
     }
 
     private void reconnect() {
+        healthy = false;
         closeConnectionQuietly();
         int attempt = 1;
         while (runningFlag.get()) {
@@ -135,4 +250,173 @@ public class PgListener {
             }
         }
     }
+
+    /**
+     * 一次读取到的通知,按topic和延时去重后统一调度
+     */
+    private class NotificationBatch {
+
+        // topic及窗口内写入的消息总数,0表示未知
+        private final Map<String, Integer> topics = new LinkedHashMap<>();
+        private final Set<Long> delays = new LinkedHashSet<>();
+        private int received;
+
+        void addAll(PGNotification @Nullable [] notifications) {
+            if (notifications == null) {
+                return;
+            }
+
+            for (PGNotification notification : notifications) {
+                received++;
+                String payload = notification.getParameter();
+                if (PgmqConstants.DELAY_CHANNEL.equals(notification.getName())) {
+                    addDelay(payload);
+                } else if (!payload.isEmpty()) {
+                    // 内容为空的通知只用于唤醒监听线程
+                    addTopic(payload);
+                }
+            }
+        }
+
+        /**
+         * 通知内容为"消息数量:topic",由节点发出时数量后附带"@节点id"
+         */
+        private void addTopic(String payload) {
+            int separator = payload.indexOf(':');
+            String header = payload.substring(0, Math.max(0, separator));
+            if (isLocal(header)) {
+                return;
+            }
+
+            try {
+                int count = Integer.parseInt(stripSender(header));
+                topics.merge(payload.substring(separator + 1), count, Integer::sum);
+            } catch (NumberFormatException e) {
+                log.warn("通知内容无效:{}", payload);
+            }
+        }
+
+        private void addDelay(String payload) {
+            if (isLocal(payload)) {
+                return;
+            }
+
+            try {
+                delays.add(Long.parseLong(stripSender(payload)));
+            } catch (NumberFormatException e) {
+                log.warn("延时通知内容无效:{}", payload);
+            }
+        }
+
+        private boolean isLocal(String header) {
+            int separator = header.indexOf(PgmqConstants.NOTIFY_SENDER_SEPARATOR);
+            return localNode != null && separator >= 0 && localNode.equals(header.substring(separator + 1));
+        }
+
+        private String stripSender(String header) {
+            int separator = header.indexOf(PgmqConstants.NOTIFY_SENDER_SEPARATOR);
+            return separator < 0 ? header : header.substring(0, separator);
+        }
+
+        void dispatch() {
+            log.debug("收到通知{}条, 去重后topic:{}, 延时:{}", received, topics, delays);
+
+            for (Map.Entry<String, Integer> entry : topics.entrySet()) {
+                try {
+                    if (spreader != null) {
+                        spreader.wakeUp(entry.getKey(), entry.getValue());
+                    } else {
+                        dispatcher.dispatch(entry.getKey());
+                    }
+                } catch (Throwable t) {
+                    log.error("消息处理器调度失败", t);
+                }
+            }
+
+            if (delayScheduler != null) {
+                for (long delay : delays) {
+                    delayScheduler.scheduleAfter(delay);
+                }
+            }
+        }
+    }
+
+    public static class Options {
+
+        private final @Nullable DelayScheduler delayScheduler;
+        private final Duration debounce;
+        private final @Nullable String localNode;
+        private final @Nullable Runnable wakeUp;
+        private final @Nullable WakeUpSpreader spreader;
+
+        private Options(Builder builder) {
+            this.delayScheduler = builder.delayScheduler;
+            this.debounce = builder.debounce;
+            this.localNode = builder.localNode;
+            this.wakeUp = builder.wakeUp;
+            this.spreader = builder.spreader;
+        }
+
+        public static class Builder {
+
+            private @Nullable DelayScheduler delayScheduler;
+            private Duration debounce = Duration.ZERO;
+            private @Nullable String localNode;
+            private @Nullable Runnable wakeUp;
+            private @Nullable WakeUpSpreader spreader;
+
+            public static Builder create() {
+                return new Builder();
+            }
+
+            /**
+             * 同时监听延时消息通道,收到通知后加入延时调度
+             */
+            public Builder delayScheduler(DelayScheduler delayScheduler) {
+                this.delayScheduler = Objects.requireNonNull(delayScheduler);
+                return this;
+            }
+
+            /**
+             * 收到通知后继续等待该时间再统一调度,同一topic只调度一次,为0时只合并已到达的通知
+             */
+            public Builder debounce(Duration debounce) {
+                Objects.requireNonNull(debounce);
+                if (debounce.isNegative()) {
+                    throw new IllegalArgumentException("debounce不能为负数");
+                }
+
+                this.debounce = debounce;
+                return this;
+            }
+
+            /**
+             * 本节点id,通知内容附带的发送节点与之相同时直接忽略,本节点发出的通知已在本地调度
+             */
+            public Builder localNode(String localNode) {
+                this.localNode = Objects.requireNonNull(localNode);
+                return this;
+            }
+
+            /**
+             * 监听的topic变化时调用,向监听器固定监听的通道发送内容为空的通知,使变化立即生效
+             */
+            public Builder wakeUp(Runnable wakeUp) {
+                this.wakeUp = Objects.requireNonNull(wakeUp);
+                return this;
+            }
+
+            /**
+             * 收到topic通知时由spreader决定是否唤醒本节点,未设置时总是唤醒
+             */
+            public Builder spreader(WakeUpSpreader spreader) {
+                this.spreader = Objects.requireNonNull(spreader);
+                return this;
+            }
+
+            public Options build() {
+                return new Options(this);
+            }
+        }
+    }
 }
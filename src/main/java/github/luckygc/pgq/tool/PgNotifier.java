@@ -1,12 +1,13 @@
 package github.luckygc.pgq.tool;
 
 import github.luckygc.pgq.dao.QueueDao;
-import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import org.springframework.transaction.support.TransactionSynchronization;
-import org.springframework.transaction.support.TransactionSynchronizationManager;
 
-public class PgNotifier {
+/**
+ * 通过pg_notify唤醒监听了topic通道的节点
+ */
+public class PgNotifier extends AbstractWakeUpTransport {
 
     private final QueueDao queueDao;
 
@@ -14,29 +15,13 @@ public class PgNotifier {
         this.queueDao = Objects.requireNonNull(queueDao);
     }
 
-    public void sendNotify(String topic) {
-        if (TransactionSynchronizationManager.isActualTransactionActive()) {
-            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
-                @Override
-                public void afterCommit() {
-                    queueDao.sendNotify(topic);
-                }
-            });
-        } else {
-            queueDao.sendNotify(topic);
-        }
+    @Override
+    protected void doSendNotify(Map<String, Integer> topicCounts) {
+        queueDao.sendNotify(topicCounts);
     }
 
-    public void sendNotify(List<String> topics) {
-        if (TransactionSynchronizationManager.isActualTransactionActive()) {
-            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
-                @Override
-                public void afterCommit() {
-                    queueDao.sendNotify(topics);
-                }
-            });
-        } else {
-            queueDao.sendNotify(topics);
-        }
+    @Override
+    protected void doSendDelayNotify(long delayMillis) {
+        queueDao.sendDelayNotify(delayMillis);
     }
 }
@@ -0,0 +1,190 @@
+package github.luckygc.pgq.tool;
+
+import github.luckygc.pgq.api.MessagePoller;
+import github.luckygc.pgq.model.Message;
+import github.luckygc.pgq.model.SettleResult;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 单个topic的延迟确认缓冲,消息的delete/dead/retry先缓存,数量达到batchSize或首条缓存超过maxDelay时统一批量提交
+ * <p>
+ * 延迟重试按延迟时长分组,可见时间从提交时刻开始计算,最多晚maxDelay
+ */
+public class SettlementBuffer {
+
+    private static final Logger log = LoggerFactory.getLogger(SettlementBuffer.class);
+
+    private final MessagePoller messagePoller;
+    private final int batchSize;
+    private final Duration maxDelay;
+    private final ScheduledExecutorService flusher;
+
+    private final Object lock = new Object();
+    private Batch batch = new Batch();
+    private @Nullable ScheduledFuture<?> scheduledFlush;
+    private boolean closed;
+
+    public SettlementBuffer(MessagePoller messagePoller, String topic, int batchSize, Duration maxDelay) {
+        this.messagePoller = Objects.requireNonNull(messagePoller);
+        Objects.requireNonNull(topic);
+        if (batchSize < 1 || batchSize > 5000) {
+            throw new IllegalArgumentException("deferredAckBatchSize必须在1-5000之间");
+        }
+        Objects.requireNonNull(maxDelay);
+        Checker.checkDurationIsPositive(maxDelay);
+
+        this.batchSize = batchSize;
+        this.maxDelay = maxDelay;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pgmq-settle-%s".formatted(topic));
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 返回挂载到当前缓冲的消息副本
+     */
+    public Message wrap(Message message) {
+        return Message.Builder.create().from(message).settlementBuffer(this).build();
+    }
+
+    public void delete(Message message) {
+        add(message, b -> b.deletes);
+    }
+
+    public void dead(Message message) {
+        add(message, b -> b.deads);
+    }
+
+    public void retry(Message message) {
+        add(message, b -> b.retries);
+    }
+
+    public void retry(Message message, Duration processDelay) {
+        add(message, b -> b.delayedRetries.computeIfAbsent(processDelay, ignore -> new ArrayList<>()));
+    }
+
+    /**
+     * 立即提交当前缓冲的消息
+     */
+    public void flush() {
+        Batch toSettle;
+        synchronized (lock) {
+            toSettle = drain();
+        }
+
+        settle(toSettle);
+    }
+
+    /**
+     * 提交剩余消息并停止后台提交,之后的确认直接提交
+     */
+    public void shutdown() {
+        Batch toSettle;
+        synchronized (lock) {
+            closed = true;
+            toSettle = drain();
+        }
+
+        try {
+            settle(toSettle);
+        } finally {
+            flusher.shutdown();
+        }
+    }
+
+    private void add(Message message, Function<Batch, List<Message>> target) {
+        Objects.requireNonNull(message);
+
+        Batch toSettle = null;
+        synchronized (lock) {
+            if (closed) {
+                toSettle = new Batch();
+            }
+
+            Batch current = toSettle != null ? toSettle : batch;
+            target.apply(current).add(message);
+            current.size++;
+
+            if (toSettle == null) {
+                if (batch.size >= batchSize) {
+                    toSettle = drain();
+                } else if (scheduledFlush == null) {
+                    scheduledFlush = flusher.schedule(this::flush, maxDelay.toNanos(), TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+
+        if (toSettle != null) {
+            settle(toSettle);
+        }
+    }
+
+    private Batch drain() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+
+        Batch drained = batch;
+        batch = new Batch();
+        return drained;
+    }
+
+    private void settle(Batch toSettle) {
+        if (toSettle.size == 0) {
+            return;
+        }
+
+        if (!toSettle.deletes.isEmpty()) {
+            settle(() -> messagePoller.ack(toSettle.deletes), "删除");
+        }
+
+        if (!toSettle.deads.isEmpty()) {
+            settle(() -> messagePoller.dead(toSettle.deads), "移动到死信队列");
+        }
+
+        if (!toSettle.retries.isEmpty()) {
+            settle(() -> messagePoller.retry(toSettle.retries), "重试");
+        }
+
+        for (Map.Entry<Duration, List<Message>> entry : toSettle.delayedRetries.entrySet()) {
+            settle(() -> messagePoller.retry(entry.getValue(), entry.getKey()), "延迟重试");
+        }
+    }
+
+    private void settle(Supplier<SettleResult> action, String operation) {
+        try {
+            SettleResult result = action.get();
+            if (!result.isAllSucceeded()) {
+                log.warn("批量{}消息部分失败，消息可能已被处理,ids:{}", operation, result.getFailedIds());
+            }
+        } catch (Throwable t) {
+            log.error("批量{}消息失败,消息将在处理超时后重新投递", operation, t);
+        }
+    }
+
+    private static class Batch {
+
+        private final List<Message> deletes = new ArrayList<>();
+        private final List<Message> deads = new ArrayList<>();
+        private final List<Message> retries = new ArrayList<>();
+        private final Map<Duration, List<Message>> delayedRetries = new LinkedHashMap<>();
+        private int size;
+    }
+}
@@ -0,0 +1,204 @@
+package github.luckygc.pgq.tool;
+
+import github.luckygc.pgq.api.MessagePoller;
+import github.luckygc.pgq.model.Message;
+import github.luckygc.pgq.model.PgmqConstants;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 低流量topic共享的拉取线程,被唤醒的topic按maxPoll分组,每组合并为一条语句拉取,再交给各自的处理器处理
+ * <p>
+ * 只拉取当前有空闲处理线程的topic,处理完一批后若可能还有消息会再次唤醒
+ */
+public class SharedTopicPoller {
+
+    private static final Logger log = LoggerFactory.getLogger(SharedTopicPoller.class);
+
+    private final MessagePoller messagePoller;
+    private final int maxTotal;
+    private final Map<String, Member> memberMap = new ConcurrentHashMap<>();
+    // 已被唤醒等待拉取的topic
+    private final Set<String> dirtyTopics = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean pollerRunning = new AtomicBoolean(false);
+    private final AtomicBoolean wakeRequested = new AtomicBoolean(false);
+    private final ThreadPoolExecutor pollerPool;
+
+    public SharedTopicPoller(MessagePoller messagePoller) {
+        this(messagePoller, PgmqConstants.SHARED_POLL_MAX_TOTAL);
+    }
+
+    public SharedTopicPoller(MessagePoller messagePoller, int maxTotal) {
+        this.messagePoller = Objects.requireNonNull(messagePoller);
+        if (maxTotal < 1 || maxTotal > 5000) {
+            throw new IllegalArgumentException("maxTotal必须在1-5000之间");
+        }
+
+        this.maxTotal = maxTotal;
+        this.pollerPool = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "pgmq-shared-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pollerPool.allowCoreThreadTimeOut(true);
+    }
+
+    public void shutdown() {
+        pollerPool.shutdownNow();
+    }
+
+    public void register(Member member) {
+        memberMap.put(member.topic(), member);
+    }
+
+    public void unregister(Member member) {
+        memberMap.remove(member.topic(), member);
+        dirtyTopics.remove(member.topic());
+    }
+
+    /**
+     * 标记topic待拉取,拉取线程运行中时合并到下一轮
+     */
+    public void wake(String topic) {
+        dirtyTopics.add(topic);
+        kick();
+    }
+
+    /**
+     * 处理器有线程空闲时重新检查待拉取的topic
+     */
+    public void kick() {
+        wakeRequested.set(true);
+        if (!pollerRunning.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            pollerPool.execute(this::loopPoll);
+        } catch (Throwable t) {
+            pollerRunning.set(false);
+            log.error("提交共享拉取任务失败", t);
+        }
+    }
+
+    private void loopPoll() {
+        try {
+            do {
+                wakeRequested.set(false);
+                pollUntilIdle();
+                pollerRunning.set(false);
+            } while (wakeRequested.get() && pollerRunning.compareAndSet(false, true));
+        } catch (Throwable t) {
+            pollerRunning.set(false);
+            log.error("共享拉取消息失败", t);
+        }
+    }
+
+    private void pollUntilIdle() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Map<String, Member> reserved = reserveDirtyTopics();
+            if (reserved.isEmpty()) {
+                return;
+            }
+
+            // 语句只有一个单topic上限,按各topic的maxPoll分组拉取
+            Map<Integer, Map<String, Member>> groups = new TreeMap<>();
+            for (Map.Entry<String, Member> entry : reserved.entrySet()) {
+                groups.computeIfAbsent(entry.getValue().maxPoll(), ignore -> new HashMap<>())
+                        .put(entry.getKey(), entry.getValue());
+            }
+
+            Iterator<Map.Entry<Integer, Map<String, Member>>> iterator = groups.entrySet().iterator();
+            try {
+                while (iterator.hasNext()) {
+                    Map.Entry<Integer, Map<String, Member>> group = iterator.next();
+                    pollGroup(group.getValue(), group.getKey());
+                    iterator.remove();
+                }
+            } catch (Throwable t) {
+                // 当前组及之后未拉取的组释放名额
+                for (Map<String, Member> group : groups.values()) {
+                    for (Member member : group.values()) {
+                        member.releaseReservation();
+                    }
+                }
+                throw t;
+            }
+        }
+    }
+
+    private void pollGroup(Map<String, Member> reserved, int maxPerTopic) {
+        List<Message> messages = messagePoller.poll(reserved.keySet(), maxPerTopic, maxTotal);
+
+        Map<String, List<Message>> messagesByTopic = new HashMap<>();
+        for (Message message : messages) {
+            messagesByTopic.computeIfAbsent(message.getTopic(), ignore -> new ArrayList<>()).add(message);
+        }
+
+        // 达到合计上限时未拉到消息的topic可能仍有消息
+        boolean truncated = messages.size() >= maxTotal;
+        for (Map.Entry<String, Member> entry : reserved.entrySet()) {
+            List<Message> topicMessages = messagesByTopic.get(entry.getKey());
+            if (topicMessages == null) {
+                entry.getValue().releaseReservation();
+                if (truncated) {
+                    dirtyTopics.add(entry.getKey());
+                }
+            } else {
+                entry.getValue().handlePolled(topicMessages, topicMessages.size() >= maxPerTopic);
+            }
+        }
+    }
+
+    private Map<String, Member> reserveDirtyTopics() {
+        Map<String, Member> reserved = new HashMap<>();
+        for (String topic : dirtyTopics) {
+            Member member = memberMap.get(topic);
+            if (member == null) {
+                dirtyTopics.remove(topic);
+            } else if (member.tryReserve()) {
+                dirtyTopics.remove(topic);
+                reserved.put(topic, member);
+            }
+        }
+        return reserved;
+    }
+
+    /**
+     * 参与共享拉取的处理器
+     */
+    public interface Member {
+
+        String topic();
+
+        /**
+         * 每次拉取该topic的最大数量
+         */
+        int maxPoll();
+
+        /**
+         * 共享拉取前占用一个处理线程名额,保证拉取到的消息可以立即处理
+         */
+        boolean tryReserve();
+
+        void releaseReservation();
+
+        /**
+         * 处理共享拉取到的消息,调用前已通过{@link #tryReserve}占用名额,处理结束后释放
+         */
+        void handlePolled(List<Message> messages, boolean mayHaveMore);
+    }
+}
@@ -0,0 +1,151 @@
+package github.luckygc.pgq.tool;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * 分层时间轮,只记录到期时间,用于判断何时有延时消息到期,非线程安全
+ * <p>
+ * 超出当前层范围的到期时间放入上一层,上一层的格子到期后再降级到下层,所有层共用一个按格子到期时间排序的队列
+ */
+final class TimingWheel {
+
+    private final PriorityQueue<BucketExpiration> expirations =
+            new PriorityQueue<>(Comparator.comparingLong(e -> e.expiration));
+    private final Level root;
+
+    /**
+     * @param startMillis 起始时间,不能为负数
+     */
+    TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        this.root = new Level(tickMillis, wheelSize, startMillis);
+    }
+
+    /**
+     * @return 到期时间不足一格时返回false,调用方应立即处理
+     */
+    boolean add(long deadlineMillis) {
+        return root.add(deadlineMillis);
+    }
+
+    /**
+     * 最近一个格子的到期时间,没有时为{@link Long#MAX_VALUE}
+     */
+    long nextExpiration() {
+        while (!expirations.isEmpty()) {
+            BucketExpiration head = expirations.peek();
+            if (head.bucket.expiration == head.expiration) {
+                return head.expiration;
+            }
+            expirations.poll();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * 推进时钟到nowMillis,上层到期的格子降级到下层
+     *
+     * @return 本次到期的到期时间数量
+     */
+    int advance(long nowMillis) {
+        int expired = 0;
+        BucketExpiration head;
+        while ((head = expirations.peek()) != null && head.expiration <= nowMillis) {
+            expirations.poll();
+            Bucket bucket = head.bucket;
+            if (bucket.expiration != head.expiration) {
+                continue;
+            }
+
+            root.advanceClock(head.expiration);
+            List<Long> deadlines = bucket.deadlines;
+            bucket.deadlines = new ArrayList<>();
+            bucket.expiration = -1;
+            for (long deadline : deadlines) {
+                if (!root.add(deadline)) {
+                    expired++;
+                }
+            }
+        }
+
+        root.advanceClock(nowMillis);
+        return expired;
+    }
+
+    private final class Level {
+
+        private final long tickMillis;
+        private final int wheelSize;
+        private final long intervalMillis;
+        private final Bucket[] buckets;
+        private long currentTime;
+        private @Nullable Level overflow;
+
+        Level(long tickMillis, int wheelSize, long startMillis) {
+            this.tickMillis = tickMillis;
+            this.wheelSize = wheelSize;
+            this.intervalMillis = tickMillis * wheelSize;
+            this.currentTime = startMillis - startMillis % tickMillis;
+            this.buckets = new Bucket[wheelSize];
+            for (int i = 0; i < wheelSize; i++) {
+                buckets[i] = new Bucket();
+            }
+        }
+
+        boolean add(long deadlineMillis) {
+            if (deadlineMillis < currentTime + tickMillis) {
+                return false;
+            }
+
+            if (deadlineMillis < currentTime + intervalMillis) {
+                long virtualId = deadlineMillis / tickMillis;
+                Bucket bucket = buckets[(int) (virtualId % wheelSize)];
+                bucket.deadlines.add(deadlineMillis);
+
+                long expiration = virtualId * tickMillis;
+                if (bucket.expiration != expiration) {
+                    bucket.expiration = expiration;
+                    expirations.add(new BucketExpiration(expiration, bucket));
+                }
+                return true;
+            }
+
+            if (overflow == null) {
+                overflow = new Level(intervalMillis, wheelSize, currentTime);
+            }
+            return overflow.add(deadlineMillis);
+        }
+
+        void advanceClock(long timeMillis) {
+            if (timeMillis >= currentTime + tickMillis) {
+                currentTime = timeMillis - timeMillis % tickMillis;
+                if (overflow != null) {
+                    overflow.advanceClock(currentTime);
+                }
+            }
+        }
+    }
+
+    private static final class Bucket {
+
+        private List<Long> deadlines = new ArrayList<>();
+        private long expiration = -1;
+    }
+
+    /**
+     * 格子入队时的到期时间,格子被清空或重新使用后旧的队列元素失效
+     */
+    private static final class BucketExpiration {
+
+        private final long expiration;
+        private final Bucket bucket;
+
+        BucketExpiration(long expiration, Bucket bucket) {
+            this.expiration = expiration;
+            this.bucket = bucket;
+        }
+    }
+}
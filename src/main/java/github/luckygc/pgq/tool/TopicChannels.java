@@ -0,0 +1,44 @@
+package github.luckygc.pgq.tool;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Objects;
+
+/**
+ * 通知通道命名,topic可能超过标识符长度或包含特殊字符,统一取md5
+ * <p>
+ * 与数据库函数中的'pgmq_t_' || md5(topic)一致,要求数据库编码为UTF8
+ */
+public final class TopicChannels {
+
+    private static final String TOPIC_CHANNEL_PREFIX = "pgmq_t_";
+    private static final String NODE_CHANNEL_PREFIX = "pgmq_n_";
+
+    private TopicChannels() {
+    }
+
+    /**
+     * topic的通知通道
+     */
+    public static String topicChannel(String topic) {
+        return TOPIC_CHANNEL_PREFIX + md5(Objects.requireNonNull(topic));
+    }
+
+    /**
+     * 节点私有通道,用于唤醒监听线程
+     */
+    public static String nodeChannel(String nodeId) {
+        return NODE_CHANNEL_PREFIX + md5(Objects.requireNonNull(nodeId));
+    }
+
+    private static String md5(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
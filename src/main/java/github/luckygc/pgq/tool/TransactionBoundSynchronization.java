@@ -0,0 +1,49 @@
+package github.luckygc.pgq.tool;
+
+import java.util.Objects;
+import java.util.function.Supplier;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * 绑定到当前事务的同步器,同一事务内同一key只注册一次,事务挂起/恢复时随之解绑/重新绑定
+ */
+public abstract class TransactionBoundSynchronization implements TransactionSynchronization {
+
+    private final Object key;
+
+    protected TransactionBoundSynchronization(Object key) {
+        this.key = Objects.requireNonNull(key);
+    }
+
+    /**
+     * 获取当前事务中key对应的同步器,不存在时创建并注册,调用前需确认事务处于活动状态
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends TransactionBoundSynchronization> T obtain(Object key, Supplier<T> factory) {
+        Object existing = TransactionSynchronizationManager.getResource(key);
+        if (existing != null) {
+            return (T) existing;
+        }
+
+        T synchronization = factory.get();
+        TransactionSynchronizationManager.bindResource(key, synchronization);
+        TransactionSynchronizationManager.registerSynchronization(synchronization);
+        return synchronization;
+    }
+
+    @Override
+    public void suspend() {
+        TransactionSynchronizationManager.unbindResourceIfPossible(key);
+    }
+
+    @Override
+    public void resume() {
+        TransactionSynchronizationManager.bindResource(key, this);
+    }
+
+    @Override
+    public void afterCompletion(int status) {
+        TransactionSynchronizationManager.unbindResourceIfPossible(key);
+    }
+}
@@ -0,0 +1,186 @@
+package github.luckygc.pgq.tool;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 收到通知时只唤醒部分节点,避免所有节点同时拉取同一topic,大部分节点拿不到消息
+ * <p>
+ * 按topic和节点id的哈希值对订阅了topic的节点排名(rendezvous哈希),节点增减时只影响少量topic的归属。
+ * 通知内容带有写入的消息数量时唤醒排名前ceil(数量/maxPoll)的节点,数量未知时只唤醒排名第一的节点。
+ * 未被唤醒的节点在fallbackDelay后检查topic是否仍有消息,有则调度,用于排名靠前的节点宕机或处理不过来的情况。
+ * 每个topic单独退避:上次检查后调度了处理器但处理器没有拉取到消息时,说明消息已被排名靠前的节点领取,
+ * 等待时间翻倍直到maxFallbackDelay,避免繁忙topic的每条通知都让所有节点检查一次;调度后拉取到了消息时重置为fallbackDelay
+ */
+public class WakeUpSpreader {
+
+    private static final Logger log = LoggerFactory.getLogger(WakeUpSpreader.class);
+
+    private final String nodeId;
+    private final MessageProcessorDispatcher dispatcher;
+    private final Predicate<String> probe;
+    private final long fallbackDelayMillis;
+    private final long maxFallbackDelayMillis;
+
+    // 心跳时整体替换,没有记录的topic唤醒本节点
+    private volatile Map<String, Ownership> ownerships = Map.of();
+    private final Set<String> pendingFallbacks = ConcurrentHashMap.newKeySet();
+    private final Map<String, Backoff> backoffs = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "pgmq-wake-up-fallback");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param probe 检查topic是否有可拉取的消息
+     */
+    public WakeUpSpreader(String nodeId, MessageProcessorDispatcher dispatcher, Predicate<String> probe,
+            Duration fallbackDelay, Duration maxFallbackDelay) {
+        this.nodeId = Objects.requireNonNull(nodeId);
+        this.dispatcher = Objects.requireNonNull(dispatcher);
+        this.probe = Objects.requireNonNull(probe);
+        Objects.requireNonNull(fallbackDelay);
+        Objects.requireNonNull(maxFallbackDelay);
+        Checker.checkDurationIsPositive(fallbackDelay);
+        if (maxFallbackDelay.compareTo(fallbackDelay) < 0) {
+            throw new IllegalArgumentException("maxFallbackDelay不能小于fallbackDelay");
+        }
+
+        this.fallbackDelayMillis = fallbackDelay.toMillis();
+        this.maxFallbackDelayMillis = maxFallbackDelay.toMillis();
+    }
+
+    /**
+     * 更新各topic存活的订阅节点
+     */
+    public void updateSubscribers(Map<String, List<String>> subscribers) {
+        Map<String, Ownership> updated = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : subscribers.entrySet()) {
+            String topic = entry.getKey();
+            List<String> nodes = entry.getValue();
+            if (!nodes.contains(nodeId)) {
+                continue;
+            }
+
+            long selfScore = score(topic, nodeId);
+            int rank = 0;
+            for (String node : nodes) {
+                long nodeScore = score(topic, node);
+                if (nodeScore > selfScore || (nodeScore == selfScore && node.compareTo(nodeId) < 0)) {
+                    rank++;
+                }
+            }
+            updated.put(topic, new Ownership(rank, nodes.size()));
+        }
+        ownerships = updated;
+        backoffs.keySet().retainAll(updated.keySet());
+    }
+
+    /**
+     * 收到topic写入count条消息的通知,count为0表示未知
+     */
+    public void wakeUp(String topic, int count) {
+        Ownership ownership = ownerships.get(topic);
+        if (ownership == null || ownership.rank() < consumers(topic, count, ownership.nodes())) {
+            dispatcher.dispatch(topic);
+            return;
+        }
+
+        if (!pendingFallbacks.add(topic)) {
+            return;
+        }
+
+        Backoff backoff = backoffs.computeIfAbsent(topic, ignore -> new Backoff());
+        try {
+            executor.schedule(() -> fallback(topic, backoff), backoff.delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            pendingFallbacks.remove(topic);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private int consumers(String topic, int count, int nodes) {
+        if (count <= 0) {
+            return 1;
+        }
+
+        int maxPoll = dispatcher.maxPoll(topic);
+        return Math.min(nodes, (count + maxPoll - 1) / maxPoll);
+    }
+
+    private void fallback(String topic, Backoff backoff) {
+        pendingFallbacks.remove(topic);
+
+        // 满负荷时处理器的拉取循环仍在运行,不需要检查和调度
+        boolean hit = !dispatcher.isSaturated(topic) && probe(topic);
+        long claimed = dispatcher.claimedCount(topic);
+        boolean progressed = !backoff.dispatched || claimed != backoff.claimed;
+        backoff.delayMillis = hit && progressed
+                ? fallbackDelayMillis
+                : Math.min(backoff.delayMillis * 2, maxFallbackDelayMillis);
+        backoff.claimed = claimed;
+        backoff.dispatched = hit;
+
+        if (hit) {
+            dispatcher.dispatch(topic);
+        }
+    }
+
+    private boolean probe(String topic) {
+        try {
+            return probe.test(topic);
+        } catch (Throwable t) {
+            log.warn("检查topic[{}]是否有消息失败", topic, t);
+            return false;
+        }
+    }
+
+    /**
+     * 64位FNV-1a后再混合,使相近的节点id也能均匀分布
+     */
+    static long score(String topic, String nodeId) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : (topic + '\0' + nodeId).getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private record Ownership(int rank, int nodes) {
+
+    }
+
+    private class Backoff {
+
+        // 只在兜底线程中修改,收到通知的线程读取
+        private volatile long delayMillis = fallbackDelayMillis;
+        // 上次检查时是否调度了处理器,以及当时处理器累计拉取到的消息数量
+        private boolean dispatched;
+        private long claimed;
+    }
+}
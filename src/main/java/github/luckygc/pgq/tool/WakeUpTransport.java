@@ -0,0 +1,32 @@
+package github.luckygc.pgq.tool;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * 跨节点唤醒的传输方式,消息写入后通知其他节点的处理器拉取
+ * <p>
+ * 事务内调用时在提交后发送,回滚时不发送
+ */
+public interface WakeUpTransport {
+
+    /**
+     * 写入了一条消息
+     */
+    void sendNotify(String topic);
+
+    /**
+     * 写入了count条消息,接收方据此估算需要唤醒的消费者数量
+     */
+    void sendNotify(String topic, int count);
+
+    /**
+     * 写入消息的数量未知
+     */
+    void sendNotify(List<String> topics);
+
+    /**
+     * 通知其他节点有延时消息将在visibleTime到期
+     */
+    void sendDelayNotify(LocalDateTime visibleTime);
+}
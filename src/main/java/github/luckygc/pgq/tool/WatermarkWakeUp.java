@@ -0,0 +1,139 @@
+package github.luckygc.pgq.tool;
+
+import github.luckygc.pgq.dao.QueueDao;
+import github.luckygc.pgq.model.PgmqConstants;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 通过水位表唤醒其他节点,不使用pg_notify,发送方提交时不需要获取全局锁
+ * <p>
+ * 发送时只记录到内存,每隔interval把这段时间内有新消息的topic合并为一条语句递增水位版本号;同时查询本节点关注的topic的
+ * 水位,版本号变化时调度对应的处理器。延时消息使用名为{@link PgmqConstants#DELAY_CHANNEL}的水位,变化时重新加载到期时间
+ */
+public class WatermarkWakeUp extends AbstractWakeUpTransport {
+
+    private static final Logger log = LoggerFactory.getLogger(WatermarkWakeUp.class);
+
+    private final QueueDao queueDao;
+    private final MessageProcessorDispatcher dispatcher;
+    private final Runnable delayChanged;
+    private final long intervalMillis;
+
+    private final Set<String> pendingTopics = ConcurrentHashMap.newKeySet();
+    // 只在水位线程中访问
+    private final Map<String, Long> versions = new HashMap<>();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "pgmq-watermark");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param delayChanged 其他节点写入了延时消息时调用
+     */
+    public WatermarkWakeUp(QueueDao queueDao, MessageProcessorDispatcher dispatcher, Runnable delayChanged,
+            Duration interval) {
+        this.queueDao = Objects.requireNonNull(queueDao);
+        this.dispatcher = Objects.requireNonNull(dispatcher);
+        this.delayChanged = Objects.requireNonNull(delayChanged);
+        Objects.requireNonNull(interval);
+        Checker.checkDurationIsPositive(interval);
+        this.intervalMillis = interval.toMillis();
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(this::flushAndPoll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止查询,并提交尚未写入的水位
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    @Override
+    protected void doSendNotify(Map<String, Integer> topicCounts) {
+        pendingTopics.addAll(topicCounts.keySet());
+    }
+
+    @Override
+    protected void doSendDelayNotify(long delayMillis) {
+        pendingTopics.add(PgmqConstants.DELAY_CHANNEL);
+    }
+
+    private void flushAndPoll() {
+        flush();
+        poll();
+    }
+
+    private void flush() {
+        if (pendingTopics.isEmpty()) {
+            return;
+        }
+
+        List<String> topics = new ArrayList<>();
+        for (Iterator<String> iterator = pendingTopics.iterator(); iterator.hasNext(); ) {
+            topics.add(iterator.next());
+            iterator.remove();
+        }
+        // 各节点按相同顺序更新水位行,避免死锁
+        Collections.sort(topics);
+
+        try {
+            queueDao.increaseWatermarks(topics);
+        } catch (Throwable t) {
+            log.warn("写入水位失败,将在下次重试", t);
+            pendingTopics.addAll(topics);
+        }
+    }
+
+    private void poll() {
+        List<String> topics = new ArrayList<>(dispatcher.subscribedTopics());
+        topics.add(PgmqConstants.DELAY_CHANNEL);
+
+        Map<String, Long> watermarks;
+        try {
+            watermarks = queueDao.getWatermarks(topics);
+        } catch (Throwable t) {
+            log.warn("查询水位失败", t);
+            return;
+        }
+
+        for (Map.Entry<String, Long> entry : watermarks.entrySet()) {
+            String topic = entry.getKey();
+            if (entry.getValue().equals(versions.put(topic, entry.getValue()))) {
+                continue;
+            }
+
+            if (PgmqConstants.DELAY_CHANNEL.equals(topic)) {
+                delayChanged.run();
+            } else {
+                dispatcher.dispatch(topic);
+            }
+        }
+    }
+}
@@ -2,18 +2,32 @@ package github.luckygc.pgq.api;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
+import github.luckygc.pgq.api.handler.BatchMessageHandler;
 import github.luckygc.pgq.api.handler.MessageHandler;
+import github.luckygc.pgq.dao.MessageDao;
 import github.luckygc.pgq.model.Message;
+import github.luckygc.pgq.model.SettleResult;
+import github.luckygc.pgq.tool.FairTopicExecutor;
+import github.luckygc.pgq.tool.VirtualThreads;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -42,6 +56,7 @@ class MessageProcessorTest {
         when(messageHandler.topic()).thenReturn("test-topic");
         when(messageHandler.maxPoll()).thenReturn(10);
         when(messageHandler.threadCount()).thenReturn(2);
+        when(messageHandler.processTimeout()).thenReturn(Duration.ofSeconds(30));
 
         messageProcessor = new MessageProcessor(messagePoller, messageHandler);
     }
@@ -170,6 +185,39 @@ class MessageProcessorTest {
         verify(messageHandler).handle(message2);
     }
 
+    @Test
+    void shouldExtendLeaseOfMessagesStillBeingHandled() throws InterruptedException {
+        when(messageHandler.processTimeout()).thenReturn(Duration.ofSeconds(1));
+        when(message1.getId()).thenReturn(1L);
+        when(messagePoller.poll("test-topic", 10))
+                .thenReturn(List.of(message1))
+                .thenReturn(Collections.emptyList());
+        when(messagePoller.extendLease(anyList(), eq(Duration.ofSeconds(1))))
+                .thenReturn(SettleResult.of(List.of(1L), List.of(1L)));
+
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(messageHandler).handle(message1);
+
+        MessageProcessor processor = new MessageProcessor(messagePoller, messageHandler);
+        processor.asyncProcess();
+
+        verify(messagePoller, timeout(2000)).extendLease(List.of(message1), Duration.ofSeconds(1));
+        release.countDown();
+        processor.shutdown();
+    }
+
+    @Test
+    void shouldThrowExceptionWhenProcessTimeoutIsTooShort() {
+        when(messageHandler.processTimeout()).thenReturn(Duration.ofMillis(500));
+
+        assertThatThrownBy(() -> new MessageProcessor(messagePoller, messageHandler))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("processTimeout不能小于1秒");
+    }
+
     @Test
     void shouldShutdownGracefully() {
         messageProcessor.shutdown();
@@ -177,4 +225,225 @@ class MessageProcessorTest {
         // 验证线程池已关闭
         // 这里我们无法直接验证线程池状态，但可以确保方法调用不抛出异常
     }
+
+    @Test
+    void shouldBufferSettlementsAndFlushOnShutdownWhenDeferredAckEnabled() throws InterruptedException {
+        when(messageHandler.deferredAck()).thenReturn(true);
+        when(messageHandler.deferredAckBatchSize()).thenReturn(100);
+        when(messageHandler.deferredAckMaxDelay()).thenReturn(Duration.ofMinutes(1));
+
+        MessageDao messageDao = org.mockito.Mockito.mock(MessageDao.class);
+        Message message = Message.Builder.create()
+                .id(1L)
+                .createTime(LocalDateTime.now())
+                .topic("test-topic")
+                .priority(0)
+                .payload("payload")
+                .attempt(1)
+                .messageDao(messageDao)
+                .build();
+        when(messagePoller.poll("test-topic", 10))
+                .thenReturn(List.of(message))
+                .thenReturn(Collections.emptyList());
+        when(messagePoller.ack(anyList())).thenReturn(SettleResult.of(List.of(1L), List.of(1L)));
+
+        CountDownLatch latch = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            invocation.<Message>getArgument(0).delete();
+            latch.countDown();
+            return null;
+        }).when(messageHandler).handle(any(Message.class));
+
+        MessageProcessor processor = new MessageProcessor(messagePoller, messageHandler);
+        processor.asyncProcess();
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+
+        processor.shutdown();
+
+        verify(messagePoller).ack(anyList());
+        verifyNoInteractions(messageDao);
+    }
+
+    @Test
+    void shouldPrefetchWithinPermitsAndHandleOnWorkersInPipelineMode() throws InterruptedException {
+        when(messageHandler.pipeline()).thenReturn(true);
+        when(messageHandler.prefetchSize()).thenReturn(4);
+        when(messagePoller.poll("test-topic", 4))
+                .thenReturn(Arrays.asList(message1, message2))
+                .thenReturn(Collections.emptyList());
+
+        CountDownLatch latch = new CountDownLatch(2);
+        doAnswer(invocation -> {
+            latch.countDown();
+            return null;
+        }).when(messageHandler).handle(any(Message.class));
+
+        MessageProcessor processor = new MessageProcessor(messagePoller, messageHandler);
+        processor.asyncProcess();
+        processor.asyncProcess();
+
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        verify(messageHandler).handle(message1);
+        verify(messageHandler).handle(message2);
+        processor.shutdown();
+    }
+
+    @Test
+    void shouldThrowExceptionWhenPrefetchSizeIsInvalid() {
+        when(messageHandler.pipeline()).thenReturn(true);
+        when(messageHandler.prefetchSize()).thenReturn(0);
+
+        assertThatThrownBy(() -> new MessageProcessor(messagePoller, messageHandler))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("prefetchSize必须在1-5000之间");
+    }
+
+    @Test
+    void shouldAllowLargeThreadCountInVirtualThreadMode() throws InterruptedException {
+        when(messageHandler.virtualThreads()).thenReturn(true);
+        when(messageHandler.threadCount()).thenReturn(5000);
+
+        if (!VirtualThreads.isSupported()) {
+            assertThatThrownBy(() -> new MessageProcessor(messagePoller, messageHandler))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasMessage("当前JDK不支持虚拟线程,需要JDK21及以上");
+            return;
+        }
+
+        when(messagePoller.poll("test-topic", 10))
+                .thenReturn(Arrays.asList(message1, message2))
+                .thenReturn(Collections.emptyList());
+        CountDownLatch latch = new CountDownLatch(2);
+        doAnswer(invocation -> {
+            latch.countDown();
+            return null;
+        }).when(messageHandler).handle(any(Message.class));
+
+        MessageProcessor processor = new MessageProcessor(messagePoller, messageHandler);
+        processor.asyncProcess();
+
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        processor.shutdown();
+    }
+
+    @Test
+    void shouldThrowExceptionWhenVirtualThreadCountIsInvalid() {
+        when(messageHandler.virtualThreads()).thenReturn(true);
+        when(messageHandler.threadCount()).thenReturn(10001);
+
+        assertThatThrownBy(() -> new MessageProcessor(messagePoller, messageHandler))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("虚拟线程模式threadCount必须在1-10000之间");
+    }
+
+    @Test
+    void shouldAckUnsettledMessagesAfterBatchHandled() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        List<List<Message>> received = new CopyOnWriteArrayList<>();
+        BatchMessageHandler batchHandler = new TestBatchHandler(Duration.ofMillis(50), messages -> {
+            received.add(messages);
+            latch.countDown();
+        });
+        when(messagePoller.poll("test-topic", 10))
+                .thenReturn(List.of(message1))
+                .thenReturn(Collections.emptyList());
+        when(messagePoller.poll(eq("test-topic"), eq(9), any(Duration.class)))
+                .thenReturn(List.of(message2))
+                .thenReturn(Collections.emptyList());
+        when(message2.isSettled()).thenReturn(true);
+        when(messagePoller.ack(anyList())).thenReturn(SettleResult.of(List.of(1L), List.of(1L)));
+
+        MessageProcessor processor = new MessageProcessor(messagePoller, batchHandler);
+        processor.asyncProcess();
+
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        verify(messagePoller, timeout(2000)).ack(List.of(message1));
+        assertThat(received.get(0)).containsExactly(message1, message2);
+        processor.shutdown();
+    }
+
+    @Test
+    void shouldRetryUnsettledMessagesWhenBatchHandlerFails() {
+        BatchMessageHandler batchHandler = new TestBatchHandler(Duration.ZERO, messages -> {
+            throw new IllegalStateException("sink unavailable");
+        });
+        when(messagePoller.poll("test-topic", 10))
+                .thenReturn(Arrays.asList(message1, message2))
+                .thenReturn(Collections.emptyList());
+        when(messagePoller.retry(anyList())).thenReturn(SettleResult.of(List.of(1L, 2L), List.of(1L, 2L)));
+
+        MessageProcessor processor = new MessageProcessor(messagePoller, batchHandler);
+        processor.asyncProcess();
+
+        verify(messagePoller, timeout(2000)).retry(Arrays.asList(message1, message2));
+        verify(messagePoller, never()).ack(anyList());
+        processor.shutdown();
+    }
+
+    @Test
+    void shouldYieldAfterEachBatchOnSharedExecutor() throws InterruptedException {
+        when(messageHandler.weight()).thenReturn(1);
+        when(messagePoller.poll("test-topic", 10))
+                .thenReturn(List.of(message1))
+                .thenReturn(List.of(message2))
+                .thenReturn(Collections.emptyList());
+        CountDownLatch latch = new CountDownLatch(2);
+        doAnswer(invocation -> {
+            latch.countDown();
+            return null;
+        }).when(messageHandler).handle(any(Message.class));
+
+        FairTopicExecutor sharedExecutor = new FairTopicExecutor(2);
+        MessageProcessor processor = new MessageProcessor(messagePoller, messageHandler, sharedExecutor, null);
+        processor.asyncProcess();
+
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        verify(messagePoller, timeout(2000).times(3)).poll("test-topic", 10);
+        assertThat(sharedExecutor.metrics().get(0).getCompletedTasks()).isGreaterThanOrEqualTo(2);
+        sharedExecutor.shutdown();
+    }
+
+    @Test
+    void shouldRetryRemainingMessagesWhenCancelledOnSharedExecutor() throws InterruptedException {
+        when(messageHandler.weight()).thenReturn(1);
+        when(messagePoller.poll("test-topic", 10)).thenReturn(List.of(message1, message2));
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(messageHandler).handle(message1);
+
+        FairTopicExecutor sharedExecutor = new FairTopicExecutor(1);
+        MessageProcessor processor = new MessageProcessor(messagePoller, messageHandler, sharedExecutor, null);
+        processor.asyncProcess();
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+        processor.shutdown();
+        release.countDown();
+
+        verify(messagePoller, timeout(2000)).retry(List.of(message2));
+        verify(messageHandler, never()).handle(message2);
+        sharedExecutor.shutdown();
+    }
+
+    private record TestBatchHandler(Duration batchWindow, Consumer<List<Message>> consumer)
+            implements BatchMessageHandler {
+
+        @Override
+        public String topic() {
+            return "test-topic";
+        }
+
+        @Override
+        public int maxPoll() {
+            return 10;
+        }
+
+        @Override
+        public void handle(List<Message> messages) {
+            consumer.accept(messages);
+        }
+    }
 }
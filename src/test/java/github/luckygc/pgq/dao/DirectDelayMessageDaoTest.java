@@ -0,0 +1,90 @@
+package github.luckygc.pgq.dao;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import github.luckygc.pgq.integration.BaseIntegrationTest;
+import github.luckygc.pgq.model.Message;
+import github.luckygc.pgq.model.MessageDO;
+import java.time.LocalDateTime;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+@Testcontainers
+@DisplayName("直接拉取延时消息DAO测试")
+class DirectDelayMessageDaoTest extends BaseIntegrationTest {
+
+    private DirectDelayMessageDao messageDao;
+
+    @BeforeEach
+    void setUp() {
+        messageDao = new DirectDelayMessageDao(jdbcTemplate);
+    }
+
+    @Test
+    @DisplayName("应该合并领取待处理消息和到期的延时消息")
+    void shouldClaimPendingAndDueDelayedMessages() {
+        messageDao.insertIntoPending(messageDO("direct-topic", "pending", 0));
+        messageDao.insertIntoInvisible(messageDO("direct-topic", "due", 5), LocalDateTime.now().minusSeconds(1));
+        messageDao.insertIntoInvisible(messageDO("direct-topic", "later", 9), LocalDateTime.now().plusMinutes(5));
+
+        List<Message> messages = messageDao.getPendingMessagesAndMoveToProcessing("direct-topic", 10,
+                LocalDateTime.now().plusMinutes(30));
+
+        assertThat(messages).extracting(Message::getPayload).containsExactly("due", "pending");
+        assertThat(messages).extracting(Message::getAttempt).containsOnly(1);
+        assertThat(countPendingMessages("direct-topic")).isEqualTo(0);
+        assertThat(countInvisibleMessages("direct-topic")).isEqualTo(1);
+        assertThat(countProcessingMessages("direct-topic")).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("合并领取应该遵守拉取数量和分组顺序")
+    void shouldLimitMergedClaimAndKeepGroupOrder() {
+        messageDao.insertIntoInvisible(groupMessageDO("direct-topic", "a", "a1"), LocalDateTime.now().minusSeconds(1));
+        messageDao.insertIntoPending(List.of(
+                groupMessageDO("direct-topic", "a", "a2"),
+                messageDO("direct-topic", "b1", 0),
+                messageDO("direct-topic", "b2", 0)
+        ));
+
+        List<Message> messages = messageDao.getPendingMessagesAndMoveToProcessing("direct-topic", 2,
+                LocalDateTime.now().plusMinutes(30));
+
+        assertThat(messages).extracting(Message::getPayload).containsExactly("a1", "b1");
+        assertThat(countInvisibleMessages("direct-topic")).isEqualTo(0);
+    }
+
+    @Test
+    @DisplayName("应该能够为多个topic合并领取到期的延时消息")
+    void shouldClaimDueDelayedMessagesOfMultipleTopics() {
+        messageDao.insertIntoInvisible(List.of(messageDO("direct-topic", "a1", 0), messageDO("direct-topic", "a2", 0)),
+                LocalDateTime.now().minusSeconds(1));
+        messageDao.insertIntoPending(messageDO("other-topic", "b1", 0));
+
+        List<Message> messages = messageDao.getPendingMessagesAndMoveToProcessing(
+                List.of("direct-topic", "other-topic"), 1, 10, LocalDateTime.now().plusMinutes(30));
+
+        assertThat(messages).extracting(Message::getPayload).containsExactly("a1", "b1");
+        assertThat(countInvisibleMessages("direct-topic")).isEqualTo(1);
+        assertThat(countPendingMessages("other-topic")).isEqualTo(0);
+    }
+
+    @Test
+    @DisplayName("应该能够同时领取到期延时消息和处理超时的消息")
+    void shouldClaimDueDelayedAndExpiredMessages() {
+        DirectDelayMessageDao reclaimDao = new DirectDelayMessageDao(jdbcTemplate, null, null, true);
+        reclaimDao.insertIntoPending(messageDO("direct-topic", "expired", 0));
+        reclaimDao.getPendingMessagesAndMoveToProcessing("direct-topic", 1, LocalDateTime.now().minusSeconds(1));
+        reclaimDao.insertIntoInvisible(messageDO("direct-topic", "due", 0), LocalDateTime.now().minusSeconds(1));
+
+        List<Message> messages = reclaimDao.getPendingMessagesAndMoveToProcessing(List.of("direct-topic"), 10, 10,
+                LocalDateTime.now().plusMinutes(30));
+
+        assertThat(messages).extracting(Message::getPayload).containsExactly("expired", "due");
+        assertThat(messages).extracting(Message::getAttempt).containsExactly(2, 1);
+        assertThat(countProcessingMessages("direct-topic")).isEqualTo(2);
+    }
+}
@@ -0,0 +1,227 @@
+package github.luckygc.pgq.dao;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import github.luckygc.pgq.integration.BaseIntegrationTest;
+import github.luckygc.pgq.model.Message;
+import github.luckygc.pgq.model.MessageDO;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+@Testcontainers
+@DisplayName("单表租约消息DAO测试")
+class LeaseMessageDaoTest extends BaseIntegrationTest {
+
+    private LeaseMessageDao messageDao;
+
+    @BeforeEach
+    void setUp() {
+        messageDao = new LeaseMessageDao(jdbcTemplate);
+    }
+
+    @Test
+    @DisplayName("拉取消息应该原地更新状态而不搬运")
+    void shouldClaimMessagesInPlace() {
+        messageDao.insertIntoPending(Arrays.asList(
+                messageDO("lease-topic", "low", 1),
+                messageDO("lease-topic", "high", 10)
+        ));
+
+        List<Message> messages = messageDao.getPendingMessagesAndMoveToProcessing("lease-topic", 10,
+                LocalDateTime.now().plusMinutes(30));
+
+        assertThat(messages).hasSize(2);
+        assertThat(messages.get(0).getPayload()).isEqualTo("high");
+        assertThat(messages.get(0).getAttempt()).isEqualTo(1);
+        assertThat(countRecords("pgmq_message", "state = 1")).isEqualTo(2);
+        assertThat(messageDao.getPendingMessagesAndMoveToProcessing("lease-topic", 10,
+                LocalDateTime.now().plusMinutes(30))).isEmpty();
+    }
+
+    @Test
+    @DisplayName("应该能够以单条语句为多个topic拉取消息")
+    void shouldClaimMessagesOfMultipleTopics() {
+        messageDao.insertIntoPending(Arrays.asList(messageDO("lease-topic", "a1", 0),
+                messageDO("lease-topic", "a2", 0)));
+        messageDao.insertIntoPending(MessageDO.Builder.create()
+                .topic("other-topic")
+                .priority(0)
+                .payload("b1")
+                .attempt(0)
+                .build());
+
+        List<Message> messages = messageDao.getPendingMessagesAndMoveToProcessing(
+                List.of("lease-topic", "other-topic"), 1, 10, LocalDateTime.now().plusMinutes(30));
+
+        assertThat(messages).extracting(Message::getPayload).containsExactlyInAnyOrder("a1", "b1");
+        assertThat(countRecords("pgmq_message", "state = 1")).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("延时消息到期前不能被拉取")
+    void shouldNotClaimInvisibleMessages() {
+        messageDao.insertIntoInvisible(messageDO("lease-topic", "delayed", 0), LocalDateTime.now().plusMinutes(5));
+
+        List<Message> messages = messageDao.getPendingMessagesAndMoveToProcessing("lease-topic", 10,
+                LocalDateTime.now().plusMinutes(30));
+
+        assertThat(messages).isEmpty();
+    }
+
+    @Test
+    @DisplayName("租约过期的处理中消息应该能被重新拉取")
+    void shouldReclaimExpiredLease() {
+        messageDao.insertIntoPending(messageDO("lease-topic", "expired", 0));
+        messageDao.getPendingMessagesAndMoveToProcessing("lease-topic", 10, LocalDateTime.now().minusSeconds(1));
+
+        List<Message> messages = messageDao.getPendingMessagesAndMoveToProcessing("lease-topic", 10,
+                LocalDateTime.now().plusMinutes(30));
+
+        assertThat(messages).hasSize(1);
+        assertThat(messages.get(0).getAttempt()).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("删除、重试和死信应该只作用于处理中的消息")
+    void shouldSettleProcessingMessages() {
+        messageDao.insertIntoPending(Arrays.asList(
+                messageDO("lease-topic", "a", 0),
+                messageDO("lease-topic", "b", 0),
+                messageDO("lease-topic", "c", 0)
+        ));
+        List<Message> messages = messageDao.getPendingMessagesAndMoveToProcessing("lease-topic", 10,
+                LocalDateTime.now().plusMinutes(30));
+        assertThat(messages).hasSize(3);
+
+        messages.get(0).delete();
+        messages.get(1).dead();
+        messages.get(2).retry();
+
+        assertThat(countRecords("pgmq_message", "state = 0")).isEqualTo(1);
+        assertThat(countRecords("pgmq_message", "state = 1")).isEqualTo(0);
+        assertThat(countDeadMessages("lease-topic")).isEqualTo(1);
+        assertThat(messageDao.deleteProcessingMessageById(-1L, 1)).isEqualTo(0);
+    }
+
+    @Test
+    @DisplayName("租约过期被重新领取后,旧的持有者不能再确认或续期")
+    void shouldRejectSettleOfStaleLease() {
+        messageDao.insertIntoPending(messageDO("lease-topic", "expired", 0));
+        Message stale = messageDao.getPendingMessagesAndMoveToProcessing("lease-topic", 10,
+                LocalDateTime.now().minusSeconds(1)).get(0);
+        Message current = messageDao.getPendingMessagesAndMoveToProcessing("lease-topic", 10,
+                LocalDateTime.now().plusMinutes(30)).get(0);
+
+        assertThat(messageDao.extendProcessingTimeout(List.of(stale), LocalDateTime.now().plusMinutes(60))).isEmpty();
+        assertThat(messageDao.deleteProcessingMessages(List.of(stale))).isEmpty();
+        assertThat(messageDao.deleteProcessingMessageById(stale.getId(), stale.getAttempt())).isEqualTo(0);
+        assertThat(messageDao.deleteProcessingMessageById(current.getId(), current.getAttempt())).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("COPY写入应该进入消息表")
+    void shouldCopyMessages() {
+        long rows = messageDao.copyIntoPending(Arrays.asList(messageDO("lease-topic", "a", 0),
+                messageDO("lease-topic", "b", 0)));
+        messageDao.copyIntoInvisible(List.of(messageDO("lease-topic", "c", 0)), LocalDateTime.now().plusMinutes(5));
+
+        assertThat(rows).isEqualTo(2);
+        assertThat(countRecords("pgmq_message", "visible_time <= now()")).isEqualTo(2);
+        assertThat(countRecords("pgmq_message", "visible_time > now()")).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("同组消息应该在前一条确认后才能被拉取")
+    void shouldClaimOnlyHeadOfEachGroup() {
+        messageDao.insertIntoPending(Arrays.asList(
+                groupMessageDO("lease-topic", "a", "a1"),
+                groupMessageDO("lease-topic", "a", "a2"),
+                groupMessageDO("lease-topic", "b", "b1")
+        ));
+
+        List<Message> messages = messageDao.getPendingMessagesAndMoveToProcessing("lease-topic", 10,
+                LocalDateTime.now().plusMinutes(30));
+        assertThat(messages).extracting(Message::getPayload).containsExactly("a1", "b1");
+        assertThat(messageDao.getPendingMessagesAndMoveToProcessing("lease-topic", 10,
+                LocalDateTime.now().plusMinutes(30))).isEmpty();
+
+        messages.get(0).delete();
+        List<Message> next = messageDao.getPendingMessagesAndMoveToProcessing(List.of("lease-topic"), 10, 10,
+                LocalDateTime.now().plusMinutes(30));
+        assertThat(next).extracting(Message::getPayload).containsExactly("a2");
+    }
+
+    @Test
+    @DisplayName("续期应该只作用于处理中的消息")
+    void shouldExtendLeaseOfProcessingMessages() {
+        messageDao.insertIntoPending(Arrays.asList(messageDO("lease-topic", "a", 0), messageDO("lease-topic", "b", 0)));
+        List<Message> messages = messageDao.getPendingMessagesAndMoveToProcessing("lease-topic", 1,
+                LocalDateTime.now().plusSeconds(30));
+        Long id = messages.get(0).getId();
+        Message pending = Message.Builder.create().from(messages.get(0)).id(id + 1).build();
+
+        assertThat(messageDao.extendProcessingTimeout(List.of(messages.get(0), pending),
+                LocalDateTime.now().plusMinutes(10))).containsExactly(id);
+        assertThat(countRecords("pgmq_message", "state = 1 and visible_time > now() + interval '5 minutes'"))
+                .isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("应该能够原地回收心跳超时节点处理中的消息")
+    void shouldReclaimDeadNodeMessagesInPlace() {
+        new QueueDao(jdbcTemplate).heartbeat("dead-node");
+        LeaseMessageDao deadNodeDao = new LeaseMessageDao(jdbcTemplate, "dead-node");
+        deadNodeDao.insertIntoPending(messageDO("lease-topic", "a", 0));
+        deadNodeDao.getPendingMessagesAndMoveToProcessing("lease-topic", 1, LocalDateTime.now().plusMinutes(30));
+        jdbcTemplate.update("update pgmq_node set heartbeat_time = now() - interval '1 minute'");
+
+        assertThat(messageDao.moveDeadNodeMessagesToPending(Duration.ofSeconds(30))).containsExactly("lease-topic");
+        assertThat(countRecords("pgmq_message", "state = 0 and visible_time <= now()")).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("只有领取消息的节点才能确认或续期")
+    void shouldRejectSettleFromOtherNode() {
+        LeaseMessageDao ownerDao = new LeaseMessageDao(jdbcTemplate, "owner-node");
+        LeaseMessageDao otherDao = new LeaseMessageDao(jdbcTemplate, "other-node");
+        ownerDao.insertIntoPending(messageDO("lease-topic", "a", 0));
+        Message message = ownerDao.getPendingMessagesAndMoveToProcessing("lease-topic", 1,
+                LocalDateTime.now().plusMinutes(30)).get(0);
+
+        assertThat(otherDao.extendProcessingTimeout(List.of(message), LocalDateTime.now().plusMinutes(60))).isEmpty();
+        assertThat(otherDao.deleteProcessingMessageById(message.getId(), message.getAttempt())).isEqualTo(0);
+        assertThat(ownerDao.deleteProcessingMessages(List.of(message))).containsExactly(message.getId());
+    }
+
+    @Test
+    @DisplayName("应该只查询待处理消息的到期延时时间")
+    void shouldGetNextVisibleDelaysOfPendingMessages() {
+        messageDao.insertIntoInvisible(messageDO("lease-topic", "delayed", 0), LocalDateTime.now().plusSeconds(10));
+        messageDao.insertIntoPending(messageDO("lease-topic", "processing", 0));
+        messageDao.getPendingMessagesAndMoveToProcessing("lease-topic", 10, LocalDateTime.now().plusSeconds(20));
+
+        List<Long> delays = messageDao.getNextVisibleDelays(Duration.ofMinutes(1), 10);
+
+        assertThat(delays).hasSize(1);
+        assertThat(delays.get(0)).isBetween(8_000L, 10_000L);
+    }
+
+    @Test
+    @DisplayName("应该能够检查topic是否有可拉取的消息")
+    void shouldCheckAvailableMessages() {
+        messageDao.insertIntoInvisible(messageDO("lease-topic", "delayed", 0), LocalDateTime.now().plusMinutes(5));
+        assertThat(messageDao.hasAvailableMessages("lease-topic")).isFalse();
+
+        messageDao.insertIntoPending(messageDO("lease-topic", "pending", 0));
+        assertThat(messageDao.hasAvailableMessages("lease-topic")).isTrue();
+
+        messageDao.getPendingMessagesAndMoveToProcessing("lease-topic", 10, LocalDateTime.now().plusMinutes(30));
+        assertThat(messageDao.hasAvailableMessages("lease-topic")).isFalse();
+    }
+}
@@ -5,7 +5,9 @@ import static org.assertj.core.api.Assertions.assertThat;
 import github.luckygc.pgq.integration.BaseIntegrationTest;
 import github.luckygc.pgq.model.Message;
 import github.luckygc.pgq.model.MessageDO;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import org.junit.jupiter.api.BeforeEach;
@@ -170,6 +172,31 @@ class MessageDaoTest extends BaseIntegrationTest {
         assertThat(pendingCount).isEqualTo(2);
     }
 
+    @Test
+    @DisplayName("应该能够以单条语句为多个topic拉取消息并限制每个topic和合计数量")
+    void shouldGetPendingMessagesOfMultipleTopics() {
+        for (String topic : List.of("topic-a", "topic-b", "topic-c")) {
+            for (int i = 0; i < 3; i++) {
+                messageDao.insertIntoPending(MessageDO.Builder.create()
+                        .topic(topic)
+                        .priority(0)
+                        .payload(topic + i)
+                        .attempt(0)
+                        .build());
+            }
+        }
+
+        List<Message> messages = messageDao.getPendingMessagesAndMoveToProcessing(
+                List.of("topic-a", "topic-b", "topic-c"), 2, 5, LocalDateTime.now().plusMinutes(30));
+
+        assertThat(messages).hasSize(5);
+        assertThat(messages).filteredOn(m -> m.getTopic().equals("topic-a")).hasSize(2);
+        assertThat(messages).filteredOn(m -> m.getTopic().equals("topic-b")).hasSize(2);
+        assertThat(messages).filteredOn(m -> m.getTopic().equals("topic-c")).hasSize(1);
+        assertThat(countProcessingMessages("topic-a")).isEqualTo(2);
+        assertThat(countPendingMessages("topic-c")).isEqualTo(2);
+    }
+
     @Test
     @DisplayName("应该能够根据ID删除处理队列中的消息")
     void shouldDeleteProcessingMessageById() {
@@ -182,7 +209,7 @@ class MessageDaoTest extends BaseIntegrationTest {
                 1L, LocalDateTime.now(), "test-topic", 0, "test payload", 0, LocalDateTime.now().plusMinutes(30)
         );
 
-        int deleteCount = messageDao.deleteProcessingMessageById(1L);
+        int deleteCount = messageDao.deleteProcessingMessageById(1L, 0);
 
         assertThat(deleteCount).isEqualTo(1);
 
@@ -206,7 +233,7 @@ class MessageDaoTest extends BaseIntegrationTest {
                 1L, LocalDateTime.now(), "test-topic", 0, "test payload", 0, LocalDateTime.now().plusMinutes(30)
         );
 
-        int moveCount = messageDao.moveProcessingMessageToDeadById(1L);
+        int moveCount = messageDao.moveProcessingMessageToDeadById(1L, 0);
 
         assertThat(moveCount).isEqualTo(1);
 
@@ -239,7 +266,7 @@ class MessageDaoTest extends BaseIntegrationTest {
                 1L, LocalDateTime.now(), "test-topic", 0, "test payload", 0, LocalDateTime.now().plusMinutes(30)
         );
 
-        int moveCount = messageDao.moveProcessingMessageToPendingById(1L);
+        int moveCount = messageDao.moveProcessingMessageToPendingById(1L, 0);
 
         assertThat(moveCount).isEqualTo(1);
 
@@ -263,21 +290,313 @@ class MessageDaoTest extends BaseIntegrationTest {
     @Test
     @DisplayName("删除不存在的消息时应该返回0")
     void shouldReturnZeroWhenDeletingNonExistentMessage() {
-        int deleteCount = messageDao.deleteProcessingMessageById(999L);
+        int deleteCount = messageDao.deleteProcessingMessageById(999L, 0);
         assertThat(deleteCount).isEqualTo(0);
     }
 
     @Test
     @DisplayName("移动不存在的消息到死信队列时应该返回0")
     void shouldReturnZeroWhenMovingNonExistentMessageToDead() {
-        int moveCount = messageDao.moveProcessingMessageToDeadById(999L);
+        int moveCount = messageDao.moveProcessingMessageToDeadById(999L, 0);
         assertThat(moveCount).isEqualTo(0);
     }
 
     @Test
     @DisplayName("移动不存在的消息到待处理队列时应该返回0")
     void shouldReturnZeroWhenMovingNonExistentMessageToPending() {
-        int moveCount = messageDao.moveProcessingMessageToPendingById(999L);
+        int moveCount = messageDao.moveProcessingMessageToPendingById(999L, 0);
         assertThat(moveCount).isEqualTo(0);
     }
+
+    @Test
+    @DisplayName("应该能够通过COPY批量写入待处理队列并保留特殊字符")
+    void shouldCopyMessagesIntoPending() {
+        String payload = "tab\there\nnew line\\back slash\r中文";
+        List<MessageDO> messageDOs = Arrays.asList(
+                MessageDO.Builder.create()
+                        .topic("copy-topic")
+                        .priority(3)
+                        .payload(payload)
+                        .attempt(0)
+                        .build(),
+                MessageDO.Builder.create()
+                        .topic("copy-topic")
+                        .priority(1)
+                        .payload("plain")
+                        .attempt(0)
+                        .build()
+        );
+
+        long rows = messageDao.copyIntoPending(messageDOs);
+
+        assertThat(rows).isEqualTo(2);
+        List<Message> messages = messageDao.getPendingMessagesAndMoveToProcessing("copy-topic", 10,
+                LocalDateTime.now().plusMinutes(30));
+        assertThat(messages).hasSize(2);
+        assertThat(messages.get(0).getPayload()).isEqualTo(payload);
+        assertThat(messages.get(0).getPriority()).isEqualTo(3);
+        assertThat(messages.get(1).getPayload()).isEqualTo("plain");
+    }
+
+    @Test
+    @DisplayName("应该能够以单条语句写入多条消息")
+    void shouldMultiInsertMessagesIntoPending() {
+        List<MessageDO> messageDOs = Arrays.asList(
+                MessageDO.Builder.create()
+                        .topic("multi-insert-topic")
+                        .priority(0)
+                        .payload("message1")
+                        .attempt(0)
+                        .build(),
+                MessageDO.Builder.create()
+                        .topic("multi-insert-topic-2")
+                        .priority(2)
+                        .payload("message2")
+                        .attempt(0)
+                        .build()
+        );
+
+        int rows = messageDao.multiInsertIntoPending(messageDOs);
+
+        assertThat(rows).isEqualTo(2);
+        List<Message> messages = messageDao.getPendingMessagesAndMoveToProcessing("multi-insert-topic-2", 10,
+                LocalDateTime.now().plusMinutes(30));
+        assertThat(messages).hasSize(1);
+        assertThat(messages.get(0).getPayload()).isEqualTo("message2");
+        assertThat(messages.get(0).getPriority()).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("应该能够通过COPY批量写入不可见队列")
+    void shouldCopyMessagesIntoInvisible() {
+        List<MessageDO> messageDOs = Arrays.asList(
+                MessageDO.Builder.create()
+                        .topic("copy-topic")
+                        .priority(0)
+                        .payload("message1")
+                        .attempt(0)
+                        .build(),
+                MessageDO.Builder.create()
+                        .topic("copy-topic")
+                        .priority(0)
+                        .payload("message2")
+                        .attempt(0)
+                        .build()
+        );
+
+        long rows = messageDao.copyIntoInvisible(messageDOs, LocalDateTime.now().plusMinutes(5));
+
+        assertThat(rows).isEqualTo(2);
+        Integer count = jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM pgmq_invisible_queue WHERE topic = ? AND visible_time > now()",
+                Integer.class,
+                "copy-topic"
+        );
+        assertThat(count).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("应该能够以单条语句批量确认、重试和死信处理中的消息")
+    void shouldSettleProcessingMessagesInBatch() {
+        for (int i = 1; i <= 4; i++) {
+            messageDao.insertIntoPending(messageDO("test-topic", "payload" + i, 0));
+        }
+        List<Message> messages = messageDao.getPendingMessagesAndMoveToProcessing("test-topic", 10,
+                LocalDateTime.now().plusMinutes(30));
+        Message missing = Message.Builder.create().from(messages.get(0)).id(999L).build();
+
+        assertThat(messageDao.deleteProcessingMessages(List.of(messages.get(0), missing)))
+                .containsExactly(messages.get(0).getId());
+        assertThat(messageDao.moveProcessingMessagesToDead(List.of(messages.get(1))))
+                .containsExactly(messages.get(1).getId());
+        assertThat(messageDao.moveProcessingMessagesToPending(List.of(messages.get(2))))
+                .containsExactly(messages.get(2).getId());
+        assertThat(messageDao.moveProcessingMessagesToInvisible(List.of(messages.get(3)),
+                LocalDateTime.now().plusMinutes(1))).containsExactly(messages.get(3).getId());
+
+        assertThat(countProcessingMessages("test-topic")).isEqualTo(0);
+        assertThat(countDeadMessages("test-topic")).isEqualTo(1);
+        assertThat(countPendingMessages("test-topic")).isEqualTo(1);
+        assertThat(countInvisibleMessages("test-topic")).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("同组消息应该按顺序逐条拉取,不同组之间并行拉取")
+    void shouldClaimOnlyHeadOfEachGroup() {
+        messageDao.insertIntoPending(Arrays.asList(
+                groupMessageDO("group-topic", "a", "a1"),
+                groupMessageDO("group-topic", "a", "a2"),
+                groupMessageDO("group-topic", "b", "b1"),
+                messageDO("group-topic", "n1", 0)
+        ));
+
+        List<Message> messages = messageDao.getPendingMessagesAndMoveToProcessing("group-topic", 10,
+                LocalDateTime.now().plusMinutes(30));
+        assertThat(messages).extracting(Message::getPayload).containsExactly("a1", "b1", "n1");
+        assertThat(messages.get(0).getGroupKey()).isEqualTo("a");
+
+        assertThat(messageDao.getPendingMessagesAndMoveToProcessing("group-topic", 10,
+                LocalDateTime.now().plusMinutes(30))).isEmpty();
+
+        messages.get(0).retry();
+        List<Message> retried = messageDao.getPendingMessagesAndMoveToProcessing("group-topic", 10,
+                LocalDateTime.now().plusMinutes(30));
+        assertThat(retried).extracting(Message::getPayload).containsExactly("a1");
+
+        retried.get(0).delete();
+        List<Message> next = messageDao.getPendingMessagesAndMoveToProcessing(List.of("group-topic"), 10, 10,
+                LocalDateTime.now().plusMinutes(30));
+        assertThat(next).extracting(Message::getPayload).containsExactly("a2");
+    }
+
+    @Test
+    @DisplayName("应该能够以单条语句延长处理中消息的超时时间")
+    void shouldExtendProcessingTimeoutInBatch() {
+        messageDao.insertIntoPending(messageDO("group-topic", "lease", 0));
+        List<Message> messages = messageDao.getPendingMessagesAndMoveToProcessing("group-topic", 10,
+                LocalDateTime.now().plusSeconds(30));
+        Message missing = Message.Builder.create().from(messages.get(0)).id(-1L).build();
+
+        assertThat(messageDao.extendProcessingTimeout(List.of(messages.get(0), missing),
+                LocalDateTime.now().plusMinutes(10))).containsExactly(messages.get(0).getId());
+        assertThat(messageDao.extendProcessingTimeoutById(-1L, 1, LocalDateTime.now())).isEqualTo(0);
+        assertThat(countRecords("pgmq_processing_queue", "timeout_time > now() + interval '5 minutes'"))
+                .isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("应该能够回收心跳超时节点处理中的消息")
+    void shouldMoveDeadNodeMessagesToPending() {
+        QueueDao queueDao = new QueueDao(jdbcTemplate);
+        queueDao.heartbeat("dead-node");
+        queueDao.heartbeat("alive-node");
+        MessageDao deadNodeDao = new MessageDao(jdbcTemplate, "dead-node");
+        deadNodeDao.insertIntoPending(Arrays.asList(messageDO("group-topic", "a", 0),
+                messageDO("group-topic", "b", 0)));
+        deadNodeDao.getPendingMessagesAndMoveToProcessing("group-topic", 1, LocalDateTime.now().plusMinutes(30));
+        MessageDao aliveNodeDao = new MessageDao(jdbcTemplate, "alive-node");
+        aliveNodeDao.getPendingMessagesAndMoveToProcessing("group-topic", 1, LocalDateTime.now().plusMinutes(30));
+        jdbcTemplate.update("update pgmq_node set heartbeat_time = now() - interval '1 minute' where node_id = ?",
+                "dead-node");
+
+        assertThat(aliveNodeDao.moveDeadNodeMessagesToPending(Duration.ofSeconds(30))).containsExactly("group-topic");
+        assertThat(countPendingMessages("group-topic")).isEqualTo(1);
+        assertThat(countRecords("pgmq_processing_queue", "node_id = ?", "alive-node")).isEqualTo(1);
+
+        assertThat(aliveNodeDao.moveNodeMessagesToPending("alive-node")).containsExactly("group-topic");
+        assertThat(countPendingMessages("group-topic")).isEqualTo(2);
+        assertThat(countRecords("pgmq_node", "true")).isEqualTo(0);
+    }
+
+    @Test
+    @DisplayName("被判定宕机的节点恢复后,不能再确认或续期已被其他节点领取的消息")
+    void shouldRejectSettleFromResumedDeadNode() {
+        QueueDao queueDao = new QueueDao(jdbcTemplate);
+        queueDao.heartbeat("dead-node");
+        queueDao.heartbeat("alive-node");
+        MessageDao deadNodeDao = new MessageDao(jdbcTemplate, "dead-node");
+        MessageDao aliveNodeDao = new MessageDao(jdbcTemplate, "alive-node");
+        deadNodeDao.insertIntoPending(messageDO("group-topic", "a", 0));
+        Message stale = deadNodeDao.getPendingMessagesAndMoveToProcessing("group-topic", 1,
+                LocalDateTime.now().plusMinutes(30)).get(0);
+        assertThat(aliveNodeDao.deleteProcessingMessageById(stale.getId(), stale.getAttempt())).isEqualTo(0);
+
+        jdbcTemplate.update("update pgmq_node set heartbeat_time = now() - interval '1 minute' where node_id = ?",
+                "dead-node");
+        aliveNodeDao.moveDeadNodeMessagesToPending(Duration.ofSeconds(30));
+        final Message current = aliveNodeDao.getPendingMessagesAndMoveToProcessing("group-topic", 1,
+                LocalDateTime.now().plusMinutes(30)).get(0);
+        queueDao.heartbeat("dead-node");
+
+        assertThat(deadNodeDao.extendProcessingTimeout(List.of(stale), LocalDateTime.now().plusMinutes(60))).isEmpty();
+        assertThat(deadNodeDao.deleteProcessingMessages(List.of(stale))).isEmpty();
+        assertThat(deadNodeDao.deleteProcessingMessageById(stale.getId(), stale.getAttempt())).isEqualTo(0);
+        assertThat(aliveNodeDao.deleteProcessingMessages(List.of(current))).containsExactly(current.getId());
+    }
+
+    @Test
+    @DisplayName("应该能够查询即将到期的延时时间并通知写入")
+    void shouldGetNextVisibleDelays() {
+        List<LocalDateTime> delayed = new ArrayList<>();
+        MessageDao delayedDao = new MessageDao(jdbcTemplate, null, delayed::add);
+        LocalDateTime soon = LocalDateTime.now().plusSeconds(10);
+        delayedDao.insertIntoInvisible(Arrays.asList(messageDO("group-topic", "a", 0),
+                messageDO("group-topic", "b", 0)), soon);
+        delayedDao.insertIntoInvisible(messageDO("group-topic", "c", 0), LocalDateTime.now().plusSeconds(20));
+        delayedDao.insertIntoInvisible(messageDO("group-topic", "d", 0), LocalDateTime.now().plusMinutes(5));
+
+        List<Long> delays = delayedDao.getNextVisibleDelays(Duration.ofMinutes(1), 10);
+
+        assertThat(delayed).hasSize(3).startsWith(soon);
+        assertThat(delays).hasSize(2);
+        assertThat(delays.get(0)).isBetween(8_000L, 10_000L);
+        assertThat(delays.get(1)).isBetween(18_000L, 20_000L);
+        assertThat(delayedDao.getNextVisibleDelays(Duration.ofMinutes(1), 1)).hasSize(1);
+    }
+
+    @Test
+    @DisplayName("开启后拉取应该原地续租处理超时的消息")
+    void shouldReclaimExpiredMessagesOnPoll() {
+        MessageDao reclaimDao = new MessageDao(jdbcTemplate, "node-1", null, true);
+        reclaimDao.insertIntoPending(Arrays.asList(
+                groupMessageDO("group-topic", "a", "a1"),
+                groupMessageDO("group-topic", "a", "a2"),
+                messageDO("group-topic", "b1", 0)
+        ));
+        reclaimDao.getPendingMessagesAndMoveToProcessing("group-topic", 1, LocalDateTime.now().minusSeconds(1));
+
+        List<Message> messages = reclaimDao.getPendingMessagesAndMoveToProcessing("group-topic", 10,
+                LocalDateTime.now().plusMinutes(30));
+
+        assertThat(messages).extracting(Message::getPayload).containsExactly("a1", "b1");
+        assertThat(messages.get(0).getAttempt()).isEqualTo(2);
+        assertThat(countProcessingMessages("group-topic")).isEqualTo(2);
+        assertThat(countRecords("pgmq_processing_queue", "timeout_time > now() and attempt = 2")).isEqualTo(1);
+        assertThat(reclaimDao.getPendingMessagesAndMoveToProcessing(List.of("group-topic"), 10, 10,
+                LocalDateTime.now().plusMinutes(30))).isEmpty();
+    }
+
+    @Test
+    @DisplayName("处理超时被原地续租后,旧的持有者不能再确认、重试或续期")
+    void shouldRejectSettleOfReclaimedMessage() {
+        MessageDao reclaimDao = new MessageDao(jdbcTemplate, "node-1", null, true);
+        reclaimDao.insertIntoPending(messageDO("group-topic", "a", 0));
+        Message stale = reclaimDao.getPendingMessagesAndMoveToProcessing("group-topic", 1,
+                LocalDateTime.now().minusSeconds(1)).get(0);
+        Message current = reclaimDao.getPendingMessagesAndMoveToProcessing("group-topic", 1,
+                LocalDateTime.now().plusMinutes(30)).get(0);
+
+        assertThat(current.getAttempt()).isEqualTo(stale.getAttempt() + 1);
+        assertThat(stale.extendLease(Duration.ofMinutes(60))).isFalse();
+        assertThat(reclaimDao.moveProcessingMessagesToPending(List.of(stale))).isEmpty();
+        stale.delete();
+        assertThat(countProcessingMessages("group-topic")).isEqualTo(1);
+
+        current.delete();
+        assertThat(countProcessingMessages("group-topic")).isEqualTo(0);
+    }
+
+    @Test
+    @DisplayName("未开启时拉取不应该领取处理超时的消息")
+    void shouldNotReclaimExpiredMessagesByDefault() {
+        messageDao.insertIntoPending(messageDO("group-topic", "a", 0));
+        messageDao.getPendingMessagesAndMoveToProcessing("group-topic", 1, LocalDateTime.now().minusSeconds(1));
+
+        assertThat(messageDao.getPendingMessagesAndMoveToProcessing("group-topic", 10,
+                LocalDateTime.now().plusMinutes(30))).isEmpty();
+    }
+
+    @Test
+    @DisplayName("应该能够检查topic是否有可拉取的消息")
+    void shouldCheckAvailableMessages() {
+        assertThat(messageDao.hasAvailableMessages("group-topic")).isFalse();
+
+        messageDao.insertIntoInvisible(messageDO("group-topic", "a", 0), LocalDateTime.now().plusMinutes(5));
+        messageDao.insertIntoPending(messageDO("group-topic", "b", 0));
+        assertThat(messageDao.hasAvailableMessages("group-topic")).isTrue();
+
+        messageDao.getPendingMessagesAndMoveToProcessing("group-topic", 10, LocalDateTime.now().minusSeconds(1));
+        assertThat(messageDao.hasAvailableMessages("group-topic")).isFalse();
+        assertThat(new MessageDao(jdbcTemplate, "node-1", null, true).hasAvailableMessages("group-topic")).isTrue();
+    }
 }
@@ -3,10 +3,20 @@ package github.luckygc.pgq.dao;
 import static org.assertj.core.api.Assertions.assertThat;
 
 import github.luckygc.pgq.integration.BaseIntegrationTest;
+import github.luckygc.pgq.model.PgmqConstants;
+import github.luckygc.pgq.tool.TopicChannels;
+import java.sql.SQLException;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
 @Testcontainers
@@ -26,6 +36,131 @@ class QueueDaoTest extends BaseIntegrationTest {
         assertThat(topics).isEmpty();
     }
 
+    @Test
+    void shouldKeepVisibleMessagesInInvisibleQueueWhenPromotionDisabled() {
+        jdbcTemplate.update("""
+                        INSERT INTO pgmq_invisible_queue
+                            (id, create_time, topic, priority, payload, attempt, visible_time)
+                        VALUES (?, ?, ?, ?, ?, ?, ?)
+                        """,
+                1L, LocalDateTime.now(), "visible-topic", 0, "visible message", 0, LocalDateTime.now().minusMinutes(1)
+        );
+
+        Set<String> topics = queueDao.moveTimeoutAndVisibleMsgToPending(false, PgmqConstants.PROMOTE_BATCH_SIZE)
+                .keySet();
+
+        assertThat(topics).isEmpty();
+        assertThat(countInvisibleMessages("visible-topic")).isEqualTo(1);
+    }
+
+    @Test
+    void shouldMoveVisibleMessagesInBatches() {
+        for (long id = 1; id <= 5; id++) {
+            jdbcTemplate.update("""
+                            INSERT INTO pgmq_invisible_queue
+                                (id, create_time, topic, priority, payload, attempt, visible_time)
+                            VALUES (?, ?, ?, ?, ?, ?, ?)
+                            """,
+                    id, LocalDateTime.now(), "batch-topic", 0, "message " + id, 0, LocalDateTime.now().minusMinutes(1)
+            );
+        }
+
+        Map<String, Integer> first = queueDao.moveTimeoutAndVisibleMsgToPending(true, 3);
+        Map<String, Integer> second = queueDao.moveTimeoutAndVisibleMsgToPending(true, 3);
+
+        assertThat(first).containsEntry("batch-topic", 3);
+        assertThat(QueueDao.isFullBatch(first, 3)).isTrue();
+        assertThat(second).containsEntry("batch-topic", 2);
+        assertThat(QueueDao.isFullBatch(second, 3)).isFalse();
+        assertThat(countPendingMessages("batch-topic")).isEqualTo(5);
+    }
+
+    @Test
+    void shouldMoveOnlyMessagesOfGivenShard() {
+        for (long id = 1; id <= 4; id++) {
+            jdbcTemplate.update("""
+                            INSERT INTO pgmq_invisible_queue
+                                (id, create_time, topic, priority, payload, attempt, visible_time)
+                            VALUES (?, ?, ?, ?, ?, ?, ?)
+                            """,
+                    id, LocalDateTime.now(), "shard-topic", 0, "message " + id, 0, LocalDateTime.now().minusMinutes(1)
+            );
+        }
+
+        assertThat(queueDao.moveTimeoutAndVisibleMsgToPending(true, 10, 1, 2)).containsEntry("shard-topic", 2);
+        assertThat(countRecords("pgmq_invisible_queue", "mod(id, 2) = 0")).isEqualTo(2);
+        assertThat(countRecords("pgmq_pending_queue", "mod(id, 2) = 1")).isEqualTo(2);
+
+        assertThat(queueDao.moveTimeoutAndVisibleMsgToPending(true, 10, 0, 2)).containsEntry("shard-topic", 2);
+        assertThat(countInvisibleMessages("shard-topic")).isEqualTo(0);
+    }
+
+    @Test
+    void shouldTagNotifyWithSenderNode() throws SQLException {
+        SingleConnectionDataSource singleDataSource = new SingleConnectionDataSource(getJdbcUrl(), getUsername(),
+                getPassword(), true);
+        JdbcTemplate singleJdbcTemplate = new JdbcTemplate(singleDataSource);
+        QueueDao notifyDao = new QueueDao(singleJdbcTemplate, "node-1");
+        notifyDao.heartbeat("node-1");
+        notifyDao.subscribe("topic-a", "node-1");
+        singleJdbcTemplate.execute("listen \"" + TopicChannels.topicChannel("topic-a") + "\"");
+        singleJdbcTemplate.execute("listen \"" + TopicChannels.topicChannel("topic-b") + "\"");
+        singleJdbcTemplate.execute("listen " + PgmqConstants.DELAY_CHANNEL);
+
+        notifyDao.sendNotify(Map.of("topic-a", 3, "topic-b", 1));
+        notifyDao.sendDelayNotify(500);
+
+        PGNotification[] notifications = singleDataSource.getConnection().unwrap(PGConnection.class)
+                .getNotifications(1000);
+        assertThat(notifications).extracting(PGNotification::getParameter)
+                .containsExactly("3@node-1:topic-a", "500@node-1");
+        singleDataSource.destroy();
+    }
+
+    @Test
+    void shouldRegisterSubscriptionsAndCascadeOnNodeRemoval() {
+        queueDao.heartbeat("node-1");
+        queueDao.subscribe("topic-a", "node-1");
+        queueDao.subscribe(List.of("topic-a", "topic-b"), "node-1");
+        assertThat(countRecords("pgmq_subscription", "node_id = 'node-1'")).isEqualTo(2);
+
+        queueDao.unsubscribe("topic-a", "node-1");
+        assertThat(countRecords("pgmq_subscription", "topic = 'topic-a'")).isEqualTo(0);
+
+        jdbcTemplate.update("delete from pgmq_node where node_id = 'node-1'");
+        assertThat(countRecords("pgmq_subscription", "")).isEqualTo(0);
+    }
+
+    @Test
+    void shouldGetSubscribersOfLiveNodesOnly() {
+        queueDao.heartbeat("node-1");
+        queueDao.heartbeat("node-2");
+        queueDao.subscribe(List.of("topic-a", "topic-b"), "node-1");
+        queueDao.subscribe("topic-a", "node-2");
+        jdbcTemplate.update("update pgmq_node set heartbeat_time = now() - interval '1 hour' where node_id = 'node-2'");
+
+        assertThat(queueDao.getSubscribers(List.of("topic-a", "topic-c"), Duration.ofMinutes(1)))
+                .containsExactlyEntriesOf(Map.of("topic-a", List.of("node-1")));
+    }
+
+    @Test
+    void shouldIncreaseAndGetWatermarks() {
+        queueDao.increaseWatermarks(List.of("topic-a"));
+        queueDao.increaseWatermarks(List.of("topic-a", "topic-b"));
+
+        assertThat(queueDao.getWatermarks(List.of("topic-a", "topic-b", "topic-c")))
+                .containsExactlyInAnyOrderEntriesOf(Map.of("topic-a", 2L, "topic-b", 1L));
+    }
+
+    @Test
+    void shouldRegisterAndRefreshNodeHeartbeat() {
+        queueDao.heartbeat("node-1");
+        jdbcTemplate.update("update pgmq_node set heartbeat_time = now() - interval '1 hour'");
+        queueDao.heartbeat("node-1");
+
+        assertThat(countRecords("pgmq_node", "heartbeat_time > now() - interval '1 minute'")).isEqualTo(1);
+    }
+
     @Test
     void shouldMoveTimeoutProcessingMessagesToPending() {
         // 插入一条超时的处理中消息
@@ -0,0 +1,118 @@
+package github.luckygc.pgq.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import github.luckygc.pgq.dao.MessageDao;
+import github.luckygc.pgq.model.MessageDO;
+import github.luckygc.pgq.model.PgmqConfig;
+import github.luckygc.pgq.tool.MessageProcessorDispatcher;
+import github.luckygc.pgq.tool.PgNotifier;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class AsyncMessageQueueImplTest {
+
+    @Mock
+    private MessageDao messageDao;
+
+    @Mock
+    private MessageProcessorDispatcher dispatcher;
+
+    @Mock
+    private PgNotifier pgNotifier;
+
+    private AsyncMessageQueueImpl asyncQueue;
+
+    @BeforeEach
+    void setUp() {
+        PgmqConfig config = PgmqConfig.Builder.create()
+                .asyncBatchSize(100)
+                .asyncLinger(Duration.ofMillis(50))
+                .build();
+        asyncQueue = new AsyncMessageQueueImpl(messageDao, dispatcher, pgNotifier, config);
+    }
+
+    @AfterEach
+    void tearDown() {
+        asyncQueue.shutdown();
+    }
+
+    @Test
+    void shouldMergeConcurrentSendsIntoOneInsert() throws Exception {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            String topic = "topic-" + (i % 2);
+            Thread thread = new Thread(() -> {
+                synchronized (futures) {
+                    futures.add(asyncQueue.send(topic, "message"));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+
+        ArgumentCaptor<List<MessageDO>> captor = ArgumentCaptor.forClass(List.class);
+        verify(messageDao, atLeastOnce()).multiInsertIntoPending(captor.capture());
+        int total = captor.getAllValues().stream().mapToInt(List::size).sum();
+        assertThat(total).isEqualTo(10);
+        assertThat(captor.getAllValues().size()).isLessThan(10);
+        verify(dispatcher, timeout(1000).atLeastOnce()).dispatch("topic-0");
+        verify(dispatcher, timeout(1000).atLeastOnce()).dispatch("topic-1");
+    }
+
+    @Test
+    void shouldCompleteExceptionallyWhenInsertFails() {
+        when(messageDao.multiInsertIntoPending(anyList())).thenThrow(new IllegalStateException("db down"));
+
+        CompletableFuture<Void> future = asyncQueue.send("topic", "message");
+
+        assertThatThrownBy(() -> future.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void shouldKeepFlushingWhenNotifyFails() throws Exception {
+        doThrow(new IllegalStateException("notify failed")).when(pgNotifier).sendNotify(anyList());
+
+        asyncQueue.send("topic", "message").get(5, TimeUnit.SECONDS);
+        asyncQueue.send("topic", "message").get(5, TimeUnit.SECONDS);
+
+        verify(messageDao, times(2)).multiInsertIntoPending(anyList());
+    }
+
+    @Test
+    void shouldRejectSendAfterShutdown() {
+        asyncQueue.shutdown();
+
+        CompletableFuture<Void> future = asyncQueue.send("topic", "message");
+
+        assertThat(future).isCompletedExceptionally();
+    }
+}
@@ -3,7 +3,9 @@ package github.luckygc.pgq.impl;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
@@ -11,6 +13,8 @@ import static org.mockito.Mockito.when;
 import github.luckygc.pgq.dao.MessageDao;
 import github.luckygc.pgq.model.Message;
 import github.luckygc.pgq.model.MessageDO;
+import github.luckygc.pgq.model.PgmqConfig;
+import github.luckygc.pgq.model.SettleResult;
 import github.luckygc.pgq.model.PgmqConstants;
 import github.luckygc.pgq.tool.MessageProcessorDispatcher;
 import github.luckygc.pgq.tool.PgNotifier;
@@ -19,12 +23,16 @@ import java.time.LocalDateTime;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
 
 @ExtendWith(MockitoExtension.class)
 class MessageQueueImplTest {
@@ -89,7 +97,7 @@ class MessageQueueImplTest {
 
         ArgumentCaptor<List<MessageDO>> messagesCaptor = ArgumentCaptor.forClass(List.class);
         verify(messageDao).insertIntoPending(messagesCaptor.capture());
-        verify(pgNotifier).sendNotify(topic);
+        verify(pgNotifier).sendNotify(topic, 3);
         verify(dispatcher).dispatch(topic);
 
         List<MessageDO> capturedMessages = messagesCaptor.getValue();
@@ -99,6 +107,63 @@ class MessageQueueImplTest {
         assertThat(capturedMessages.get(2).getPayload()).isEqualTo("message3");
     }
 
+    @Test
+    void shouldSendGroupMessages() {
+        String topic = "test-topic";
+
+        messageQueue.send(topic, "order-1", Arrays.asList("created", "paid"));
+
+        ArgumentCaptor<List<MessageDO>> messagesCaptor = ArgumentCaptor.forClass(List.class);
+        verify(messageDao).insertIntoPending(messagesCaptor.capture());
+        verify(pgNotifier).sendNotify(List.of(topic));
+        verify(dispatcher).dispatch(topic);
+
+        assertThat(messagesCaptor.getValue()).extracting(MessageDO::getGroupKey)
+                .containsExactly("order-1", "order-1");
+        assertThatThrownBy(() -> messageQueue.send(topic, null, "message"))
+                .isInstanceOf(NullPointerException.class);
+    }
+
+    @Test
+    void shouldCopyMessagesWhenBatchReachesCopyThreshold() {
+        MessageQueueImpl copyQueue = new MessageQueueImpl(messageDao, dispatcher, pgNotifier,
+                PgmqConfig.Builder.create().copyThreshold(2).build());
+        String topic = "test-topic";
+
+        copyQueue.send(topic, Arrays.asList("message1", "message2"));
+        copyQueue.send(topic, Arrays.asList("delayed1", "delayed2"), Duration.ofMinutes(1));
+        copyQueue.send(topic, Arrays.asList("priority1"), 5);
+
+        verify(messageDao).copyIntoPending(anyList());
+        verify(messageDao).copyIntoInvisible(anyList(), any(LocalDateTime.class));
+        verify(messageDao).insertIntoPending(anyList());
+    }
+
+    @Test
+    void shouldBufferSendsInTransactionAndInsertOnceBeforeCommit() {
+        MessageQueueImpl bufferedQueue = new MessageQueueImpl(messageDao, dispatcher, pgNotifier,
+                PgmqConfig.Builder.create().transactionSendBuffer(true).build());
+        String topic = "test-topic";
+
+        TransactionSynchronizationManager.initSynchronization();
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+        try {
+            for (int i = 0; i < 200; i++) {
+                bufferedQueue.send(topic, "message" + i);
+            }
+            verify(messageDao, never()).insertIntoPending(any(MessageDO.class));
+
+            TransactionSynchronizationUtils.triggerBeforeCommit(false);
+        } finally {
+            TransactionSynchronizationManager.clear();
+            TransactionSynchronizationManager.unbindResourceIfPossible(bufferedQueue);
+        }
+
+        ArgumentCaptor<List<MessageDO>> messagesCaptor = ArgumentCaptor.forClass(List.class);
+        verify(messageDao).multiInsertIntoPending(messagesCaptor.capture());
+        assertThat(messagesCaptor.getValue()).hasSize(200);
+    }
+
     @Test
     void shouldThrowExceptionWhenSendingEmptyMessageList() {
         String topic = "test-topic";
@@ -278,4 +343,110 @@ class MessageQueueImplTest {
 
         verifyNoInteractions(messageDao);
     }
+
+    @Test
+    void shouldWakeUpLongPollWhenTopicDispatched() throws Exception {
+        String topic = "test-topic";
+        MessageProcessorDispatcher realDispatcher = new MessageProcessorDispatcher();
+        MessageQueueImpl queue = new MessageQueueImpl(messageDao, realDispatcher, null);
+        when(messageDao.getPendingMessagesAndMoveToProcessing(eq(topic), eq(10), any(LocalDateTime.class)))
+                .thenReturn(Collections.emptyList())
+                .thenReturn(List.of(message));
+
+        CompletableFuture<List<Message>> future = CompletableFuture.supplyAsync(
+                () -> queue.poll(topic, 10, Duration.ofSeconds(30)));
+        for (int i = 0; i < 500 && !future.isDone(); i++) {
+            realDispatcher.dispatch(topic);
+            Thread.sleep(10);
+        }
+
+        assertThat(future.get(5, TimeUnit.SECONDS)).containsExactly(message);
+    }
+
+    @Test
+    void shouldReturnEmptyWhenLongPollTimesOut() {
+        String topic = "test-topic";
+        MessageQueueImpl queue = new MessageQueueImpl(messageDao, new MessageProcessorDispatcher(), null);
+        when(messageDao.getPendingMessagesAndMoveToProcessing(eq(topic), eq(10), any(LocalDateTime.class)))
+                .thenReturn(Collections.emptyList());
+
+        assertThat(queue.poll(topic, 10, Duration.ofMillis(20))).isEmpty();
+    }
+
+    @Test
+    void shouldPollMultipleTopicsInOneStatementWithoutDuplicates() {
+        when(messageDao.getPendingMessagesAndMoveToProcessing(eq(List.of("topic1", "topic2")), eq(5), eq(20),
+                any(LocalDateTime.class))).thenReturn(List.of(message));
+
+        List<Message> result = messageQueue.poll(Arrays.asList("topic1", "topic2", "topic1"), 5, 20);
+
+        assertThat(result).containsExactly(message);
+    }
+
+    @Test
+    void shouldReturnEmptyWhenPollingNoTopics() {
+        assertThat(messageQueue.poll(List.of(), 5, 20)).isEmpty();
+
+        verifyNoInteractions(messageDao);
+    }
+
+    @Test
+    void shouldAckMessagesInOneStatementAndReportOutcomes() {
+        when(message.getId()).thenReturn(1L);
+        Message other = org.mockito.Mockito.mock(Message.class);
+        when(other.getId()).thenReturn(2L);
+        when(messageDao.deleteProcessingMessages(List.of(message, other))).thenReturn(List.of(2L));
+
+        SettleResult result = messageQueue.ack(Arrays.asList(message, other));
+
+        assertThat(result.getSucceededIds()).containsExactly(2L);
+        assertThat(result.getFailedIds()).containsExactly(1L);
+        assertThat(result.isAllSucceeded()).isFalse();
+    }
+
+    @Test
+    void shouldRetryMessagesWithDelayInOneStatement() {
+        when(message.getId()).thenReturn(1L);
+        when(messageDao.moveProcessingMessagesToInvisible(eq(List.of(message)), any(LocalDateTime.class)))
+                .thenReturn(List.of(1L));
+
+        SettleResult result = messageQueue.retry(List.of(message), Duration.ofMinutes(1));
+
+        assertThat(result.isAllSucceeded()).isTrue();
+    }
+
+    @Test
+    void shouldPollWithRegisteredProcessTimeout() {
+        String topic = "test-topic";
+        messageQueue.setProcessTimeout(topic, Duration.ofSeconds(30));
+        ArgumentCaptor<LocalDateTime> timeoutCaptor = ArgumentCaptor.forClass(LocalDateTime.class);
+        when(messageDao.getPendingMessagesAndMoveToProcessing(eq(topic), eq(5), timeoutCaptor.capture()))
+                .thenReturn(Collections.emptyList());
+
+        messageQueue.poll(topic, 5);
+
+        assertThat(timeoutCaptor.getValue()).isBefore(LocalDateTime.now().plusSeconds(31));
+    }
+
+    @Test
+    void shouldExtendLeaseInOneStatement() {
+        when(message.getId()).thenReturn(1L);
+        Message other = org.mockito.Mockito.mock(Message.class);
+        when(other.getId()).thenReturn(2L);
+        when(messageDao.extendProcessingTimeout(eq(List.of(message, other)), any(LocalDateTime.class)))
+                .thenReturn(List.of(1L));
+
+        SettleResult result = messageQueue.extendLease(List.of(message, other), Duration.ofSeconds(30));
+
+        assertThat(result.getFailedIds()).containsExactly(2L);
+    }
+
+    @Test
+    void shouldThrowExceptionWhenSettlingEmptyMessageList() {
+        assertThatThrownBy(() -> messageQueue.dead(Collections.emptyList()))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("messages不能为空");
+
+        verifyNoInteractions(messageDao);
+    }
 }
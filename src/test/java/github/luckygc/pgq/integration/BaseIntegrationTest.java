@@ -1,5 +1,6 @@
 package github.luckygc.pgq.integration;
 
+import github.luckygc.pgq.model.MessageDO;
 import java.io.IOException;
 import java.nio.file.Files;
 import org.junit.jupiter.api.AfterAll;
@@ -54,7 +55,8 @@ public abstract class BaseIntegrationTest {
         // 每个测试后清理数据，但保留表结构
         String sql = """
                 TRUNCATE TABLE pgmq_pending_queue, pgmq_processing_queue,
-                pgmq_invisible_queue, pgmq_dead_queue RESTART IDENTITY
+                pgmq_invisible_queue, pgmq_dead_queue, pgmq_message, pgmq_subscription, pgmq_node,
+                pgmq_topic_watermark RESTART IDENTITY
                 """;
         jdbcTemplate.execute(sql);
     }
@@ -119,6 +121,31 @@ public abstract class BaseIntegrationTest {
         return countRecords("pgmq_dead_queue", "topic = ?", topic);
     }
 
+    /**
+     * 构造待写入的消息
+     */
+    protected static MessageDO messageDO(String topic, String payload, int priority) {
+        return MessageDO.Builder.create()
+                .topic(topic)
+                .priority(priority)
+                .payload(payload)
+                .attempt(0)
+                .build();
+    }
+
+    /**
+     * 构造待写入的分组消息,groupKey为null时不分组
+     */
+    protected static MessageDO groupMessageDO(String topic, String groupKey, String payload) {
+        return MessageDO.Builder.create()
+                .topic(topic)
+                .priority(0)
+                .payload(payload)
+                .attempt(0)
+                .groupKey(groupKey)
+                .build();
+    }
+
     /**
      * 手动触发定时任务（移动超时和可见消息到待处理队列）
      */
@@ -3,8 +3,10 @@ package github.luckygc.pgq.integration;
 import static org.assertj.core.api.Assertions.assertThat;
 
 import github.luckygc.pgq.api.PgmqManager;
+import github.luckygc.pgq.dao.MessageDao;
 import github.luckygc.pgq.impl.PgmqManagerImpl;
 import github.luckygc.pgq.model.Message;
+import github.luckygc.pgq.model.MessageDO;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
@@ -176,4 +178,41 @@ class PgmqPerformanceTest extends BaseIntegrationTest {
         // 性能断言
         assertThat(duration.getSeconds()).isLessThan(20);
     }
+
+    @Test
+    void shouldCompareBatchUpdateAndCopyIngest() {
+        MessageDao messageDao = new MessageDao(jdbcTemplate);
+        int messageCount = 100000;
+
+        List<MessageDO> batchMessages = buildMessageDOs("ingest-batch-topic", messageCount);
+        Instant start = Instant.now();
+        messageDao.insertIntoPending(batchMessages);
+        Duration batchDuration = Duration.between(start, Instant.now());
+
+        List<MessageDO> copyMessages = buildMessageDOs("ingest-copy-topic", messageCount);
+        start = Instant.now();
+        messageDao.copyIntoPending(copyMessages);
+        Duration copyDuration = Duration.between(start, Instant.now());
+
+        System.out.println("batchUpdate写入 " + messageCount + " 条消息耗时: " + batchDuration.toMillis()
+                + "ms, 每秒: " + (messageCount * 1000.0 / Math.max(1, batchDuration.toMillis())) + " 行");
+        System.out.println("COPY写入 " + messageCount + " 条消息耗时: " + copyDuration.toMillis()
+                + "ms, 每秒: " + (messageCount * 1000.0 / Math.max(1, copyDuration.toMillis())) + " 行");
+
+        assertThat(countPendingMessages("ingest-batch-topic")).isEqualTo(messageCount);
+        assertThat(countPendingMessages("ingest-copy-topic")).isEqualTo(messageCount);
+    }
+
+    private List<MessageDO> buildMessageDOs(String topic, int messageCount) {
+        List<MessageDO> messageDOS = new ArrayList<>(messageCount);
+        for (int i = 0; i < messageCount; i++) {
+            messageDOS.add(MessageDO.Builder.create()
+                    .topic(topic)
+                    .priority(0)
+                    .payload("ingest-message-" + i)
+                    .attempt(0)
+                    .build());
+        }
+        return messageDOS;
+    }
 }
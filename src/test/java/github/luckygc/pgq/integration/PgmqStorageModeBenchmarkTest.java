@@ -0,0 +1,85 @@
+package github.luckygc.pgq.integration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import github.luckygc.pgq.api.PgmqManager;
+import github.luckygc.pgq.impl.PgmqManagerImpl;
+import github.luckygc.pgq.model.Message;
+import github.luckygc.pgq.model.PgmqConfig;
+import github.luckygc.pgq.model.StorageMode;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 对比四表搬运模式与单表租约模式的WAL写入量和吞吐
+ */
+class PgmqStorageModeBenchmarkTest extends BaseIntegrationTest {
+
+    private static final int MESSAGE_COUNT = 20000;
+    private static final int BATCH_SIZE = 500;
+
+    @Test
+    void shouldCompareWalVolumeAndThroughput() {
+        BenchmarkResult queueTables = runBenchmark(StorageMode.QUEUE_TABLES);
+        BenchmarkResult leaseTable = runBenchmark(StorageMode.LEASE_TABLE);
+
+        print(StorageMode.QUEUE_TABLES, queueTables);
+        print(StorageMode.LEASE_TABLE, leaseTable);
+
+        assertThat(queueTables.handled()).isEqualTo(MESSAGE_COUNT);
+        assertThat(leaseTable.handled()).isEqualTo(MESSAGE_COUNT);
+    }
+
+    private BenchmarkResult runBenchmark(StorageMode storageMode) {
+        PgmqManager pgmqManager = new PgmqManagerImpl(jdbcTemplate,
+                PgmqConfig.Builder.create().storageMode(storageMode).build());
+        String topic = "benchmark-" + storageMode.name().toLowerCase();
+        try {
+            List<String> payloads = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                payloads.add("benchmark-message-" + i);
+            }
+
+            String startLsn = jdbcTemplate.queryForObject("select pg_current_wal_lsn()::text", String.class);
+            Instant start = Instant.now();
+
+            for (int i = 0; i < MESSAGE_COUNT; i += BATCH_SIZE) {
+                pgmqManager.queue().send(topic, payloads);
+            }
+
+            // 每条消息先重试一次再删除,覆盖 待处理->处理中->待处理->处理中->删除 的完整流转
+            int handled = 0;
+            List<Message> messages;
+            while (!(messages = pgmqManager.queue().poll(topic, BATCH_SIZE)).isEmpty()) {
+                for (Message message : messages) {
+                    if (message.getAttempt() == 1) {
+                        message.retry();
+                    } else {
+                        message.delete();
+                        handled++;
+                    }
+                }
+            }
+
+            Duration duration = Duration.between(start, Instant.now());
+            Long walBytes = jdbcTemplate.queryForObject(
+                    "select pg_wal_lsn_diff(pg_current_wal_lsn(), ?::pg_lsn)::bigint", Long.class, startLsn);
+            return new BenchmarkResult(handled, duration, walBytes == null ? 0 : walBytes);
+        } finally {
+            pgmqManager.shutdown();
+        }
+    }
+
+    private void print(StorageMode storageMode, BenchmarkResult result) {
+        System.out.println(storageMode + " 处理 " + result.handled() + " 条消息耗时: " + result.duration().toMillis()
+                + "ms, 每秒: " + (result.handled() * 1000.0 / Math.max(1, result.duration().toMillis()))
+                + " 条, WAL: " + result.walBytes() / 1024 + "KB");
+    }
+
+    private record BenchmarkResult(int handled, Duration duration, long walBytes) {
+
+    }
+}
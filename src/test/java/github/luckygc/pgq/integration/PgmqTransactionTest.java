@@ -6,6 +6,8 @@ import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import github.luckygc.pgq.api.PgmqManager;
 import github.luckygc.pgq.impl.PgmqManagerImpl;
 import github.luckygc.pgq.model.Message;
+import github.luckygc.pgq.model.PgmqConfig;
+import java.time.Duration;
 import java.util.Arrays;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -96,4 +98,62 @@ class PgmqTransactionTest extends BaseIntegrationTest {
         // 事务回滚后消息应该不存在
         assertThat(countPendingMessages(topic)).isEqualTo(0);
     }
+
+    @Test
+    @DisplayName("事务中发送的延时消息应该在提交后加入延时调度并按时搬运")
+    void shouldScheduleDelayedSendsAfterCommit() throws InterruptedException {
+        String topic = "transactional-delay-topic";
+
+        transactionTemplate.executeWithoutResult(status -> {
+            pgmqManager.delayQueue().send(topic, "delayed message 1", Duration.ofMillis(300));
+            pgmqManager.delayQueue().send(topic, "delayed message 2", Duration.ofMillis(500));
+        });
+        assertThat(countInvisibleMessages(topic)).isEqualTo(2);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (countPendingMessages(topic) < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(countPendingMessages(topic)).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("开启事务缓存后应该在提交前统一写入")
+    void shouldFlushBufferedSendsBeforeCommit() {
+        String topic = "buffered-send-topic";
+        PgmqManager bufferedManager = new PgmqManagerImpl(jdbcTemplate,
+                PgmqConfig.Builder.create().transactionSendBuffer(true).build());
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                for (int i = 0; i < 200; i++) {
+                    bufferedManager.queue().send(topic, "buffered message " + i);
+                }
+
+                // 提交前消息仍在缓存中
+                assertThat(countPendingMessages(topic)).isEqualTo(0);
+            });
+
+            assertThat(countPendingMessages(topic)).isEqualTo(200);
+        } finally {
+            bufferedManager.shutdown();
+        }
+    }
+
+    @Test
+    @DisplayName("开启事务缓存后回滚时消息不写入")
+    void shouldDiscardBufferedSendsOnRollback() {
+        String topic = "buffered-rollback-topic";
+        PgmqManager bufferedManager = new PgmqManagerImpl(jdbcTemplate,
+                PgmqConfig.Builder.create().transactionSendBuffer(true).build());
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                bufferedManager.queue().send(topic, "buffered message");
+                status.setRollbackOnly();
+            });
+
+            assertThat(countPendingMessages(topic)).isEqualTo(0);
+        } finally {
+            bufferedManager.shutdown();
+        }
+    }
 }
@@ -0,0 +1,73 @@
+package github.luckygc.pgq.integration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import github.luckygc.pgq.api.PgmqManager;
+import github.luckygc.pgq.dao.QueueDao;
+import github.luckygc.pgq.impl.PgmqManagerImpl;
+import github.luckygc.pgq.model.PgmqConfig;
+import github.luckygc.pgq.model.WakeUpMode;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 对比多个生产者并发发送时各唤醒方式的提交吞吐,每次发送单独提交
+ */
+class WakeUpTransportBenchmarkTest extends BaseIntegrationTest {
+
+    private static final int PRODUCERS = 16;
+    private static final int SENDS_PER_PRODUCER = 500;
+
+    @Test
+    void shouldCompareCommitThroughput() throws Exception {
+        for (WakeUpMode wakeUpMode : WakeUpMode.values()) {
+            Duration duration = runBenchmark(wakeUpMode);
+            int commits = PRODUCERS * SENDS_PER_PRODUCER;
+            System.out.println(wakeUpMode + " " + PRODUCERS + "个生产者提交 " + commits + " 次耗时: "
+                    + duration.toMillis() + "ms, 每秒: " + (commits * 1000.0 / Math.max(1, duration.toMillis()))
+                    + " 次");
+
+            assertThat(countPendingMessages(topic(wakeUpMode))).isEqualTo(commits);
+        }
+    }
+
+    private Duration runBenchmark(WakeUpMode wakeUpMode) throws Exception {
+        PgmqManager pgmqManager = new PgmqManagerImpl(jdbcTemplate, getJdbcUrl(), getUsername(), getPassword(),
+                PgmqConfig.Builder.create().wakeUpMode(wakeUpMode).build());
+        String topic = topic(wakeUpMode);
+        // 登记一个订阅者,使NOTIFY方式真正发送pg_notify
+        QueueDao queueDao = new QueueDao(jdbcTemplate);
+        queueDao.heartbeat("benchmark-subscriber");
+        queueDao.subscribe(topic, "benchmark-subscriber");
+
+        ExecutorService executor = Executors.newFixedThreadPool(PRODUCERS);
+        try {
+            Instant start = Instant.now();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < PRODUCERS; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < SENDS_PER_PRODUCER; j++) {
+                        pgmqManager.queue().send(topic, "benchmark-message-" + j);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            return Duration.between(start, Instant.now());
+        } finally {
+            executor.shutdown();
+            pgmqManager.shutdown();
+        }
+    }
+
+    private static String topic(WakeUpMode wakeUpMode) {
+        return "benchmark-" + wakeUpMode.name().toLowerCase();
+    }
+}
@@ -2,10 +2,13 @@ package github.luckygc.pgq.model;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import github.luckygc.pgq.dao.MessageDao;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -112,58 +115,77 @@ class MessageTest {
 
     @Test
     void shouldDeleteMessageSuccessfully() {
-        when(messageDao.deleteProcessingMessageById(1L)).thenReturn(1);
+        when(messageDao.deleteProcessingMessageById(1L, 1)).thenReturn(1);
 
         message.delete();
 
-        verify(messageDao).deleteProcessingMessageById(1L);
+        verify(messageDao).deleteProcessingMessageById(1L, 1);
     }
 
     @Test
     void shouldMoveMessageToDeadQueue() {
-        when(messageDao.moveProcessingMessageToDeadById(1L)).thenReturn(1);
+        when(messageDao.moveProcessingMessageToDeadById(1L, 1)).thenReturn(1);
 
         message.dead();
 
-        verify(messageDao).moveProcessingMessageToDeadById(1L);
+        verify(messageDao).moveProcessingMessageToDeadById(1L, 1);
     }
 
     @Test
     void shouldRetryMessage() {
-        when(messageDao.moveProcessingMessageToPendingById(1L)).thenReturn(1);
+        when(messageDao.moveProcessingMessageToPendingById(1L, 1)).thenReturn(1);
 
         message.retry();
 
-        verify(messageDao).moveProcessingMessageToPendingById(1L);
+        verify(messageDao).moveProcessingMessageToPendingById(1L, 1);
+    }
+
+    @Test
+    void shouldExtendLease() {
+        when(messageDao.extendProcessingTimeoutById(eq(1L), eq(1), any(LocalDateTime.class))).thenReturn(1, 0);
+
+        assertThat(message.extendLease(Duration.ofSeconds(30))).isTrue();
+        assertThat(message.extendLease(Duration.ofSeconds(30))).isFalse();
+        assertThatThrownBy(() -> message.extendLease(Duration.ZERO)).isInstanceOf(IllegalArgumentException.class);
     }
 
     @Test
     void shouldLogWarningWhenDeleteFails() {
-        when(messageDao.deleteProcessingMessageById(1L)).thenReturn(0);
+        when(messageDao.deleteProcessingMessageById(1L, 1)).thenReturn(0);
 
         // 这里不会抛出异常，只是记录警告日志
         message.delete();
 
-        verify(messageDao).deleteProcessingMessageById(1L);
+        verify(messageDao).deleteProcessingMessageById(1L, 1);
     }
 
     @Test
     void shouldLogWarningWhenDeadFails() {
-        when(messageDao.moveProcessingMessageToDeadById(1L)).thenReturn(0);
+        when(messageDao.moveProcessingMessageToDeadById(1L, 1)).thenReturn(0);
 
         // 这里不会抛出异常，只是记录警告日志
         message.dead();
 
-        verify(messageDao).moveProcessingMessageToDeadById(1L);
+        verify(messageDao).moveProcessingMessageToDeadById(1L, 1);
     }
 
     @Test
     void shouldLogWarningWhenRetryFails() {
-        when(messageDao.moveProcessingMessageToPendingById(1L)).thenReturn(0);
+        when(messageDao.moveProcessingMessageToPendingById(1L, 1)).thenReturn(0);
 
         // 这里不会抛出异常，只是记录警告日志
         message.retry();
 
-        verify(messageDao).moveProcessingMessageToPendingById(1L);
+        verify(messageDao).moveProcessingMessageToPendingById(1L, 1);
+    }
+
+    @Test
+    void shouldMarkMessageSettledAfterDelete() {
+        when(messageDao.deleteProcessingMessageById(1L, 1)).thenReturn(1);
+
+        assertThat(message.isSettled()).isFalse();
+        message.delete();
+
+        assertThat(message.isSettled()).isTrue();
     }
 }
@@ -0,0 +1,130 @@
+package github.luckygc.pgq.tool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class AdaptivePollerTest {
+
+    private final MessageProcessorDispatcher dispatcher = mock(MessageProcessorDispatcher.class);
+
+    @BeforeEach
+    void setUp() {
+        when(dispatcher.subscribedTopics()).thenReturn(Set.of("topic"));
+    }
+
+    @Test
+    void shouldBackOffWhenIdle() throws InterruptedException {
+        AtomicInteger probes = new AtomicInteger();
+        AdaptivePoller poller = new AdaptivePoller(dispatcher, topic -> {
+            probes.incrementAndGet();
+            return false;
+        }, () -> true, Duration.ofMillis(10), Duration.ofSeconds(1));
+        poller.start();
+
+        try {
+            TimeUnit.MILLISECONDS.sleep(700);
+            // 10ms起每次翻倍,700ms内最多检查7次左右,固定10ms间隔则为70次
+            assertThat(probes.get()).isBetween(3, 10);
+            verify(dispatcher, never()).dispatch("topic");
+        } finally {
+            poller.shutdown();
+        }
+    }
+
+    @Test
+    void shouldDispatchAndResetIntervalOnHit() throws InterruptedException {
+        AtomicInteger probes = new AtomicInteger();
+        AtomicBoolean hasMessages = new AtomicBoolean(false);
+        // 每次调度后处理器都拉取到了消息
+        AtomicLong claimed = new AtomicLong();
+        when(dispatcher.claimedCount("topic")).thenAnswer(invocation -> claimed.incrementAndGet());
+        AdaptivePoller poller = new AdaptivePoller(dispatcher, topic -> {
+            probes.incrementAndGet();
+            return hasMessages.get();
+        }, () -> true, Duration.ofMillis(10), Duration.ofSeconds(1));
+        poller.start();
+
+        try {
+            TimeUnit.MILLISECONDS.sleep(300);
+            hasMessages.set(true);
+            // 退避到最大间隔前有消息写入,最迟在当前间隔结束后被调度
+            verify(dispatcher, timeout(1000).atLeastOnce()).dispatch("topic");
+
+            int probesAfterHit = probes.get();
+            TimeUnit.MILLISECONDS.sleep(200);
+            assertThat(probes.get() - probesAfterHit).isGreaterThanOrEqualTo(10);
+        } finally {
+            poller.shutdown();
+        }
+    }
+
+    @Test
+    void shouldBackOffWhenHitButNothingClaimed() throws InterruptedException {
+        AtomicInteger probes = new AtomicInteger();
+        AdaptivePoller poller = new AdaptivePoller(dispatcher, topic -> probes.incrementAndGet() > 0, () -> true,
+                Duration.ofMillis(10), Duration.ofSeconds(1));
+        poller.start();
+
+        try {
+            TimeUnit.MILLISECONDS.sleep(700);
+            // 有消息但处理器拉取不到,与空闲时一样退避
+            assertThat(probes.get()).isBetween(3, 10);
+        } finally {
+            poller.shutdown();
+        }
+    }
+
+    @Test
+    void shouldNotProbeWhenProcessorSaturated() {
+        when(dispatcher.isSaturated("topic")).thenReturn(true);
+        AtomicInteger probes = new AtomicInteger();
+        AdaptivePoller poller = new AdaptivePoller(dispatcher, topic -> probes.incrementAndGet() > 0, () -> true,
+                Duration.ofMillis(10), Duration.ofSeconds(1));
+        poller.start();
+
+        try {
+            verify(dispatcher, after(300).never()).dispatch("topic");
+            assertThat(probes.get()).isZero();
+        } finally {
+            poller.shutdown();
+        }
+    }
+
+    @Test
+    void shouldNotPollWhenDisabled() {
+        AtomicInteger probes = new AtomicInteger();
+        AdaptivePoller poller = new AdaptivePoller(dispatcher, topic -> probes.incrementAndGet() > 0, () -> false,
+                Duration.ofMillis(10), Duration.ofSeconds(1));
+        poller.start();
+
+        try {
+            verify(dispatcher, after(200).never()).dispatch("topic");
+            assertThat(probes.get()).isZero();
+        } finally {
+            poller.shutdown();
+        }
+    }
+
+    @Test
+    void shouldRejectMaxIntervalLessThanMinInterval() {
+        assertThatThrownBy(() -> new AdaptivePoller(dispatcher, topic -> false, () -> true, Duration.ofSeconds(1),
+                Duration.ofMillis(10)))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("maxInterval不能小于minInterval");
+    }
+}
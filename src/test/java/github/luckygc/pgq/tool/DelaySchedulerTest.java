@@ -0,0 +1,116 @@
+package github.luckygc.pgq.tool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class DelaySchedulerTest {
+
+    @Test
+    void shouldPromoteWhenLoadedDelayIsDue() throws InterruptedException {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch promoted = new CountDownLatch(1);
+        DelayScheduler scheduler = new DelayScheduler(
+                (horizon, limit) -> loads.getAndIncrement() == 0 ? List.of(200L) : List.of(),
+                promoted::countDown, Duration.ofMinutes(1), 10);
+
+        long start = System.nanoTime();
+        scheduler.start();
+        try {
+            assertThat(promoted.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(190);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void shouldPromoteScheduledVisibleTime() throws InterruptedException {
+        CountDownLatch promoted = new CountDownLatch(1);
+        DelayScheduler scheduler = new DelayScheduler((horizon, limit) -> List.of(), promoted::countDown,
+                Duration.ofMinutes(1), 10);
+        scheduler.start();
+
+        try {
+            scheduler.schedule(LocalDateTime.now().plus(Duration.ofMillis(100)));
+            assertThat(promoted.await(5, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void shouldIgnoreDelayBeyondHorizon() throws InterruptedException {
+        AtomicInteger promotions = new AtomicInteger();
+        DelayScheduler scheduler = new DelayScheduler((horizon, limit) -> List.of(), promotions::incrementAndGet,
+                Duration.ofSeconds(1), 10);
+        scheduler.start();
+
+        try {
+            scheduler.scheduleAfter(5000);
+            TimeUnit.MILLISECONDS.sleep(200);
+            assertThat(promotions.get()).isZero();
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void shouldPromoteReloadedDelayOnceWithoutReloadingAfterPromotion() throws InterruptedException {
+        AtomicInteger loads = new AtomicInteger();
+        AtomicInteger promotions = new AtomicInteger();
+        long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+        DelayScheduler scheduler = new DelayScheduler((horizon, limit) -> {
+            loads.incrementAndGet();
+            return List.of(Math.max(1, TimeUnit.NANOSECONDS.toMillis(due - System.nanoTime())));
+        }, promotions::incrementAndGet, Duration.ofMinutes(1), 10);
+        scheduler.start();
+
+        try {
+            for (int i = 0; i < 3; i++) {
+                TimeUnit.MILLISECONDS.sleep(50);
+                scheduler.reload();
+            }
+            TimeUnit.MILLISECONDS.sleep(600);
+
+            assertThat(promotions.get()).isEqualTo(1);
+            assertThat(loads.get()).isEqualTo(4);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void shouldRejectInvalidArguments() {
+        assertThatThrownBy(() -> new DelayScheduler((horizon, limit) -> List.of(), () -> {}, Duration.ZERO, 10))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new DelayScheduler((horizon, limit) -> List.of(), () -> {}, Duration.ofMinutes(1),
+                0)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void shouldLoadImmediatelyWhenReloadRequested() throws InterruptedException {
+        CountDownLatch loaded = new CountDownLatch(2);
+        DelayScheduler scheduler = new DelayScheduler((horizon, limit) -> {
+            loaded.countDown();
+            return List.of();
+        }, () -> {
+        }, Duration.ofMinutes(1), 10);
+        scheduler.start();
+
+        try {
+            TimeUnit.MILLISECONDS.sleep(100);
+            scheduler.reload();
+            assertThat(loaded.await(1, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
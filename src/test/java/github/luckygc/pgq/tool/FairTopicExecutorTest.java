@@ -0,0 +1,177 @@
+package github.luckygc.pgq.tool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import github.luckygc.pgq.model.TopicExecutorMetrics;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class FairTopicExecutorTest {
+
+    private FairTopicExecutor executor;
+
+    @AfterEach
+    void tearDown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void shouldLimitConcurrencyPerTopic() throws InterruptedException {
+        executor = new FairTopicExecutor(4);
+        ExecutorService lane = executor.lane("topic1", 1, 1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(5);
+
+        for (int i = 0; i < 5; i++) {
+            lane.execute(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                sleep(10);
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(maxRunning.get()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldInterleaveTopicsByWeight() throws InterruptedException {
+        executor = new FairTopicExecutor(1);
+        ExecutorService blocker = executor.lane("blocker", 1, 1);
+        ExecutorService hot = executor.lane("hot", 1, 2);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(8);
+
+        blocker.execute(() -> {
+            blocked.countDown();
+            await(release);
+        });
+        assertThat(blocked.await(5, TimeUnit.SECONDS)).isTrue();
+        for (int i = 0; i < 6; i++) {
+            hot.execute(() -> {
+                order.add("hot");
+                done.countDown();
+            });
+        }
+        ExecutorService cold = executor.lane("cold", 1, 1);
+        for (int i = 0; i < 2; i++) {
+            cold.execute(() -> {
+                order.add("cold");
+                done.countDown();
+            });
+        }
+        release.countDown();
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(order).containsExactly("hot", "hot", "cold", "hot", "hot", "cold", "hot", "hot");
+    }
+
+    @Test
+    void shouldRecordQueueWaitMetrics() throws InterruptedException {
+        executor = new FairTopicExecutor(1);
+        ExecutorService lane = executor.lane("topic1", 1, 1);
+        CountDownLatch done = new CountDownLatch(2);
+
+        lane.execute(() -> {
+            sleep(50);
+            done.countDown();
+        });
+        lane.execute(done::countDown);
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        // 任务返回后才计入完成数
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (executor.metrics().get(0).getCompletedTasks() < 2 && System.nanoTime() < deadline) {
+            sleep(5);
+        }
+        TopicExecutorMetrics metrics = executor.metrics().get(0);
+        assertThat(metrics.getTopic()).isEqualTo("topic1");
+        assertThat(metrics.getStartedTasks()).isEqualTo(2);
+        assertThat(metrics.getCompletedTasks()).isEqualTo(2);
+        assertThat(metrics.getMaxQueueWait().toMillis()).isGreaterThanOrEqualTo(40);
+    }
+
+    @Test
+    void shouldDropQueuedTasksAndRejectNewOnesAfterShutdownNow() throws InterruptedException {
+        executor = new FairTopicExecutor(1);
+        ExecutorService lane = executor.lane("topic1", 1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+
+        lane.execute(() -> {
+            started.countDown();
+            while (!FairTopicExecutor.isCurrentTaskCancelled()) {
+                sleep(5);
+            }
+            cancelled.countDown();
+        });
+        lane.execute(() -> {});
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(lane.shutdownNow()).hasSize(1);
+        assertThat(cancelled.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(lane.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+        assertThatThrownBy(() -> lane.execute(() -> {}))
+                .isInstanceOf(RejectedExecutionException.class);
+    }
+
+    @Test
+    void shouldNotAffectOtherTopicsOnSharedWorkerWhenShutdownNow() throws InterruptedException {
+        executor = new FairTopicExecutor(1);
+        ExecutorService closing = executor.lane("closing", 1, 1);
+        ExecutorService other = executor.lane("other", 1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger disturbed = new AtomicInteger();
+
+        closing.execute(() -> {
+            started.countDown();
+            await(release);
+        });
+        other.execute(() -> {
+            sleep(100);
+            if (Thread.currentThread().isInterrupted() || FairTopicExecutor.isCurrentTaskCancelled()) {
+                disturbed.incrementAndGet();
+            }
+            done.countDown();
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+        closing.shutdownNow();
+        release.countDown();
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(disturbed.get()).isZero();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package github.luckygc.pgq.tool;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import github.luckygc.pgq.api.MessagePoller;
+import github.luckygc.pgq.dao.MessageDao;
+import github.luckygc.pgq.model.Message;
+import github.luckygc.pgq.model.SettleResult;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class LeaseKeeperTest {
+
+    @Mock
+    private MessagePoller messagePoller;
+
+    @Mock
+    private MessageDao messageDao;
+
+    @Test
+    void shouldExtendTrackedMessagesInOneCall() {
+        LeaseKeeper leaseKeeper = new LeaseKeeper(messagePoller, "test-topic", Duration.ofSeconds(1));
+        Message message1 = Message.Builder.create()
+                .id(1L)
+                .createTime(LocalDateTime.now())
+                .topic("test-topic")
+                .priority(0)
+                .payload("payload1")
+                .attempt(1)
+                .messageDao(messageDao)
+                .build();
+        Message message2 = Message.Builder.create()
+                .id(2L)
+                .createTime(LocalDateTime.now())
+                .topic("test-topic")
+                .priority(0)
+                .payload("payload2")
+                .attempt(1)
+                .messageDao(messageDao)
+                .build();
+        when(messagePoller.extendLease(List.of(message2), Duration.ofSeconds(1)))
+                .thenReturn(SettleResult.of(List.of(2L), List.of(2L)));
+
+        leaseKeeper.track(List.of(message1, message2));
+        leaseKeeper.untrack(message1);
+
+        verify(messagePoller, timeout(2000)).extendLease(List.of(message2), Duration.ofSeconds(1));
+        leaseKeeper.shutdown();
+    }
+
+    @Test
+    void shouldNotExtendWhenNothingTracked() {
+        LeaseKeeper leaseKeeper = new LeaseKeeper(messagePoller, "test-topic", Duration.ofSeconds(1));
+        Message message = Message.Builder.create()
+                .id(1L)
+                .createTime(LocalDateTime.now())
+                .topic("test-topic")
+                .priority(0)
+                .payload("payload")
+                .attempt(1)
+                .messageDao(messageDao)
+                .build();
+
+        leaseKeeper.track(List.of(message));
+        leaseKeeper.untrack(List.of(message));
+        leaseKeeper.extendLease();
+
+        verify(messagePoller, never()).extendLease(List.of(message), Duration.ofSeconds(1));
+        leaseKeeper.shutdown();
+    }
+
+    @Test
+    void shouldStopExtendingMessagesClaimedByOthers() {
+        LeaseKeeper leaseKeeper = new LeaseKeeper(messagePoller, "test-topic", Duration.ofSeconds(1));
+        Message message = Message.Builder.create()
+                .id(1L)
+                .createTime(LocalDateTime.now())
+                .topic("test-topic")
+                .priority(0)
+                .payload("payload")
+                .attempt(1)
+                .messageDao(messageDao)
+                .build();
+        when(messagePoller.extendLease(List.of(message), Duration.ofSeconds(1)))
+                .thenReturn(SettleResult.of(List.of(1L), List.of()));
+
+        leaseKeeper.track(List.of(message));
+        leaseKeeper.extendLease();
+        leaseKeeper.extendLease();
+
+        verify(messagePoller, times(1)).extendLease(List.of(message), Duration.ofSeconds(1));
+        leaseKeeper.shutdown();
+    }
+
+    @Test
+    void shouldRejectTooShortProcessTimeout() {
+        assertThatThrownBy(() -> new LeaseKeeper(messagePoller, "test-topic", Duration.ofMillis(999)))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("processTimeout不能小于1秒");
+    }
+}
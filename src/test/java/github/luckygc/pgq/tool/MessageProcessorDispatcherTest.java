@@ -1,19 +1,25 @@
 package github.luckygc.pgq.tool;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import github.luckygc.pgq.api.MessageProcessor;
+import java.time.Duration;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
 
 @ExtendWith(MockitoExtension.class)
 class MessageProcessorDispatcherTest {
@@ -193,4 +199,103 @@ class MessageProcessorDispatcherTest {
         dispatcher.dispatch(unicodeTopic);
         verify(messageProcessor1).asyncProcess();
     }
+
+    @Test
+    void shouldDispatchOnceAfterCommitWhenDispatchedRepeatedlyInTransaction() {
+        when(messageProcessor1.topic()).thenReturn("topic1");
+        dispatcher.register(messageProcessor1);
+
+        TransactionSynchronizationManager.initSynchronization();
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+        try {
+            for (int i = 0; i < 200; i++) {
+                dispatcher.dispatch("topic1");
+            }
+
+            assertThat(TransactionSynchronizationManager.getSynchronizations()).hasSize(1);
+            verify(messageProcessor1, never()).asyncProcess();
+
+            TransactionSynchronizationUtils.triggerAfterCommit();
+            verify(messageProcessor1, times(1)).asyncProcess();
+        } finally {
+            TransactionSynchronizationManager.clear();
+            TransactionSynchronizationManager.unbindResourceIfPossible(dispatcher);
+        }
+    }
+
+    @Test
+    void shouldNotifySubscriptionWhenTopicFirstRegisteredOrAwaited() {
+        MessageProcessorDispatcher.SubscriptionListener listener =
+                mock(MessageProcessorDispatcher.SubscriptionListener.class);
+        dispatcher.setSubscriptionListener(listener);
+        when(messageProcessor1.topic()).thenReturn("topic1");
+
+        dispatcher.register(messageProcessor1);
+        dispatcher.beginAwait("topic1");
+        dispatcher.beginAwait("topic2");
+        dispatcher.beginAwait("topic2");
+
+        verify(listener).subscribed("topic1");
+        verify(listener).subscribed("topic2");
+        assertThat(dispatcher.subscribedTopics()).containsExactlyInAnyOrder("topic1", "topic2");
+    }
+
+    @Test
+    void shouldKeepSubscriptionUntilLingerExpires() {
+        MessageProcessorDispatcher.SubscriptionListener listener =
+                mock(MessageProcessorDispatcher.SubscriptionListener.class);
+        dispatcher.setSubscriptionListener(listener);
+
+        dispatcher.beginAwait("topic1");
+        dispatcher.endAwait("topic1");
+        dispatcher.beginAwait("topic1");
+        dispatcher.endAwait("topic1");
+        dispatcher.expireSubscriptions(Duration.ofMinutes(1));
+
+        verify(listener).subscribed("topic1");
+        verify(listener, never()).unsubscribed("topic1");
+        assertThat(dispatcher.subscribedTopics()).containsExactly("topic1");
+    }
+
+    @Test
+    void shouldUnsubscribeOnlyWhenNoProcessorOrWaiterHoldsTopic() {
+        MessageProcessorDispatcher.SubscriptionListener listener =
+                mock(MessageProcessorDispatcher.SubscriptionListener.class);
+        dispatcher.setSubscriptionListener(listener);
+        when(messageProcessor1.topic()).thenReturn("topic1");
+        when(messageProcessor2.topic()).thenReturn("topic2");
+        dispatcher.register(messageProcessor1);
+        dispatcher.register(messageProcessor2);
+        dispatcher.beginAwait("topic2");
+
+        dispatcher.unregister("topic1");
+        dispatcher.unregister("topic2");
+        dispatcher.expireSubscriptions(Duration.ZERO);
+
+        verify(listener).unsubscribed("topic1");
+        verify(listener, never()).unsubscribed("topic2");
+
+        dispatcher.endAwait("topic2");
+        dispatcher.expireSubscriptions(Duration.ZERO);
+        verify(listener).unsubscribed("topic2");
+        assertThat(dispatcher.subscribedTopics()).isEmpty();
+        assertThatThrownBy(() -> dispatcher.currentSignal("topic2")).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void shouldResubscribeAfterSubscriptionExpired() {
+        MessageProcessorDispatcher.SubscriptionListener listener =
+                mock(MessageProcessorDispatcher.SubscriptionListener.class);
+        dispatcher.setSubscriptionListener(listener);
+
+        dispatcher.beginAwait("topic1");
+        dispatcher.endAwait("topic1");
+        dispatcher.expireSubscriptions(Duration.ZERO);
+        dispatcher.beginAwait("topic1");
+
+        InOrder inOrder = inOrder(listener);
+        inOrder.verify(listener).subscribed("topic1");
+        inOrder.verify(listener).unsubscribed("topic1");
+        inOrder.verify(listener).subscribed("topic1");
+    }
 }
@@ -0,0 +1,114 @@
+package github.luckygc.pgq.tool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import github.luckygc.pgq.integration.BaseIntegrationTest;
+import java.sql.SQLException;
+import java.time.Duration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+@Testcontainers
+@DisplayName("通知监听器测试")
+class PgListenerTest extends BaseIntegrationTest {
+
+    private static final String NODE_CHANNEL = TopicChannels.nodeChannel("test-node");
+
+    private final MessageProcessorDispatcher dispatcher = mock(MessageProcessorDispatcher.class);
+    private PgListener pgListener;
+
+    @AfterEach
+    void tearDown() {
+        if (pgListener != null) {
+            pgListener.stopListen();
+        }
+    }
+
+    @Test
+    @DisplayName("防抖窗口内同一topic的通知应该只调度一次")
+    void shouldDebounceNotificationsOfSameTopic() throws SQLException {
+        startListener(PgListener.Options.Builder.create().debounce(Duration.ofMillis(500)).build(),
+                "debounce-topic");
+
+        for (int i = 0; i < 20; i++) {
+            notifyTopic("debounce-topic");
+        }
+
+        verify(dispatcher, timeout(5000)).dispatch("debounce-topic");
+        verify(dispatcher, after(1000).times(1)).dispatch("debounce-topic");
+    }
+
+    @Test
+    @DisplayName("本节点发出的通知应该被忽略,其他节点发出的通知正常调度")
+    void shouldIgnoreNotificationsOfLocalNode() throws SQLException {
+        startListener(PgListener.Options.Builder.create().localNode("test-node").build(), "local-topic",
+                "remote-topic");
+
+        notifyTopic("local-topic", "1@test-node:local-topic");
+        notifyTopic("remote-topic", "1@other-node:remote-topic");
+
+        verify(dispatcher, timeout(5000)).dispatch("remote-topic");
+        verify(dispatcher, after(500).never()).dispatch("local-topic");
+    }
+
+    @Test
+    @DisplayName("只应该收到已监听topic的通知")
+    void shouldReceiveNotificationsOfListenedTopicsOnly() throws SQLException {
+        startListener(PgListener.Options.Builder.create().build(), "listened-topic");
+
+        notifyTopic("other-topic");
+        notifyTopic("listened-topic");
+
+        verify(dispatcher, timeout(5000)).dispatch("listened-topic");
+        verify(dispatcher, never()).dispatch("other-topic");
+    }
+
+    @Test
+    @DisplayName("运行中监听新topic应该通过唤醒立即生效,唤醒通知本身不调度")
+    void shouldListenNewTopicImmediatelyAfterWakeUp() throws SQLException {
+        startListener(PgListener.Options.Builder.create()
+                .wakeUp(() -> jdbcTemplate.query("select pg_notify(?, '')", rs -> {}, NODE_CHANNEL))
+                .build());
+
+        pgListener.listen("late-topic");
+        verify(dispatcher, after(500).never()).dispatch(anyString());
+        notifyTopic("late-topic");
+
+        verify(dispatcher, timeout(2000)).dispatch("late-topic");
+    }
+
+    @Test
+    @DisplayName("监听器运行时应该为健康状态,停止后不健康")
+    void shouldReportHealth() throws SQLException {
+        startListener(PgListener.Options.Builder.create().build());
+        assertThat(pgListener.isHealthy()).isTrue();
+
+        pgListener.stopListen();
+        assertThat(pgListener.isHealthy()).isFalse();
+        pgListener = null;
+    }
+
+    private void notifyTopic(String topic) {
+        notifyTopic(topic, "1:" + topic);
+    }
+
+    private void notifyTopic(String topic, String payload) {
+        jdbcTemplate.query("select pg_notify(?, ?)", rs -> {}, TopicChannels.topicChannel(topic), payload);
+    }
+
+    private void startListener(PgListener.Options options, String... topics) throws SQLException {
+        pgListener = new PgListener(NODE_CHANNEL, getJdbcUrl(), getUsername(), getPassword(), dispatcher, options);
+        for (String topic : topics) {
+            pgListener.listen(topic);
+        }
+        pgListener.startListen();
+    }
+}
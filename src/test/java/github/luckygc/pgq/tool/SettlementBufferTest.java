@@ -0,0 +1,100 @@
+package github.luckygc.pgq.tool;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import github.luckygc.pgq.api.MessagePoller;
+import github.luckygc.pgq.dao.MessageDao;
+import github.luckygc.pgq.model.Message;
+import github.luckygc.pgq.model.SettleResult;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class SettlementBufferTest {
+
+    @Mock
+    private MessagePoller messagePoller;
+
+    @Mock
+    private MessageDao messageDao;
+
+    @Test
+    void shouldFlushWhenBatchSizeReached() {
+        SettlementBuffer buffer = new SettlementBuffer(messagePoller, "test-topic", 2, Duration.ofMinutes(1));
+        Message message1 = buffer.wrap(createMessage(1L));
+        Message message2 = buffer.wrap(createMessage(2L));
+        when(messagePoller.ack(List.of(message1, message2)))
+                .thenReturn(SettleResult.of(List.of(1L, 2L), List.of(1L, 2L)));
+
+        message1.delete();
+        verifyNoInteractions(messagePoller);
+
+        message2.delete();
+        verify(messagePoller).ack(List.of(message1, message2));
+        verifyNoInteractions(messageDao);
+
+        buffer.shutdown();
+    }
+
+    @Test
+    void shouldFlushAfterMaxDelay() {
+        SettlementBuffer buffer = new SettlementBuffer(messagePoller, "test-topic", 100, Duration.ofMillis(20));
+        Message message = buffer.wrap(createMessage(1L));
+        when(messagePoller.dead(List.of(message))).thenReturn(SettleResult.of(List.of(1L), List.of(1L)));
+
+        message.dead();
+
+        verify(messagePoller, timeout(2000)).dead(List.of(message));
+        buffer.shutdown();
+    }
+
+    @Test
+    void shouldFlushRemainingOnShutdownAndSettleDirectlyAfterwards() {
+        SettlementBuffer buffer = new SettlementBuffer(messagePoller, "test-topic", 100, Duration.ofMinutes(1));
+        Message message1 = buffer.wrap(createMessage(1L));
+        when(messagePoller.retry(anyList(), any(Duration.class)))
+                .thenReturn(SettleResult.of(List.of(1L), List.of(1L)));
+        when(messagePoller.retry(anyList())).thenReturn(SettleResult.of(List.of(2L), List.of(2L)));
+
+        message1.retry(Duration.ofMinutes(5));
+        verify(messagePoller, never()).retry(anyList(), any(Duration.class));
+
+        buffer.shutdown();
+        verify(messagePoller).retry(List.of(message1), Duration.ofMinutes(5));
+
+        Message message2 = buffer.wrap(createMessage(2L));
+        message2.retry();
+        verify(messagePoller).retry(List.of(message2));
+    }
+
+    @Test
+    void shouldThrowExceptionWhenBatchSizeOutOfRange() {
+        assertThatThrownBy(() -> new SettlementBuffer(messagePoller, "test-topic", 0, Duration.ofMillis(100)))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("deferredAckBatchSize必须在1-5000之间");
+    }
+
+    private Message createMessage(Long id) {
+        return Message.Builder.create()
+                .id(id)
+                .createTime(LocalDateTime.now())
+                .topic("test-topic")
+                .priority(0)
+                .payload("payload")
+                .attempt(1)
+                .messageDao(messageDao)
+                .build();
+    }
+}
@@ -0,0 +1,116 @@
+package github.luckygc.pgq.tool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import github.luckygc.pgq.api.MessagePoller;
+import github.luckygc.pgq.api.MessageProcessor;
+import github.luckygc.pgq.api.handler.MessageHandler;
+import github.luckygc.pgq.model.Message;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class SharedTopicPollerTest {
+
+    @Mock
+    private MessagePoller messagePoller;
+
+    @Mock
+    private Message message1;
+
+    @Mock
+    private Message message2;
+
+    @Test
+    void shouldPollWokenTopicsTogetherAndRouteMessagesToProcessors() throws InterruptedException {
+        when(message1.getTopic()).thenReturn("topic1");
+        when(message2.getTopic()).thenReturn("topic2");
+        CountDownLatch latch = new CountDownLatch(2);
+        List<Message> handled = new CopyOnWriteArrayList<>();
+        SharedTopicPoller sharedPoller = new SharedTopicPoller(messagePoller, 100);
+        MessageProcessor processor1 = new MessageProcessor(messagePoller, new TestHandler("topic1", 10, handled, latch),
+                null, sharedPoller);
+        MessageProcessor processor2 = new MessageProcessor(messagePoller, new TestHandler("topic2", 10, handled, latch),
+                null, sharedPoller);
+
+        CountDownLatch polled = new CountDownLatch(1);
+        when(messagePoller.poll(anyCollection(), eq(10), eq(100))).thenAnswer(invocation -> {
+            polled.await(5, TimeUnit.SECONDS);
+            Set<String> topics = new HashSet<>(invocation.<Collection<String>>getArgument(0));
+            return List.of(message1, message2).stream()
+                    .filter(message -> topics.remove(message.getTopic()))
+                    .toList();
+        });
+
+        // 第一次唤醒占用拉取线程,期间的唤醒合并到下一轮
+        processor1.asyncProcess();
+        processor2.asyncProcess();
+        polled.countDown();
+
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(handled).containsExactlyInAnyOrder(message1, message2);
+        verify(messagePoller, atMost(3)).poll(anyCollection(), eq(10), eq(100));
+        sharedPoller.shutdown();
+    }
+
+    @Test
+    void shouldPollEachTopicWithItsOwnMaxPoll() throws InterruptedException {
+        when(message1.getTopic()).thenReturn("topic1");
+        when(message2.getTopic()).thenReturn("topic2");
+        CountDownLatch latch = new CountDownLatch(2);
+        List<Message> handled = new CopyOnWriteArrayList<>();
+        SharedTopicPoller sharedPoller = new SharedTopicPoller(messagePoller, 100);
+        MessageProcessor processor1 = new MessageProcessor(messagePoller, new TestHandler("topic1", 5, handled, latch),
+                null, sharedPoller);
+        MessageProcessor processor2 = new MessageProcessor(messagePoller, new TestHandler("topic2", 20, handled, latch),
+                null, sharedPoller);
+        when(messagePoller.poll(anyCollection(), anyInt(), eq(100))).thenAnswer(invocation -> {
+            Collection<String> topics = invocation.getArgument(0);
+            return List.of(message1, message2).stream()
+                    .filter(message -> topics.contains(message.getTopic()))
+                    .toList();
+        });
+
+        processor1.asyncProcess();
+        processor2.asyncProcess();
+
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        verify(messagePoller, atLeastOnce()).poll(argThat((Collection<String> topics) -> topics.size() == 1
+                && topics.contains("topic1")), eq(5), eq(100));
+        verify(messagePoller, atLeastOnce()).poll(argThat((Collection<String> topics) -> topics.size() == 1
+                && topics.contains("topic2")), eq(20), eq(100));
+        sharedPoller.shutdown();
+    }
+
+    private record TestHandler(String topic, int maxPoll, List<Message> handled, CountDownLatch latch)
+            implements MessageHandler {
+
+        @Override
+        public boolean sharedPoll() {
+            return true;
+        }
+
+        @Override
+        public void handle(Message message) {
+            handled.add(message);
+            latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package github.luckygc.pgq.tool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+
+    @Test
+    void shouldExpireDeadlinesOfCurrentLevel() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+
+        assertThat(wheel.add(25)).isTrue();
+        assertThat(wheel.add(27)).isTrue();
+        assertThat(wheel.nextExpiration()).isEqualTo(20);
+
+        assertThat(wheel.advance(19)).isZero();
+        assertThat(wheel.advance(20)).isEqualTo(2);
+        assertThat(wheel.nextExpiration()).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    void shouldRejectDeadlineWithinOneTick() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+
+        assertThat(wheel.add(5)).isFalse();
+        assertThat(wheel.add(-1)).isFalse();
+        assertThat(wheel.nextExpiration()).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    void shouldCascadeDeadlinesFromOverflowLevels() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+
+        // 第一层范围80ms,第二层640ms,1000落在第三层
+        assertThat(wheel.add(1000)).isTrue();
+        assertThat(wheel.add(300)).isTrue();
+
+        assertThat(wheel.advance(299)).isZero();
+        assertThat(wheel.advance(300)).isEqualTo(1);
+        assertThat(wheel.advance(999)).isZero();
+        assertThat(wheel.advance(1000)).isEqualTo(1);
+        assertThat(wheel.nextExpiration()).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    void shouldExpireAllOverdueDeadlinesInOneAdvance() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+        for (long deadline = 10; deadline <= 2000; deadline += 10) {
+            wheel.add(deadline);
+        }
+
+        assertThat(wheel.advance(5000)).isEqualTo(200);
+        assertThat(wheel.nextExpiration()).isEqualTo(Long.MAX_VALUE);
+        assertThat(wheel.add(5020)).isTrue();
+    }
+}
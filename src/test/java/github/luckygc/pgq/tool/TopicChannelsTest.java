@@ -0,0 +1,26 @@
+package github.luckygc.pgq.tool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class TopicChannelsTest {
+
+    @Test
+    void shouldNameTopicChannelSameAsDatabaseFunction() {
+        // select 'pgmq_t_' || md5('order-topic')
+        assertThat(TopicChannels.topicChannel("order-topic")).isEqualTo("pgmq_t_1645f7a07f3da2874ad369d585d2fde1");
+    }
+
+    @Test
+    void shouldEncodeTopicAsUtf8() {
+        assertThat(TopicChannels.topicChannel("订单")).isEqualTo("pgmq_t_4c117f2037181c74559db1829298e041");
+    }
+
+    @Test
+    void shouldSeparateNodeChannelFromTopicChannel() {
+        assertThat(TopicChannels.nodeChannel("order-topic"))
+                .startsWith("pgmq_n_")
+                .isNotEqualTo(TopicChannels.topicChannel("order-topic"));
+    }
+}
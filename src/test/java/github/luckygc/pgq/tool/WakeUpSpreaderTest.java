@@ -0,0 +1,143 @@
+package github.luckygc.pgq.tool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class WakeUpSpreaderTest {
+
+    private static final List<String> NODES = List.of("node-a", "node-b", "node-c", "node-d");
+
+    private final MessageProcessorDispatcher dispatcher = mock(MessageProcessorDispatcher.class);
+    private final List<WakeUpSpreader> spreaders = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        spreaders.forEach(WakeUpSpreader::shutdown);
+    }
+
+    @Test
+    void shouldWakeUpOnlyTopRankedNodeWhenCountUnknown() {
+        List<String> ranked = rankedNodes("topic");
+
+        assertThat(wakeUp(ranked.get(0), 0)).isTrue();
+        for (String node : ranked.subList(1, ranked.size())) {
+            assertThat(wakeUp(node, 0)).isFalse();
+        }
+    }
+
+    @Test
+    void shouldWakeUpEnoughNodesForMessageCount() {
+        List<String> ranked = rankedNodes("topic");
+
+        // maxPoll为10,25条消息需要3个节点
+        assertThat(wakeUp(ranked.get(0), 25)).isTrue();
+        assertThat(wakeUp(ranked.get(1), 25)).isTrue();
+        assertThat(wakeUp(ranked.get(2), 25)).isTrue();
+        assertThat(wakeUp(ranked.get(3), 25)).isFalse();
+        // 超过节点数时全部唤醒
+        assertThat(wakeUp(ranked.get(3), 1000)).isTrue();
+    }
+
+    @Test
+    void shouldWakeUpWhenOwnershipUnknown() {
+        WakeUpSpreader spreader = spreader("node-a", topic -> false);
+        spreader.wakeUp("topic", 0);
+
+        verify(dispatcher).dispatch("topic");
+    }
+
+    @Test
+    void shouldProbeOnceAfterFallbackDelayWhenNotSelected() {
+        String node = rankedNodes("topic").get(1);
+        AtomicInteger probes = new AtomicInteger();
+        WakeUpSpreader spreader = spreader(node, topic -> probes.incrementAndGet() > 0);
+        spreader.updateSubscribers(Map.of("topic", NODES));
+
+        for (int i = 0; i < 10; i++) {
+            spreader.wakeUp("topic", 0);
+        }
+
+        verify(dispatcher, after(50).never()).dispatch("topic");
+        verify(dispatcher, timeout(1000)).dispatch("topic");
+        assertThat(probes.get()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldBackOffFallbackWhenDispatchClaimsNothing() {
+        String node = rankedNodes("topic").get(1);
+        AtomicInteger probes = new AtomicInteger();
+        WakeUpSpreader spreader = spreader(node, topic -> probes.incrementAndGet() > 0);
+        spreader.updateSubscribers(Map.of("topic", NODES));
+
+        // 首次检查到消息后调度
+        spreader.wakeUp("topic", 0);
+        verify(dispatcher, timeout(1000)).dispatch("topic");
+
+        // 上次调度后处理器没有拉取到消息,检查后等待时间翻倍为400ms
+        spreader.wakeUp("topic", 0);
+        verify(dispatcher, timeout(1000).times(2)).dispatch("topic");
+
+        spreader.wakeUp("topic", 0);
+        verify(dispatcher, after(300).times(2)).dispatch("topic");
+        verify(dispatcher, timeout(1000).times(3)).dispatch("topic");
+        assertThat(probes.get()).isEqualTo(3);
+    }
+
+    @Test
+    void shouldNotProbeWhenProcessorSaturated() {
+        String node = rankedNodes("topic").get(1);
+        AtomicInteger probes = new AtomicInteger();
+        when(dispatcher.isSaturated("topic")).thenReturn(true);
+        WakeUpSpreader spreader = spreader(node, topic -> probes.incrementAndGet() > 0);
+        spreader.updateSubscribers(Map.of("topic", NODES));
+
+        spreader.wakeUp("topic", 0);
+
+        verify(dispatcher, timeout(1000)).isSaturated("topic");
+        verify(dispatcher, after(100).never()).dispatch("topic");
+        assertThat(probes.get()).isZero();
+    }
+
+    private boolean wakeUp(String node, int count) {
+        MessageProcessorDispatcher nodeDispatcher = mock(MessageProcessorDispatcher.class);
+        when(nodeDispatcher.maxPoll("topic")).thenReturn(10);
+        WakeUpSpreader spreader = new WakeUpSpreader(node, nodeDispatcher, topic -> false, Duration.ofMinutes(1),
+                Duration.ofMinutes(1));
+        spreaders.add(spreader);
+        spreader.updateSubscribers(Map.of("topic", NODES));
+
+        spreader.wakeUp("topic", count);
+        return mockingDetails(nodeDispatcher).getInvocations().stream()
+                .anyMatch(invocation -> invocation.getMethod().getName().equals("dispatch"));
+    }
+
+    private WakeUpSpreader spreader(String node, Predicate<String> probe) {
+        WakeUpSpreader spreader = new WakeUpSpreader(node, dispatcher, probe, Duration.ofMillis(200),
+                Duration.ofMillis(800));
+        spreaders.add(spreader);
+        return spreader;
+    }
+
+    private static List<String> rankedNodes(String topic) {
+        List<String> ranked = new ArrayList<>(NODES);
+        ranked.sort(Comparator.comparingLong((String node) -> WakeUpSpreader.score(topic, node)).reversed());
+        return ranked;
+    }
+}
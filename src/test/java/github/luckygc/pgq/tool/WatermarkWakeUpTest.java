@@ -0,0 +1,96 @@
+package github.luckygc.pgq.tool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import github.luckygc.pgq.dao.QueueDao;
+import github.luckygc.pgq.integration.BaseIntegrationTest;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+@Testcontainers
+@DisplayName("水位唤醒测试")
+class WatermarkWakeUpTest extends BaseIntegrationTest {
+
+    private final MessageProcessorDispatcher consumerDispatcher = mock(MessageProcessorDispatcher.class);
+    private final CountDownLatch delayChanged = new CountDownLatch(1);
+    private WatermarkWakeUp producer;
+    private WatermarkWakeUp consumer;
+
+    @BeforeEach
+    void setUp() {
+        QueueDao queueDao = new QueueDao(jdbcTemplate);
+        producer = new WatermarkWakeUp(queueDao, mock(MessageProcessorDispatcher.class), () -> {
+        }, Duration.ofMillis(10));
+        consumer = new WatermarkWakeUp(queueDao, consumerDispatcher, delayChanged::countDown, Duration.ofMillis(10));
+        when(consumerDispatcher.subscribedTopics()).thenReturn(Set.of("watermark-topic"));
+        producer.start();
+        consumer.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        producer.shutdown();
+        consumer.shutdown();
+    }
+
+    @Test
+    @DisplayName("其他节点写入水位后应该调度对应topic")
+    void shouldDispatchWhenWatermarkIncreased() {
+        producer.sendNotify("watermark-topic");
+        producer.sendNotify("other-topic");
+
+        verify(consumerDispatcher, timeout(2000)).dispatch("watermark-topic");
+        verify(consumerDispatcher, never()).dispatch("other-topic");
+    }
+
+    @Test
+    @DisplayName("同一间隔内的多次唤醒应该合并为一次水位更新")
+    void shouldCoalesceWakeUpsWithinInterval() {
+        // 停止定时写入,所有唤醒在关闭时一次写入
+        producer.shutdown();
+        for (int i = 0; i < 100; i++) {
+            producer.sendNotify(List.of("watermark-topic", "other-topic"));
+        }
+        producer.shutdown();
+
+        assertThat(countRecords("pgmq_topic_watermark", "version = 1")).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("事务回滚时不应该写入水位")
+    void shouldNotIncreaseWatermarkWhenRolledBack() {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+
+        transactionTemplate.executeWithoutResult(status -> {
+            producer.sendNotify("watermark-topic");
+            status.setRollbackOnly();
+        });
+
+        verify(consumerDispatcher, after(500).never()).dispatch("watermark-topic");
+    }
+
+    @Test
+    @DisplayName("其他节点写入延时消息后应该重新加载到期时间")
+    void shouldNotifyDelayChanged() throws InterruptedException {
+        producer.sendDelayNotify(LocalDateTime.now().plusSeconds(5));
+
+        assertThat(delayChanged.await(2, TimeUnit.SECONDS)).isTrue();
+    }
+}
@@ -13,12 +13,20 @@ create table pgmq_invisible_queue
     priority     int                      not null default 0,                                       -- 消息优先级，数值越大优先级越高
     payload      varchar collate "C"      not null,                                                 -- 消息内容/负载数据
     attempt      int                      not null default 0,                                       -- 重试次数
+    group_key    varchar(100) collate "C",                                                          -- 消息分组，同组消息按顺序逐条处理
     visible_time timestamp                not null                                                  -- 消息可见时间，到达此时间后消息才能被消费
 );
 
 -- 为不可见队列的可见时间字段创建索引，用于快速查找到期的消息
 create index pgmq_invisible_queue_visible_time on pgmq_invisible_queue using btree (visible_time);
 
+-- 按主题查找到期的消息，用于直接从不可见队列拉取
+create index idx_pgmq_invisible_queue_topic_visible_time on pgmq_invisible_queue (topic, visible_time);
+
+-- 为不可见队列的分组字段创建部分索引，用于判断分组内是否有更早的延时消息
+create index idx_pgmq_invisible_queue_topic_group_key on pgmq_invisible_queue (topic, group_key, id)
+    where group_key is not null;
+
 -- 为不可见消息队列表添加注释
 COMMENT ON TABLE pgmq_invisible_queue IS '不可见消息队列表：存储延迟消息和重试消息';
 COMMENT ON COLUMN pgmq_invisible_queue.id IS '消息唯一标识';
@@ -27,6 +35,7 @@ COMMENT ON COLUMN pgmq_invisible_queue.topic IS '消息主题/队列名称';
 COMMENT ON COLUMN pgmq_invisible_queue.priority IS '消息优先级，数值越大优先级越高';
 COMMENT ON COLUMN pgmq_invisible_queue.payload IS '消息内容/负载数据';
 COMMENT ON COLUMN pgmq_invisible_queue.attempt IS '重试次数';
+COMMENT ON COLUMN pgmq_invisible_queue.group_key IS '消息分组，同组消息按顺序逐条处理';
 COMMENT ON COLUMN pgmq_invisible_queue.visible_time IS '消息可见时间，到达此时间后消息才能被消费';
 
 -- 待处理消息队列表：存储等待被消费的消息
@@ -38,7 +47,8 @@ create table pgmq_pending_queue
     topic       varchar(100) collate "C" not null,                                                 -- 消息主题/队列名称
     priority    int                      not null default 0,                                       -- 消息优先级，数值越大优先级越高
     payload     varchar collate "C"      not null,                                                 -- 消息内容/负载数据
-    attempt     int                      not null default 0                                        -- 重试次数
+    attempt     int                      not null default 0,                                       -- 重试次数
+    group_key   varchar(100) collate "C"                                                           -- 消息分组，同组消息按顺序逐条处理
 );
 
 -- 为待处理队列创建复合索引，按主题、优先级降序、ID升序排序，用于高效的消息获取
@@ -48,6 +58,10 @@ create index idx_pgmq_pending_queue_topic_priority_id on pgmq_pending_queue (
                                                                              id asc
     );
 
+-- 为待处理队列的分组字段创建部分索引，用于判断分组内是否有更早的待处理消息
+create index idx_pgmq_pending_queue_topic_group_key on pgmq_pending_queue (topic, group_key, id)
+    where group_key is not null;
+
 -- 为待处理消息队列表添加注释
 COMMENT ON TABLE pgmq_pending_queue IS '待处理消息队列表：存储等待被消费的消息';
 COMMENT ON COLUMN pgmq_pending_queue.id IS '消息唯一标识';
@@ -56,6 +70,7 @@ COMMENT ON COLUMN pgmq_pending_queue.topic IS '消息主题/队列名称';
 COMMENT ON COLUMN pgmq_pending_queue.priority IS '消息优先级，数值越大优先级越高';
 COMMENT ON COLUMN pgmq_pending_queue.payload IS '消息内容/负载数据';
 COMMENT ON COLUMN pgmq_pending_queue.attempt IS '重试次数';
+COMMENT ON COLUMN pgmq_pending_queue.group_key IS '消息分组，同组消息按顺序逐条处理';
 
 -- 处理中消息队列表：存储正在被消费者处理的消息
 drop table if exists pgmq_processing_queue;
@@ -67,12 +82,25 @@ create table pgmq_processing_queue
     priority     int                      not null default 0, -- 消息优先级，数值越大优先级越高
     payload      varchar collate "C"      not null,           -- 消息内容/负载数据
     attempt      int                      not null,           -- 重试次数
-    timeout_time timestamp                not null            -- 消息处理超时时间
+    group_key    varchar(100) collate "C",                    -- 消息分组，同组消息按顺序逐条处理
+    timeout_time timestamp                not null,           -- 消息处理超时时间
+    node_id      varchar(64) collate "C"                      -- 拉取该消息的节点标识
 );
 
 -- 为处理中队列的超时时间字段创建索引，用于快速查找超时的消息
 create index idx_pgmq_processing_queue_timeout_time on pgmq_processing_queue using btree (timeout_time);
 
+-- 按主题查找处理超时的消息，用于拉取时直接重新领取
+create index idx_pgmq_processing_queue_topic_timeout_time on pgmq_processing_queue (topic, timeout_time);
+
+-- 为处理中队列的分组字段创建部分索引，用于判断分组内是否有正在处理的消息
+create index idx_pgmq_processing_queue_topic_group_key on pgmq_processing_queue (topic, group_key)
+    where group_key is not null;
+
+-- 为处理中队列的节点字段创建索引，用于回收宕机节点的消息
+create index idx_pgmq_processing_queue_node_id on pgmq_processing_queue (node_id)
+    where node_id is not null;
+
 -- 为处理中消息队列表添加注释
 COMMENT ON TABLE pgmq_processing_queue IS '处理中消息队列表：存储正在被消费者处理的消息';
 COMMENT ON COLUMN pgmq_processing_queue.id IS '消息唯一标识';
@@ -81,7 +109,9 @@ COMMENT ON COLUMN pgmq_processing_queue.topic IS '消息主题/队列名称';
 COMMENT ON COLUMN pgmq_processing_queue.priority IS '消息优先级，数值越大优先级越高';
 COMMENT ON COLUMN pgmq_processing_queue.payload IS '消息内容/负载数据';
 COMMENT ON COLUMN pgmq_processing_queue.attempt IS '重试次数';
+COMMENT ON COLUMN pgmq_processing_queue.group_key IS '消息分组，同组消息按顺序逐条处理';
 COMMENT ON COLUMN pgmq_processing_queue.timeout_time IS '消息处理超时时间';
+COMMENT ON COLUMN pgmq_processing_queue.node_id IS '拉取该消息的节点标识';
 
 -- 死信队列表：存储处理失败且超过最大重试次数的消息
 drop table if exists pgmq_dead_queue;
@@ -93,6 +123,7 @@ create table pgmq_dead_queue
     priority    int                      not null, -- 消息优先级，数值越大优先级越高
     payload     varchar collate "C"      not null, -- 消息内容/负载数据
     attempt     int                      not null, -- 重试次数
+    group_key   varchar(100) collate "C",          -- 消息分组，同组消息按顺序逐条处理
     dead_time   timestamp                not null  -- 消息进入死信队列的时间
 );
 
@@ -107,18 +138,105 @@ COMMENT ON COLUMN pgmq_dead_queue.topic IS '消息主题/队列名称';
 COMMENT ON COLUMN pgmq_dead_queue.priority IS '消息优先级，数值越大优先级越高';
 COMMENT ON COLUMN pgmq_dead_queue.payload IS '消息内容/负载数据';
 COMMENT ON COLUMN pgmq_dead_queue.attempt IS '重试次数';
+COMMENT ON COLUMN pgmq_dead_queue.group_key IS '消息分组，同组消息按顺序逐条处理';
 COMMENT ON COLUMN pgmq_dead_queue.dead_time IS '消息进入死信队列的时间';
 
+-- 单表租约存储模式(StorageMode.LEASE_TABLE)的消息表：消息始终在此表中，状态变更为原地更新
+-- state/attempt/visible_time/node_id不参与任何索引，配合fillfactor预留页内空间，状态变更可走HOT更新
+drop table if exists pgmq_message;
+create table pgmq_message
+(
+    id           bigint                            default nextval('pgmq_message_seq') primary key, -- 消息唯一标识
+    create_time  timestamp                not null default now(),                                   -- 消息创建时间
+    topic        varchar(100) collate "C" not null,                                                 -- 消息主题/队列名称
+    priority     int                      not null default 0,                                       -- 消息优先级，数值越大优先级越高
+    payload      varchar collate "C"      not null,                                                 -- 消息内容/负载数据
+    attempt      int                      not null default 0,                                       -- 重试次数
+    group_key    varchar(100) collate "C",                                                          -- 消息分组，同组消息按顺序逐条处理
+    state        smallint                 not null default 0,                                       -- 消息状态，0待处理，1处理中
+    visible_time timestamp                not null default now(),                                   -- 可被拉取的时间，处理中消息为处理超时时间
+    node_id      varchar(64) collate "C"                                                            -- 拉取该消息的节点标识
+) with (fillfactor = 70);
+
+-- 按主题、优先级降序、ID升序拉取消息，只包含不变的列以保证状态变更可走HOT更新
+create index idx_pgmq_message_topic_priority_id on pgmq_message (
+                                                                 topic,
+                                                                 priority desc,
+                                                                 id asc
+    );
+
+-- 为分组字段创建部分索引，用于判断分组内是否有更早或处理中的消息
+create index idx_pgmq_message_topic_group_key on pgmq_message (topic, group_key, id)
+    where group_key is not null;
+
+COMMENT ON TABLE pgmq_message IS '单表租约存储模式的消息表：消息始终在此表中，状态变更为原地更新';
+COMMENT ON COLUMN pgmq_message.id IS '消息唯一标识';
+COMMENT ON COLUMN pgmq_message.create_time IS '消息创建时间';
+COMMENT ON COLUMN pgmq_message.topic IS '消息主题/队列名称';
+COMMENT ON COLUMN pgmq_message.priority IS '消息优先级，数值越大优先级越高';
+COMMENT ON COLUMN pgmq_message.payload IS '消息内容/负载数据';
+COMMENT ON COLUMN pgmq_message.attempt IS '重试次数';
+COMMENT ON COLUMN pgmq_message.group_key IS '消息分组，同组消息按顺序逐条处理';
+COMMENT ON COLUMN pgmq_message.state IS '消息状态，0待处理，1处理中';
+COMMENT ON COLUMN pgmq_message.visible_time IS '可被拉取的时间，处理中消息为处理超时时间';
+COMMENT ON COLUMN pgmq_message.node_id IS '拉取该消息的节点标识';
+
+-- 节点注册表：记录各节点的心跳，心跳超时的节点视为宕机，其处理中的消息由存活节点立即回收
+drop table if exists pgmq_subscription; -- 引用了节点注册表，需先删除
+drop table if exists pgmq_node;
+create table pgmq_node
+(
+    node_id        varchar(64) collate "C" primary key, -- 节点唯一标识
+    heartbeat_time timestamp               not null     -- 最近一次心跳时间
+);
+
+COMMENT ON TABLE pgmq_node IS '节点注册表：记录各节点的心跳，心跳超时的节点视为宕机，其处理中的消息由存活节点立即回收';
+COMMENT ON COLUMN pgmq_node.node_id IS '节点唯一标识';
+COMMENT ON COLUMN pgmq_node.heartbeat_time IS '最近一次心跳时间';
+
+-- 订阅注册表：记录各节点订阅的主题，只对有订阅的主题发送通知，节点注销时级联删除其订阅
+create table pgmq_subscription
+(
+    topic   varchar(100) collate "C" not null,                                                  -- 订阅的主题
+    node_id varchar(64) collate "C"  not null references pgmq_node (node_id) on delete cascade, -- 订阅节点标识
+    primary key (topic, node_id)
+);
+
+COMMENT ON TABLE pgmq_subscription IS '订阅注册表：记录各节点订阅的主题，只对有订阅的主题发送通知，节点注销时级联删除其订阅';
+COMMENT ON COLUMN pgmq_subscription.topic IS '订阅的主题';
+COMMENT ON COLUMN pgmq_subscription.node_id IS '订阅节点标识';
+
+
+-- 主题水位表：水位唤醒模式下有新消息时递增主题的版本号，各节点定时查询版本号变化，代替LISTEN/NOTIFY
+drop table if exists pgmq_topic_watermark;
+create table pgmq_topic_watermark
+(
+    topic   varchar(100) collate "C" primary key, -- 消息主题/队列名称
+    version bigint                   not null     -- 水位版本号，有新消息时递增
+) with (fillfactor = 50);
+
+COMMENT ON TABLE pgmq_topic_watermark IS '主题水位表：水位唤醒模式下有新消息时递增主题的版本号，各节点定时查询版本号变化，代替LISTEN/NOTIFY';
+COMMENT ON COLUMN pgmq_topic_watermark.topic IS '消息主题/队列名称';
+COMMENT ON COLUMN pgmq_topic_watermark.version IS '水位版本号，有新消息时递增';
 
 -- 删除已存在的函数
 drop function if exists pgmq_move_timeout_and_visible_msg_to_pending_then_notify;
 
--- 消息队列核心处理函数：将超时和可见的消息移动到待处理队列并发送通知
--- 返回值：包含有消息可用的主题列表
-CREATE OR REPLACE FUNCTION pgmq_move_timeout_and_visible_msg_to_pending_then_notify()
+-- 消息队列核心处理函数：将超时和可见的消息分批移动到待处理队列并发送通知
+-- 参数p_promote_visible：为false时不搬运到期的延时消息，由拉取直接从不可见队列领取
+-- 参数p_limit：处理超时和到期延时消息每次各最多搬运的数量，调用方循环调用直到返回的总数小于p_limit，
+--             每批单独提交，避免大量消息同时到期时形成大事务
+-- 参数p_shard/p_shard_count：只搬运 mod(id, p_shard_count) = p_shard 的消息，每个分片使用独立的咨询锁，
+--             多个节点可同时搬运不同分片
+-- 返回值：本批搬运的主题及每个主题搬运的数量
+CREATE OR REPLACE FUNCTION pgmq_move_timeout_and_visible_msg_to_pending_then_notify(p_promote_visible boolean DEFAULT true,
+                                                                                    p_limit int DEFAULT 1000,
+                                                                                    p_shard int DEFAULT 0,
+                                                                                    p_shard_count int DEFAULT 1)
     RETURNS TABLE
             (
-                _topic varchar(100)
+                _topic varchar(100),
+                _count int
             )
     LANGUAGE plpgsql
 AS
@@ -126,39 +244,60 @@ $$
 DECLARE
     rec RECORD;
 BEGIN
-    -- 1. 事务级咨询锁，防止并发执行
-    IF NOT pg_try_advisory_xact_lock(1997, 38) THEN
+    -- 1. 分片的事务级咨询锁，防止同一分片并发执行
+    IF NOT pg_try_advisory_xact_lock(199738, p_shard) THEN
         RETURN; -- 拿不到锁就空返回
     END IF;
 
-    -- 2. 原子性删除 processing_queue/invisible_queue 并插入 pending_queue，
-    --    同时通过 RETURNING 收集本次实际插入的 topic
+    -- 2. 按到期时间顺序各取一批，删除 processing_queue/invisible_queue 并插入 pending_queue，
+    --    同时通过 RETURNING 统计本批每个 topic 搬运的数量
     FOR rec IN
-        WITH moved_processing AS (
-            DELETE FROM pgmq_processing_queue
-                WHERE timeout_time <= now()
-                RETURNING id, create_time, topic, priority, payload, attempt),
+        WITH processing_to_move AS (
+            SELECT id
+            FROM pgmq_processing_queue
+            WHERE timeout_time <= now()
+              AND mod(id, p_shard_count) = p_shard
+            ORDER BY timeout_time
+            LIMIT p_limit FOR UPDATE SKIP LOCKED),
+             moved_processing AS (
+                 DELETE FROM pgmq_processing_queue q
+                     USING processing_to_move m
+                     WHERE q.id = m.id
+                     RETURNING q.id, q.create_time, q.topic, q.priority, q.payload, q.attempt, q.group_key),
+             visible_to_move AS (
+                 SELECT id
+                 FROM pgmq_invisible_queue
+                 WHERE p_promote_visible
+                   AND visible_time <= now()
+                   AND mod(id, p_shard_count) = p_shard
+                 ORDER BY visible_time
+                 LIMIT p_limit FOR UPDATE SKIP LOCKED),
              moved_visible AS (
-                 DELETE FROM pgmq_invisible_queue
-                     WHERE visible_time <= now()
-                     RETURNING id, create_time, topic, priority, payload, attempt),
+                 DELETE FROM pgmq_invisible_queue q
+                     USING visible_to_move m
+                     WHERE q.id = m.id
+                     RETURNING q.id, q.create_time, q.topic, q.priority, q.payload, q.attempt, q.group_key),
              moved AS (SELECT *
                        FROM moved_processing
                        UNION ALL
                        SELECT *
                        FROM moved_visible),
              insert_op AS (
-                 INSERT INTO pgmq_pending_queue (id, create_time, topic, priority, payload, attempt)
-                     SELECT id, create_time, topic, priority, payload, attempt
+                 INSERT INTO pgmq_pending_queue (id, create_time, topic, priority, payload, attempt, group_key)
+                     SELECT id, create_time, topic, priority, payload, attempt, group_key
                      FROM moved
                      RETURNING topic)
-        SELECT DISTINCT topic
+        SELECT topic, count(*)::int AS moved_count
         FROM insert_op
+        GROUP BY topic
         LOOP
-            -- 3. 对每个本次搬运的主题发送通知
-            PERFORM pg_notify('pgmq_topic_channel', rec.topic);
-            -- 4. 将主题作为返回值返回
+            -- 3. 对每个本批搬运且有节点订阅的主题，在主题专属通道上发送"数量:主题"，本批提交后即可被消费
+            IF EXISTS (SELECT 1 FROM pgmq_subscription s WHERE s.topic = rec.topic) THEN
+                PERFORM pg_notify('pgmq_t_' || md5(rec.topic), rec.moved_count || ':' || rec.topic);
+            END IF;
+            -- 4. 将主题及数量作为返回值返回
             _topic := rec.topic;
+            _count := rec.moved_count;
             RETURN NEXT;
         END LOOP;
 
@@ -166,5 +305,5 @@ BEGIN
 END;
 $$;
 
-COMMENT ON FUNCTION pgmq_move_timeout_and_visible_msg_to_pending_then_notify()
-    IS '将超时和可见的消息原子地移入 pending_queue，仅对本次搬运的主题发送 pg_notify，并返回这些主题列表';
+COMMENT ON FUNCTION pgmq_move_timeout_and_visible_msg_to_pending_then_notify(boolean, int, int, int)
+    IS '按分片将超时和可见的消息分批原子地移入 pending_queue，仅对本批搬运且有订阅的主题发送 pg_notify，并返回这些主题及数量';